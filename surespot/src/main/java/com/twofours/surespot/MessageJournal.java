@@ -0,0 +1,627 @@
+package com.twofours.surespot;
+
+import com.twofours.surespot.chat.SurespotMessage;
+import com.twofours.surespot.common.SurespotLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append only store of the messages we keep on disk for a conversation.
+ * <p/>
+ * The file is a header followed by records of [type][payload length][payload][crc32]. A put record holds a whole message in a compact
+ * binary layout and replaces any earlier record with the same iv, a remove record holds just the iv. Saving only appends records for
+ * messages that changed or dropped out, and the file is rewritten with just the live records once dead records outnumber them, so
+ * reading it back stays a short sequential read.
+ * <p/>
+ * Next to the journal is an index of the live put records sorted by message id, written after every save. {@link #loadPage} uses it
+ * to seek straight to the records for a page, so showing the newest messages doesn't depend on how many are stored. An index that
+ * doesn't match the journal's length is rebuilt by replaying the journal.
+ * <p/>
+ * A record torn by a crash fails its length or crc check, loading stops there and the tail is truncated.
+ */
+public class MessageJournal {
+    private static final String TAG = "MessageJournal";
+    private static final int MAGIC = 0x53534d4a; // SSMJ
+    private static final int INDEX_MAGIC = 0x53534d49; // SSMI
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 5;
+    // magic, version, journal length, count
+    private static final int INDEX_HEADER_LENGTH = 4 + 1 + 8 + 4;
+    // id, offset, record length
+    private static final int INDEX_ENTRY_LENGTH = 4 + 8 + 4;
+    // type, payload length, crc
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    // compact once there are this many dead records and more dead than live
+    private static final int COMPACT_MINIMUM = 64;
+
+    private static final int FLAG_SHAREABLE = 1;
+    private static final int FLAG_GCM = 1 << 1;
+    private static final int FLAG_VOICE_PLAYED = 1 << 2;
+    private static final int FLAG_HASHED = 1 << 3;
+
+    private final File mFile;
+    private final File mIndexFile;
+    // live records by iv, in the order they were first written
+    private LinkedHashMap<String, Record> mRecords;
+    private int mDeadRecords;
+
+    public MessageJournal(String filename, String indexFilename) {
+        mFile = new File(filename);
+        mIndexFile = new File(indexFilename);
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    public synchronized ArrayList<SurespotMessage> load() {
+        open();
+        ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>(mRecords.size());
+        for (Record record : mRecords.values()) {
+            try {
+                messages.add(decode(record.payload));
+            }
+            catch (IOException e) {
+                SurespotLog.w(TAG, e, "could not decode message record");
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Load up to count messages sorted before the message with beforeId, or the newest messages if beforeId is null.
+     */
+    public synchronized ArrayList<SurespotMessage> loadPage(Integer beforeId, int count) {
+        ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+        if (!mFile.exists()) {
+            return messages;
+        }
+
+        RandomAccessFile index = null;
+        RandomAccessFile journal = null;
+        try {
+            index = openIndex();
+            if (index == null) {
+                // missing or stale, rebuild it from the journal
+                open();
+                writeIndex();
+                index = openIndex();
+                if (index == null) {
+                    throw new IOException("could not build index");
+                }
+            }
+
+            int size = (int) ((index.length() - INDEX_HEADER_LENGTH) / INDEX_ENTRY_LENGTH);
+            int end = beforeId == null ? size : lowerBound(index, size, beforeId);
+            int start = Math.max(0, end - count);
+            if (start == end) {
+                return messages;
+            }
+
+            byte[] entries = new byte[(end - start) * INDEX_ENTRY_LENGTH];
+            index.seek(INDEX_HEADER_LENGTH + (long) start * INDEX_ENTRY_LENGTH);
+            index.readFully(entries);
+
+            journal = new RandomAccessFile(mFile, "r");
+            DataInputStream entryIn = new DataInputStream(new ByteArrayInputStream(entries));
+            CRC32 crc = new CRC32();
+            for (int i = start; i < end; i++) {
+                entryIn.readInt();
+                long offset = entryIn.readLong();
+                int length = entryIn.readInt();
+
+                byte[] record = new byte[length];
+                journal.seek(offset);
+                journal.readFully(record);
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                if (recordIn.readByte() != RECORD_PUT || recordIn.readInt() != length - RECORD_OVERHEAD) {
+                    throw new IOException("index does not match journal");
+                }
+                byte[] payload = new byte[length - RECORD_OVERHEAD];
+                recordIn.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (recordIn.readInt() != (int) crc.getValue()) {
+                    throw new IOException("bad record crc");
+                }
+                messages.add(decode(payload));
+            }
+            SurespotLog.v(TAG, "loaded page of %d messages before %s from %s", messages.size(), beforeId, mFile.getName());
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "loadPage");
+            // fall back to reading the whole thing next time
+            mIndexFile.delete();
+            messages.clear();
+        }
+        finally {
+            closeQuietly(index);
+            closeQuietly(journal);
+        }
+        return messages;
+    }
+
+    /**
+     * Make the messages the journal's contents, only writing records for messages that changed and removals for ones that are gone.
+     *
+     * @return false if the messages couldn't be written
+     */
+    public synchronized boolean save(Collection<SurespotMessage> messages) {
+        open();
+
+        LinkedHashMap<String, Record> puts = new LinkedHashMap<String, Record>();
+        Set<String> ivs = new HashSet<String>();
+        try {
+            for (SurespotMessage message : messages) {
+                if (message.getIv() == null) {
+                    continue;
+                }
+                ivs.add(message.getIv());
+                byte[] payload = encode(message);
+                Record record = mRecords.get(message.getIv());
+                if (record == null || !Arrays.equals(payload, record.payload)) {
+                    puts.put(message.getIv(), new Record(payload, message.getId() == null ? 0 : message.getId()));
+                }
+            }
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "could not encode messages");
+            return false;
+        }
+
+        ArrayList<String> removes = new ArrayList<String>();
+        for (String iv : mRecords.keySet()) {
+            if (!ivs.contains(iv)) {
+                removes.add(iv);
+            }
+        }
+
+        if (puts.isEmpty() && removes.isEmpty()) {
+            return true;
+        }
+
+        int dead = mDeadRecords + removes.size() * 2;
+        for (String iv : puts.keySet()) {
+            if (mRecords.containsKey(iv)) {
+                dead++;
+            }
+        }
+
+        // apply to memory first so a compaction writes the new state
+        for (String iv : removes) {
+            mRecords.remove(iv);
+        }
+        mRecords.putAll(puts);
+
+        try {
+            if (dead >= COMPACT_MINIMUM && dead > mRecords.size()) {
+                compact();
+            }
+            else {
+                append(puts, removes);
+                mDeadRecords = dead;
+            }
+            writeIndex();
+            SurespotLog.v(TAG, "saved %d changed and %d removed messages to %s", puts.size(), removes.size(), mFile.getName());
+            return true;
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "save");
+            // we don't know what made it to disk, read it again next time
+            mRecords = null;
+            mIndexFile.delete();
+            return false;
+        }
+    }
+
+    public synchronized void delete() {
+        mFile.delete();
+        mIndexFile.delete();
+        mRecords = null;
+        mDeadRecords = 0;
+    }
+
+    private void open() {
+        // the state dir may have been wiped underneath us
+        if (mRecords != null && mFile.exists()) {
+            return;
+        }
+
+        mRecords = new LinkedHashMap<String, Record>();
+        mDeadRecords = 0;
+        if (!mFile.exists()) {
+            return;
+        }
+
+        long goodLength = HEADER_LENGTH;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION) {
+                SurespotLog.w(TAG, "unknown journal format, discarding: %s", mFile.getName());
+                in.close();
+                in = null;
+                mFile.delete();
+                mIndexFile.delete();
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH) {
+                    throw new IOException("bad record length: " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (in.readInt() != (int) crc.getValue()) {
+                    throw new IOException("bad record crc");
+                }
+
+                if (type == RECORD_PUT) {
+                    Record record = new Record(payload, readId(payload));
+                    record.offset = goodLength;
+                    if (mRecords.put(readIv(payload), record) != null) {
+                        mDeadRecords++;
+                    }
+                }
+                else if (type == RECORD_REMOVE) {
+                    if (mRecords.remove(new String(payload, "UTF-8")) != null) {
+                        mDeadRecords++;
+                    }
+                    mDeadRecords++;
+                }
+                else {
+                    throw new IOException("bad record type: " + type);
+                }
+                goodLength += RECORD_OVERHEAD + length;
+            }
+        }
+        catch (EOFException e) {
+            truncate(goodLength);
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "error reading journal %s", mFile.getName());
+            truncate(goodLength);
+        }
+        finally {
+            closeQuietly(in);
+        }
+        SurespotLog.v(TAG, "opened %s, live records: %d, dead records: %d", mFile.getName(), mRecords.size(), mDeadRecords);
+    }
+
+    private void truncate(long length) {
+        SurespotLog.i(TAG, "truncating torn journal %s at %d", mFile.getName(), length);
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "truncate");
+        }
+        finally {
+            closeQuietly(file);
+        }
+    }
+
+    private void append(Map<String, Record> puts, Collection<String> removes) throws IOException {
+        boolean newFile = !mFile.exists() || mFile.length() < HEADER_LENGTH;
+        long offset = newFile ? HEADER_LENGTH : mFile.length();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, !newFile)));
+        try {
+            if (newFile) {
+                writeHeader(out);
+            }
+            for (String iv : removes) {
+                offset += writeRecord(out, RECORD_REMOVE, iv.getBytes("UTF-8"));
+            }
+            for (Record record : puts.values()) {
+                record.offset = offset;
+                offset += writeRecord(out, RECORD_PUT, record.payload);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void compact() throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        long offset = HEADER_LENGTH;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            writeHeader(out);
+            for (Record record : mRecords.values()) {
+                record.offset = offset;
+                offset += writeRecord(out, RECORD_PUT, record.payload);
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("could not replace journal " + mFile.getName());
+        }
+        mDeadRecords = 0;
+        SurespotLog.d(TAG, "compacted %s to %d records", mFile.getName(), mRecords.size());
+    }
+
+    private void writeIndex() throws IOException {
+        List<Record> records = new ArrayList<Record>(mRecords.values());
+        // same order as the chat, messages without an id last
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record lhs, Record rhs) {
+                return compareIds(lhs.id, rhs.id);
+            }
+        });
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mIndexFile)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(mFile.length());
+            out.writeInt(records.size());
+            for (Record record : records) {
+                out.writeInt(record.id);
+                out.writeLong(record.offset);
+                out.writeInt(RECORD_OVERHEAD + record.payload.length);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    // returns null if there's no index or it wasn't written for the journal as it is now
+    private RandomAccessFile openIndex() throws IOException {
+        if (!mIndexFile.exists()) {
+            return null;
+        }
+
+        RandomAccessFile index = new RandomAccessFile(mIndexFile, "r");
+        boolean valid = false;
+        try {
+            if (index.length() >= INDEX_HEADER_LENGTH && index.readInt() == INDEX_MAGIC && index.readByte() == FORMAT_VERSION
+                    && index.readLong() == mFile.length()) {
+                int count = index.readInt();
+                valid = index.length() == INDEX_HEADER_LENGTH + (long) count * INDEX_ENTRY_LENGTH;
+            }
+        }
+        finally {
+            if (!valid) {
+                index.close();
+            }
+        }
+        return valid ? index : null;
+    }
+
+    // position of the first entry that sorts at or after the id
+    private static int lowerBound(RandomAccessFile index, int size, int id) throws IOException {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            index.seek(INDEX_HEADER_LENGTH + (long) mid * INDEX_ENTRY_LENGTH);
+            if (compareIds(index.readInt(), id) < 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // 0 is a message without an id, which sorts last like SurespotMessage.compareTo
+    private static int compareIds(int lhs, int rhs) {
+        if (lhs == rhs) {
+            return 0;
+        }
+        if (lhs == 0) {
+            return 1;
+        }
+        if (rhs == 0) {
+            return -1;
+        }
+        return lhs < rhs ? -1 : 1;
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+    }
+
+    private static int writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+        return RECORD_OVERHEAD + payload.length;
+    }
+
+    // the iv is the first field of a put record
+    private static String readIv(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String iv = readString(in);
+        if (iv == null) {
+            throw new IOException("put record without iv");
+        }
+        return iv;
+    }
+
+    // the id follows the eight string fields and the flags
+    private static int readId(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        for (int i = 0; i < 8; i++) {
+            int length = in.readInt();
+            if (length > 0) {
+                in.skipBytes(length);
+            }
+        }
+        in.readByte();
+        return in.readInt();
+    }
+
+    private static byte[] encode(SurespotMessage message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(baos);
+
+        writeString(out, message.getIv());
+        writeString(out, message.getFrom());
+        writeString(out, message.getTo());
+        writeString(out, message.getFromVersion());
+        writeString(out, message.getToVersion());
+        writeString(out, message.getMimeType());
+        writeString(out, message.getData());
+        writeString(out, message.getPlainData() == null ? null : message.getPlainData().toString());
+
+        int flags = 0;
+        if (message.isShareable()) {
+            flags |= FLAG_SHAREABLE;
+        }
+        if (message.isGcm()) {
+            flags |= FLAG_GCM;
+        }
+        if (message.isVoicePlayed()) {
+            flags |= FLAG_VOICE_PLAYED;
+        }
+        if (message.isHashed()) {
+            flags |= FLAG_HASHED;
+        }
+        out.writeByte(flags);
+
+        out.writeInt(message.getId() == null ? 0 : message.getId());
+        out.writeInt(message.getErrorStatus());
+        out.writeLong(message.getDateTime() == null ? 0 : message.getDateTime().getTime());
+        out.writeInt(message.getDataSize() == null ? 0 : message.getDataSize());
+
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static SurespotMessage decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        SurespotMessage message = new SurespotMessage();
+
+        message.setIv(readString(in));
+        message.setFrom(readString(in));
+        message.setTo(readString(in));
+        message.setFromVersion(readString(in));
+        message.setToVersion(readString(in));
+        message.setMimeType(readString(in));
+        message.setData(readString(in));
+        message.setPlainData(readString(in));
+
+        int flags = in.readByte();
+        message.setShareable((flags & FLAG_SHAREABLE) != 0);
+        message.setGcm((flags & FLAG_GCM) != 0);
+        message.setVoicePlayed((flags & FLAG_VOICE_PLAYED) != 0);
+        message.setHashed((flags & FLAG_HASHED) != 0);
+
+        int id = in.readInt();
+        if (id > 0) {
+            message.setId(id);
+        }
+
+        int errorStatus = in.readInt();
+        if (errorStatus > 0) {
+            message.setErrorStatus(errorStatus);
+        }
+
+        long datetime = in.readLong();
+        if (datetime > 0) {
+            message.setDateTime(new Date(datetime));
+        }
+
+        int dataSize = in.readInt();
+        if (dataSize > 0) {
+            message.setDataSize(dataSize);
+        }
+
+        return message;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void closeQuietly(Closeable in) {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                SurespotLog.w(TAG, e, "close");
+            }
+        }
+    }
+
+    private static class Record {
+        final byte[] payload;
+        final int id;
+        long offset;
+
+        Record(byte[] payload, int id) {
+            this.payload = payload;
+            this.id = id;
+        }
+    }
+}
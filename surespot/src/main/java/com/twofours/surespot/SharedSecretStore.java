@@ -0,0 +1,359 @@
+package com.twofours.surespot;
+
+import com.twofours.surespot.common.SurespotLog;
+import com.twofours.surespot.encryption.EncryptionController;
+import com.twofours.surespot.encryption.SessionKeyManager;
+import com.twofours.surespot.services.CredentialCachingService.SharedSecretKey;
+import com.twofours.surespot.services.CredentialCachingService.VersionMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append only store of a user's shared secrets.
+ * <p/>
+ * The file is a header followed by records of [type][payload length][payload], each payload encrypted on its own with the user's password.
+ * A put record decrypts to [hashed][our version][their version][their username][secret length][secret] and replaces any earlier record
+ * for the same key, a remove record holds just the key. Saving only appends records for secrets that are new, changed or gone, so adding
+ * a friend's secret is one small record, and the file is rewritten with just the live records once dead records outnumber them or the
+ * password changes.
+ * <p/>
+ * Records appended in different sessions are encrypted with keys stretched from different salts, and each salt costs a full key
+ * stretch to read. When loading finds more than one salt the file is rewritten under the current one so the cost doesn't grow with
+ * every session that added a secret.
+ * <p/>
+ * A record torn by a crash ends the file there and the tail is truncated. A record that won't decrypt or parse, most likely because the
+ * file was written under another password, stops the load and the file is left alone: nothing is appended to it or cut from it, and
+ * the next save rewrites it whole under the current password.
+ */
+public class SharedSecretStore {
+    private static final String TAG = "SharedSecretStore";
+    private static final int MAGIC = 0x53535353; // SSSS
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 5;
+    // type, payload length
+    private static final int RECORD_OVERHEAD = 1 + 4;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    // compact once there are this many dead records and more dead than live
+    private static final int COMPACT_MINIMUM = 16;
+
+    private final File mFile;
+    private final String mUsername;
+    // live secrets as they are on disk
+    private HashMap<SharedSecretKey, byte[]> mRecords;
+    private int mDeadRecords;
+    // records on disk were encrypted under more than one salt
+    private boolean mMixedSalts;
+    // the password the records on disk are encrypted with
+    private String mPasswordId;
+
+    public SharedSecretStore(String filename, String username) {
+        mFile = new File(filename);
+        mUsername = username;
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    public synchronized Map<SharedSecretKey, byte[]> load(String password) {
+        open(password);
+        // only rewrite a file we could read all of
+        if (mMixedSalts && mPasswordId != null) {
+            try {
+                compact(password);
+            }
+            catch (IOException e) {
+                SurespotLog.w(TAG, e, "could not compact shared secret store %s", mFile.getName());
+            }
+        }
+        SurespotLog.d(TAG, "loaded %d shared secrets for: %s", mRecords.size(), mUsername);
+        return new HashMap<SharedSecretKey, byte[]>(mRecords);
+    }
+
+    /**
+     * Make the secrets for our user the store's contents, only writing records for secrets that changed and removals for ones that are
+     * gone.
+     *
+     * @return false if the secrets couldn't be written
+     */
+    public synchronized boolean save(String password, Map<SharedSecretKey, byte[]> secrets) {
+        open(password);
+
+        HashMap<SharedSecretKey, byte[]> puts = new HashMap<SharedSecretKey, byte[]>();
+        HashMap<SharedSecretKey, byte[]> live = new HashMap<SharedSecretKey, byte[]>();
+        for (Map.Entry<SharedSecretKey, byte[]> entry : secrets.entrySet()) {
+            // save only secrets for this user
+            if (entry.getValue() == null || !entry.getKey().getOurUsername().equals(mUsername)) {
+                continue;
+            }
+            live.put(entry.getKey(), entry.getValue());
+            byte[] secret = mRecords.get(entry.getKey());
+            if (secret == null || !Arrays.equals(secret, entry.getValue())) {
+                puts.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        ArrayList<SharedSecretKey> removes = new ArrayList<SharedSecretKey>();
+        for (SharedSecretKey key : mRecords.keySet()) {
+            if (!live.containsKey(key)) {
+                removes.add(key);
+            }
+        }
+
+        String passwordId = SessionKeyManager.getPasswordId(password);
+        boolean passwordChanged = !passwordId.equals(mPasswordId);
+        if (puts.isEmpty() && removes.isEmpty() && !passwordChanged) {
+            return true;
+        }
+
+        int dead = mDeadRecords + removes.size() * 2;
+        for (SharedSecretKey key : puts.keySet()) {
+            if (mRecords.containsKey(key)) {
+                dead++;
+            }
+        }
+
+        mRecords = live;
+        try {
+            // records can't be read with a mix of passwords so a new one means rewriting them all
+            if (passwordChanged || mMixedSalts || (dead >= COMPACT_MINIMUM && dead > mRecords.size())) {
+                compact(password);
+            }
+            else {
+                append(password, puts, removes);
+                mDeadRecords = dead;
+            }
+            mPasswordId = passwordId;
+            SurespotLog.d(TAG, "saved %d changed and %d removed shared secrets for: %s", puts.size(), removes.size(), mUsername);
+            return true;
+        }
+        catch (IOException e) {
+            SurespotLog.e(TAG, e, "error saving shared secrets for %s", mUsername);
+            // we don't know what made it to disk, read it again next time
+            mRecords = null;
+            return false;
+        }
+    }
+
+    public synchronized void delete() {
+        mFile.delete();
+        mRecords = null;
+        mDeadRecords = 0;
+    }
+
+    private void open(String password) {
+        String passwordId = SessionKeyManager.getPasswordId(password);
+        // the state dir may have been wiped underneath us
+        if (mRecords != null && mFile.exists() && passwordId.equals(mPasswordId)) {
+            return;
+        }
+
+        mRecords = new HashMap<SharedSecretKey, byte[]>();
+        mDeadRecords = 0;
+        mMixedSalts = false;
+        mPasswordId = null;
+        if (!mFile.exists()) {
+            return;
+        }
+
+        long goodLength = HEADER_LENGTH;
+        byte[] firstSalt = null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION) {
+                SurespotLog.w(TAG, "unknown shared secret store format, discarding: %s", mFile.getName());
+                in.close();
+                in = null;
+                mFile.delete();
+                return;
+            }
+
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    break;
+                }
+
+                int length;
+                byte[] encrypted;
+                try {
+                    length = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_LENGTH) {
+                        throw new IOException("bad record length: " + length);
+                    }
+                    encrypted = new byte[length];
+                    in.readFully(encrypted);
+                }
+                catch (EOFException e) {
+                    // torn by a crash mid append, what's before it was written under this password
+                    SurespotLog.i(TAG, "torn record in shared secret store %s", mFile.getName());
+                    closeQuietly(in);
+                    in = null;
+                    truncate(goodLength);
+                    break;
+                }
+
+                byte[] salt = EncryptionController.getDataSalt(encrypted);
+                if (firstSalt == null) {
+                    firstSalt = salt;
+                }
+                else if (!Arrays.equals(firstSalt, salt)) {
+                    mMixedSalts = true;
+                }
+                byte[] payload = EncryptionController.decryptData(password, encrypted);
+                if (payload == null) {
+                    throw new IOException("could not decrypt record");
+                }
+
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(payload));
+                SharedSecretKey key = readKey(recordIn);
+                if (type == RECORD_PUT) {
+                    byte[] secret = new byte[recordIn.readUnsignedShort()];
+                    recordIn.readFully(secret);
+                    if (mRecords.put(key, secret) != null) {
+                        mDeadRecords++;
+                    }
+                }
+                else if (type == RECORD_REMOVE) {
+                    if (mRecords.remove(key) != null) {
+                        mDeadRecords++;
+                    }
+                    mDeadRecords++;
+                }
+                else {
+                    throw new IOException("bad record type: " + type);
+                }
+                goodLength += RECORD_OVERHEAD + length;
+            }
+            mPasswordId = passwordId;
+        }
+        catch (IOException e) {
+            // leave mPasswordId unset so nothing is appended to a file we can't read, a save rewrites it
+            SurespotLog.w(TAG, e, "could not read shared secret store %s, leaving it alone", mFile.getName());
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void truncate(long length) {
+        SurespotLog.i(TAG, "truncating shared secret store %s at %d", mFile.getName(), length);
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "truncate");
+        }
+        finally {
+            closeQuietly(file);
+        }
+    }
+
+    private void append(String password, Map<SharedSecretKey, byte[]> puts, ArrayList<SharedSecretKey> removes) throws IOException {
+        boolean newFile = !mFile.exists() || mFile.length() < HEADER_LENGTH;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, !newFile)));
+        try {
+            if (newFile) {
+                writeHeader(out);
+            }
+            for (SharedSecretKey key : removes) {
+                writeRecord(out, password, RECORD_REMOVE, key, null);
+            }
+            for (Map.Entry<SharedSecretKey, byte[]> entry : puts.entrySet()) {
+                writeRecord(out, password, RECORD_PUT, entry.getKey(), entry.getValue());
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void compact(String password) throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            writeHeader(out);
+            for (Map.Entry<SharedSecretKey, byte[]> entry : mRecords.entrySet()) {
+                writeRecord(out, password, RECORD_PUT, entry.getKey(), entry.getValue());
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("could not replace shared secret store " + mFile.getName());
+        }
+        mDeadRecords = 0;
+        mMixedSalts = false;
+        SurespotLog.d(TAG, "compacted %s to %d records", mFile.getName(), mRecords.size());
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+    }
+
+    private static void writeRecord(DataOutputStream out, String password, byte type, SharedSecretKey key, byte[] secret) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(baos);
+        payloadOut.writeBoolean(key.getHashed());
+        payloadOut.writeInt(Integer.parseInt(key.getOurVersion()));
+        payloadOut.writeInt(Integer.parseInt(key.getTheirVersion()));
+        payloadOut.writeUTF(key.getTheirUsername());
+        if (secret != null) {
+            payloadOut.writeShort(secret.length);
+            payloadOut.write(secret);
+        }
+        payloadOut.close();
+
+        byte[] encrypted = EncryptionController.encryptData(password, baos.toByteArray());
+        if (encrypted == null) {
+            throw new IOException("could not encrypt record");
+        }
+        out.writeByte(type);
+        out.writeInt(encrypted.length);
+        out.write(encrypted);
+    }
+
+    private SharedSecretKey readKey(DataInputStream in) throws IOException {
+        boolean hashed = in.readBoolean();
+        String ourVersion = Integer.toString(in.readInt());
+        String theirVersion = Integer.toString(in.readInt());
+        String theirUsername = in.readUTF();
+        return new SharedSecretKey(new VersionMap(mUsername, ourVersion), new VersionMap(theirUsername, theirVersion), hashed);
+    }
+
+    private static void closeQuietly(Closeable in) {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                SurespotLog.w(TAG, e, "close");
+            }
+        }
+    }
+}
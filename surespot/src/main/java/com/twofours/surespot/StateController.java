@@ -12,7 +12,9 @@ import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
 import com.twofours.surespot.encryption.EncryptionController;
 import com.twofours.surespot.friends.Friend;
+import com.twofours.surespot.identity.IdentityController;
 import com.twofours.surespot.images.FileCacheController;
+import com.twofours.surespot.images.ThumbnailCacheController;
 import com.twofours.surespot.network.IAsyncCallback;
 import com.twofours.surespot.services.CredentialCachingService;
 import com.twofours.surespot.services.CredentialCachingService.SharedSecretKey;
@@ -34,6 +36,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -47,9 +50,14 @@ public class StateController {
 	private static final String FRIENDS = "friends";
 	private static final String COOKIE = "cookie";
 	private static final String STATE_EXTENSION = ".sss";
+	private static final String JOURNAL_EXTENSION = ".ssj";
+	private static final String JOURNAL_INDEX_EXTENSION = ".ssi";
 	private static final String SECRETS = "secrets";
+	private static final String SECRET_STORE_EXTENSION = ".sst";
 	private static final String TAG = "StateController";
 	private Context mContext;
+	private final Map<String, MessageJournal> mMessageJournals = new HashMap<String, MessageJournal>();
+	private final Map<String, SharedSecretStore> mSecretStores = new HashMap<String, SharedSecretStore>();
 
 	public class FriendState {
 		public int userControlId;
@@ -203,10 +211,11 @@ public class StateController {
 
 	}
 
-	public synchronized void saveMessages(String user, String spot, ArrayList<SurespotMessage> messages, int currentScrollPosition) {
-		String filename = getFilename(user, MESSAGES_PREFIX + spot);
-		if (filename != null) {
+	public void saveMessages(String user, String spot, ArrayList<SurespotMessage> messages, int currentScrollPosition) {
+		MessageJournal journal = getMessageJournal(user, spot);
+		if (journal != null) {
 			if (messages != null) {
+				// the adapter hands us a copy so it can keep changing while we save
 				int messagesSize = messages.size();
 				int saveSize = messagesSize - currentScrollPosition;
 				if (saveSize + SurespotConstants.SAVE_MESSAGE_BUFFER < SurespotConstants.SAVE_MESSAGE_MINIMUM) {
@@ -217,59 +226,96 @@ public class StateController {
 				}
 
 				SurespotLog.v(TAG, "saving %s messages", saveSize);
-				String sMessages = ChatUtils.chatMessagesToJson(messagesSize <= saveSize ? messages : messages.subList(messagesSize - saveSize, messagesSize), true)
-						.toString();
-				try {
-					FileUtils.writeFile(filename, sMessages);
-				}
-				catch (IOException e) {
-					SurespotLog.w(TAG, e, "saveMessages");
-				}
+				journal.save(messagesSize <= saveSize ? messages : messages.subList(messagesSize - saveSize, messagesSize));
 			}
 			else {
-				try {
-					new File(filename).delete();
-				}
-				catch (Exception ex) {
-					SurespotLog.w(TAG, ex, "saveMessages");
-				}
+				journal.delete();
 			}
 		}
 	}
 
 	public ArrayList<SurespotMessage> loadMessages(String user, String spot) {
+		MessageJournal journal = getMessageJournal(user, spot);
+		if (journal == null) {
+			return new ArrayList<SurespotMessage>();
+		}
+
+		ArrayList<SurespotMessage> messages = journal.load();
+		SurespotLog.v(TAG, "loaded: %d messages.", messages.size());
+		return messages;
+	}
+
+	/**
+	 * Load up to count saved messages that come before the message with beforeId, or the newest saved messages if beforeId is null.
+	 */
+	public ArrayList<SurespotMessage> loadMessagePage(String user, String spot, Integer beforeId, int count) {
+		MessageJournal journal = getMessageJournal(user, spot);
+		if (journal == null) {
+			return new ArrayList<SurespotMessage>();
+		}
+
+		return journal.loadPage(beforeId, count);
+	}
+
+	private synchronized MessageJournal getMessageJournal(String user, String spot) {
+		String filename = getFilename(user, MESSAGES_PREFIX + spot, JOURNAL_EXTENSION);
+		if (filename == null) {
+			return null;
+		}
+
+		MessageJournal journal = mMessageJournals.get(filename);
+		if (journal == null) {
+			journal = new MessageJournal(filename, getFilename(user, MESSAGES_PREFIX + spot, JOURNAL_INDEX_EXTENSION));
+			mMessageJournals.put(filename, journal);
+			migrateMessages(user, spot, journal);
+		}
+		return journal;
+	}
+
+	// move messages saved as gzipped json before the journal over to it, the old file stays until the journal has them
+	private void migrateMessages(String user, String spot, MessageJournal journal) {
 		String filename = getFilename(user, MESSAGES_PREFIX + spot);
-		ArrayList<SurespotMessage> messages = new ArrayList<SurespotMessage>();
-		if (filename != null) {
-			String sMessages = null;
+		File file = new File(filename);
+		if (!file.exists()) {
+			return;
+		}
 
-			try {
-				sMessages = new String(FileUtils.readFile(filename));
-			}
-			catch (FileNotFoundException f) {
-				SurespotLog.v(TAG, "loadMessages, no messages file found for: %s", spot);
-			}
-			catch (IOException e) {
-				SurespotLog.w(TAG, e, "loadMessages");
-			}
-			if (sMessages != null) {
-				Iterator<SurespotMessage> iterator = ChatUtils.jsonStringToChatMessages(sMessages).iterator();
-				while (iterator.hasNext()) {
-					SurespotMessage message = iterator.next();
-					messages.add(message);
-				}
-				SurespotLog.v(TAG, "loaded: %d messages.", messages.size());
+		ArrayList<SurespotMessage> legacyMessages;
+		try {
+			legacyMessages = ChatUtils.jsonStringToChatMessages(new String(FileUtils.readFile(filename)));
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "migrateMessages");
+			return;
+		}
+
+		// a journal left by an earlier attempt may have newer copies of the messages, or messages since
+		LinkedHashMap<String, SurespotMessage> messages = new LinkedHashMap<String, SurespotMessage>();
+		for (SurespotMessage message : legacyMessages) {
+			messages.put(message.getIv(), message);
+		}
+		if (journal.exists()) {
+			for (SurespotMessage message : journal.load()) {
+				messages.put(message.getIv(), message);
 			}
 		}
-		return messages;
+
+		if (journal.save(messages.values())) {
+			SurespotLog.v(TAG, "migrated messages for: %s", spot);
+			file.delete();
+		}
 	}
 
 	private String getFilename(String user, String filename) {
+		return getFilename(user, filename, STATE_EXTENSION);
+	}
+
+	private String getFilename(String user, String filename, String extension) {
 
 		if (user != null) {
 			String dir = FileUtils.getStateDir(mContext) + File.separator + user;
 			if (FileUtils.ensureDir(dir)) {
-				return dir + File.separator + filename + STATE_EXTENSION;
+				return dir + File.separator + filename + extension;
 			}
 
 		}
@@ -279,6 +325,7 @@ public class StateController {
 	public static synchronized void wipeAllState(Context context) {
 		FileUtils.deleteRecursive(new File(FileUtils.getStateDir(context)));
 		FileUtils.deleteRecursive(new File(FileUtils.getPublicKeyDir(context)));
+		IdentityController.clearKeyCheckpoints(null);
 	}
 
 	public static synchronized void wipeState(Context context, String identityName) {
@@ -304,6 +351,10 @@ public class StateController {
 				if (fcc != null) {
 					fcc.clearCache();
 				}
+				ThumbnailCacheController tcc = SurespotApplication.getThumbnailCacheController();
+				if (tcc != null) {
+					tcc.clearCache();
+				}
 
 				// captured image dir
 				FileUtils.wipeImageCaptureDir(context);
@@ -324,18 +375,20 @@ public class StateController {
 				callback.handleResponse(null);
 			};
 
-		}.execute();
+		}.executeOnExecutor(SurespotApplication.DISK_EXECUTOR);
 	}
 
 	public static void wipeUserState(Context context, String username, String otherUsername) {
 		String publicKeyDir = FileUtils.getPublicKeyDir(context) + File.separator + otherUsername;
 		FileUtils.deleteRecursive(new File(publicKeyDir));
+		IdentityController.clearKeyCheckpoints(otherUsername);
 
 		String room = ChatUtils.getSpot(username, otherUsername);
-		String messageFile = FileUtils.getStateDir(context) + File.separator + username + File.separator + "messages_" + room + STATE_EXTENSION;
+		String messageFile = FileUtils.getStateDir(context) + File.separator + username + File.separator + MESSAGES_PREFIX + room;
 		try {
-			File file = new File(messageFile);
-			file.delete();
+			new File(messageFile + STATE_EXTENSION).delete();
+			new File(messageFile + JOURNAL_EXTENSION).delete();
+			new File(messageFile + JOURNAL_INDEX_EXTENSION).delete();
 		}
 		catch (Exception ex) {
 			SurespotLog.w(TAG, ex, "wipeUserState");
@@ -346,54 +399,68 @@ public class StateController {
 		if (username == null || password == null || secrets == null) {
 			return;
 		}
+
+		// the map is a live view of the cache
+		final Map<SharedSecretKey, byte[]> snapshot = new HashMap<SharedSecretKey, byte[]>(secrets);
 		new AsyncTask<Void, Void, Void>() {
 			@Override
-			protected Void doInBackground(Void... params) {								
-				String filename = getFilename(username, SECRETS);				
-				Map<String, byte[]> map = new HashMap<String, byte[]>();
-
-				for (SharedSecretKey key : secrets.keySet()) {
-					// save only secrets for this user
-					if (key.getOurUsername().equals(username)) {
-						String skey = key.getOurUsername() + ":" + key.getOurVersion() + ":" + key.getTheirUsername() + ":" + key.getTheirVersion() + ":" + (key.getHashed() ? "1" : "0");
-
-						byte[] value =  secrets.get(key);
-						if (value != null) {
-							map.put(skey, value);
-						}
-					}
-				}
-				
-				try {
-					ByteArrayOutputStream baos = new ByteArrayOutputStream();
-					ObjectOutputStream oos = new ObjectOutputStream(baos);
-					oos.writeObject(map);
-					oos.close();
-					baos.close();
-
-					byte[] encryptedSecrets = EncryptionController.encryptData(password, baos.toByteArray());
-
-					FileOutputStream fos = new FileOutputStream(filename);
-					fos.write(encryptedSecrets);
-					fos.close();
-
-					SurespotLog.d(TAG, "saved shared secrets for: %s", username);
-				}
-				catch (IOException e) {
-					SurespotLog.e(TAG, e, "error saving shared secrets for %s", username);
+			protected Void doInBackground(Void... params) {
+				SharedSecretStore store = getSecretStore(username);
+				if (store != null) {
+					store.save(password, snapshot);
 				}
 				return null;
 			}
-		}.execute();
+		}.executeOnExecutor(SurespotApplication.DISK_EXECUTOR);
 
 	}
 
-	@SuppressWarnings("unchecked")
 	public Map<SharedSecretKey, byte[]> loadSharedSecrets(String username, String password) {
 		if (username == null || password == null) {
 			return null;
-		}			
+		}
+
+		SharedSecretStore store = getSecretStore(username);
+		if (store == null) {
+			return null;
+		}
+
+		// move secrets saved the old way into the store, the old file stays until the store has them all
+		File legacyFile = new File(getFilename(username, SECRETS));
+		if (legacyFile.exists()) {
+			Map<SharedSecretKey, byte[]> legacySecrets = loadLegacySharedSecrets(username, password);
+			if (legacySecrets != null) {
+				// a store left by an earlier attempt may have secrets since
+				Map<SharedSecretKey, byte[]> secrets = store.load(password);
+				secrets.putAll(legacySecrets);
+				if (store.save(password, secrets)) {
+					legacyFile.delete();
+				}
+				return secrets;
+			}
+		}
 
+		return store.load(password);
+	}
+
+	private SharedSecretStore getSecretStore(String username) {
+		synchronized (mSecretStores) {
+			SharedSecretStore store = mSecretStores.get(username);
+			if (store == null) {
+				String filename = getFilename(username, SECRETS, SECRET_STORE_EXTENSION);
+				if (filename == null) {
+					return null;
+				}
+				store = new SharedSecretStore(filename, username);
+				mSecretStores.put(username, store);
+			}
+			return store;
+		}
+	}
+
+	// secrets saved before the store as one serialized map
+	@SuppressWarnings("unchecked")
+	private Map<SharedSecretKey, byte[]> loadLegacySharedSecrets(String username, String password) {
 		String filename = getFilename(username, SECRETS);
 
 		File file = new File(filename);
@@ -513,6 +580,6 @@ public class StateController {
 				}
 				return null;
 			}
-		}.execute();
+		}.executeOnExecutor(SurespotApplication.DISK_EXECUTOR);
 	}
 }
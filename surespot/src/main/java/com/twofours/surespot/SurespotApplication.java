@@ -15,7 +15,9 @@ import com.twofours.surespot.common.SurespotConfiguration;
 import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
+import com.twofours.surespot.images.BitmapCache;
 import com.twofours.surespot.images.FileCacheController;
+import com.twofours.surespot.images.ThumbnailCacheController;
 import com.twofours.surespot.network.IAsyncCallback;
 import com.twofours.surespot.network.NetworkController;
 import com.twofours.surespot.services.CommunicationService;
@@ -30,6 +32,7 @@ import java.security.Security;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -53,6 +56,8 @@ public class SurespotApplication extends Application {
 	public static final int MAXIMUM_POOL_SIZE = Integer.MAX_VALUE;
 	public static final int KEEP_ALIVE = 1;
 	private static FileCacheController mFileCacheController;
+	private static BitmapCache mBitmapCache;
+	private static ThumbnailCacheController mThumbnailCacheController;
 
 	public static ChatController getChatController() {
 		return mChatController;
@@ -85,6 +90,57 @@ public class SurespotApplication extends Application {
 	public static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS, sPoolWorkQueue,
 			sThreadFactory);
 
+	// work is split into lanes by the resource it's bound by so a long upload can't hold up decrypting incoming messages and so on
+	// lanes are sized here and nowhere else
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+	public static final int CRYPTO_THREADS = Math.max(2, CPU_COUNT);
+	public static final int CRYPTO_QUEUE_DEPTH = 512;
+	// one thread keeps state writes in the order they were made, and its queue is unbounded so it never overflows to the shared pool
+	// where writes could run out of order and at the same time
+	public static final int DISK_THREADS = 1;
+	public static final int DISK_QUEUE_DEPTH = Integer.MAX_VALUE;
+	public static final int NETWORK_THREADS = 4;
+	public static final int NETWORK_QUEUE_DEPTH = 128;
+
+	/**
+	 * Encryption, decryption and other cpu bound work.
+	 */
+	public static final Executor CRYPTO_EXECUTOR = newLaneExecutor("crypto", CRYPTO_THREADS, CRYPTO_QUEUE_DEPTH);
+
+	/**
+	 * Reading and writing state and cache files.
+	 */
+	public static final Executor DISK_EXECUTOR = newLaneExecutor("disk", DISK_THREADS, DISK_QUEUE_DEPTH);
+
+	/**
+	 * Uploads, downloads and other blocking network calls.
+	 */
+	public static final Executor NETWORK_EXECUTOR = newLaneExecutor("network", NETWORK_THREADS, NETWORK_QUEUE_DEPTH);
+
+	private static Executor newLaneExecutor(final String name, int threads, int queueDepth) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger(1);
+
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "surespot " + name + " #" + mCount.getAndIncrement());
+			}
+		};
+
+		// rather than drop work when a bounded lane backs up hand it to the shared pool
+		RejectedExecutionHandler overflowHandler = new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				SurespotLog.w(TAG, "%s lane full, overflowing to shared pool", name);
+				THREAD_POOL_EXECUTOR.execute(r);
+			}
+		};
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueDepth),
+				threadFactory, overflowHandler);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	public void onCreate() {
 		super.onCreate();
 
@@ -112,12 +168,19 @@ public class SurespotApplication extends Application {
 
 		SurespotConfiguration.LoadConfigProperties(getApplicationContext());
 		mStateController = new StateController(this);
+		mBitmapCache = new BitmapCache(this);
 		try {
 			mFileCacheController = new FileCacheController(this);
 		}
 		catch (IOException e) {
 			SurespotLog.w(TAG, e, "could not create file cache controller");
 		}
+		try {
+			mThumbnailCacheController = new ThumbnailCacheController(this);
+		}
+		catch (IOException e) {
+			SurespotLog.w(TAG, e, "could not create thumbnail cache controller");
+		}
 
 		boolean oneTimeGotNoCase = Utils.getSharedPrefsBoolean(this, "66onetime");
 		if (!oneTimeGotNoCase) {
@@ -218,4 +281,12 @@ public class SurespotApplication extends Application {
 	public static FileCacheController getFileCacheController() {
 		return mFileCacheController;
 	}
+
+	public static ThumbnailCacheController getThumbnailCacheController() {
+		return mThumbnailCacheController;
+	}
+
+	public static BitmapCache getBitmapCache() {
+		return mBitmapCache;
+	}
 }
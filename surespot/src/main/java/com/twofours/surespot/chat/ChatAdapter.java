@@ -26,11 +26,13 @@ import com.twofours.surespot.voice.VoiceMessageDownloader;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.ListIterator;
 
 public class ChatAdapter extends BaseAdapter {
     private final static String TAG = "ChatAdapter";
-    private ArrayList<SurespotMessage> mMessages = new ArrayList<SurespotMessage>();
+    private final MessageStore mMessages = new MessageStore();
     private Context mContext;
     private final static int TYPE_US = 0;
     private final static int TYPE_THEM = 1;
@@ -43,7 +45,11 @@ public class ChatAdapter extends BaseAdapter {
     private MessageImageDownloader mMessageImageDownloader;
     private boolean mLoaded;
     private VoiceMessageDownloader mMessageVoiceDownloader;
-    private ArrayList<SurespotControlMessage> mControlMessages = new ArrayList<SurespotControlMessage>();
+    private RowLoadScheduler mRowLoadScheduler;
+    private RowPrefetcher mRowPrefetcher;
+    // control messages received while this chat is open keyed by the id of the message they act on. Nothing is evicted, a target may
+    // only be paged in later, so they go with the adapter when the chat is closed
+    private final HashMap<Integer, ArrayList<SurespotControlMessage>> mControlMessages = new HashMap<Integer, ArrayList<SurespotControlMessage>>();
 
     public ChatAdapter(Context context) {
         SurespotLog.v(TAG, "Constructor.");
@@ -52,9 +58,11 @@ public class ChatAdapter extends BaseAdapter {
         SharedPreferences pm = context.getSharedPreferences(IdentityController.getLoggedInUser(), Context.MODE_PRIVATE);
         mDebugMode = pm.getBoolean("pref_debug_mode", false);
 
+        mRowLoadScheduler = new RowLoadScheduler(this);
         mMessageDecryptor = new MessageDecryptor(this);
         mMessageImageDownloader = new MessageImageDownloader(this);
         mMessageVoiceDownloader = new VoiceMessageDownloader(this);
+        mRowPrefetcher = new RowPrefetcher(this, mMessageDecryptor, mMessageImageDownloader, mMessageVoiceDownloader);
     }
 
     public void doneCheckingSequence() {
@@ -65,33 +73,43 @@ public class ChatAdapter extends BaseAdapter {
         mAllLoadedCallback = callback;
     }
 
+    /**
+     * A copy of the messages in display order, safe to use off the main thread while the adapter changes.
+     */
     public ArrayList<SurespotMessage> getMessages() {
-        return mMessages;
+        synchronized (mMessages) {
+            return new ArrayList<SurespotMessage>(mMessages.getMessages());
+        }
     }
 
     // get the last message that has an id
     public SurespotMessage getLastMessageWithId() {
-        for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(mMessages.size()); iterator.hasPrevious(); ) {
-            SurespotMessage message = iterator.previous();
-            if (message.getId() != null && message.getId() > 0 && !message.isGcm()) {
-                return message;
+        synchronized (mMessages) {
+            ArrayList<SurespotMessage> messages = mMessages.getMessages();
+            for (ListIterator<SurespotMessage> iterator = messages.listIterator(messages.size()); iterator.hasPrevious(); ) {
+                SurespotMessage message = iterator.previous();
+                if (message.getId() != null && message.getId() > 0 && !message.isGcm()) {
+                    return message;
+                }
             }
+            return null;
         }
-        return null;
     }
 
     public SurespotMessage getFirstMessageWithId() {
-        for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(0); iterator.hasNext(); ) {
-            SurespotMessage message = iterator.next();
-            if (message.getId() != null && message.getId() > 0 && !message.isGcm()) {
-                return message;
+        synchronized (mMessages) {
+            for (ListIterator<SurespotMessage> iterator = mMessages.getMessages().listIterator(0); iterator.hasNext(); ) {
+                SurespotMessage message = iterator.next();
+                if (message.getId() != null && message.getId() > 0 && !message.isGcm()) {
+                    return message;
+                }
             }
+            return null;
         }
-        return null;
     }
 
     // update the id and sent status of the message once we received
-    private boolean addOrUpdateMessage(SurespotMessage message, boolean checkSequence, boolean sort) {
+    private boolean addOrUpdateMessage(SurespotMessage message, boolean checkSequence) {
 
         // SurespotLog.v(TAG, "addMessage, could not find message");
 
@@ -111,16 +129,15 @@ public class ChatAdapter extends BaseAdapter {
         //
         // SurespotLog.v(TAG, "addOrUpdateMessage: %s", message);
 
-        int index = mMessages.indexOf(message);
+        SurespotMessage updateMessage = mMessages.find(message);
         boolean added = false;
-        if (index == -1) {
+        if (updateMessage == null) {
 
             mMessages.add(message);
             added = true;
         }
         else {
             // SurespotLog.v(TAG, "addMessage, updating message");
-            SurespotMessage updateMessage = mMessages.get(index);
 
             if (updateMessage != null) {
                 SurespotLog.v(TAG, "updating message: %s", updateMessage);
@@ -130,7 +147,10 @@ public class ChatAdapter extends BaseAdapter {
                 if (message.getId() != null) {
                     // if the id is null 'tis the same as adding the message
                     added = updateMessage.getId() == null;
-                    updateMessage.setId(message.getId());
+                    if (!message.getId().equals(updateMessage.getId())) {
+                        // moves the message to its sorted position
+                        mMessages.setId(updateMessage, message.getId());
+                    }
 
                     if (message.getDateTime() != null) {
                         updateMessage.setDateTime(message.getDateTime());
@@ -171,16 +191,13 @@ public class ChatAdapter extends BaseAdapter {
             }
         }
 
-        if (sort) {
-            sort();
-        }
         return added;
     }
 
     private void insertMessage(SurespotMessage message) {
         synchronized (mMessages) {
-            if (mMessages.indexOf(message) == -1) {
-                mMessages.add(0, message);
+            if (mMessages.find(message) == null) {
+                mMessages.add(message);
             }
             else {
                 SurespotLog.v(TAG, "insertMessage, message already present: %s", message);
@@ -202,11 +219,9 @@ public class ChatAdapter extends BaseAdapter {
         synchronized (mMessages) {
 
             for (SurespotMessage message : messages) {
-                addOrUpdateMessage(message, false, false);
+                addOrUpdateMessage(message, false);
 
             }
-
-            sort();
         }
     }
 
@@ -492,10 +507,10 @@ public class ChatAdapter extends BaseAdapter {
 
     }
 
-    public boolean addOrUpdateMessage(SurespotMessage message, boolean checkSequence, boolean sort, boolean notify) {
+    public boolean addOrUpdateMessage(SurespotMessage message, boolean checkSequence, boolean notify) {
         boolean added = false;
         synchronized (mMessages) {
-            added = addOrUpdateMessage(message, checkSequence, sort);
+            added = addOrUpdateMessage(message, checkSequence);
         }
         if (notify) {
             notifyDataSetChanged();
@@ -512,102 +527,74 @@ public class ChatAdapter extends BaseAdapter {
     }
 
     public SurespotMessage deleteMessageByIv(String iv) {
+        SurespotMessage message = null;
         synchronized (mMessages) {
-
-            SurespotMessage message = null;
-            for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext(); ) {
-                message = iterator.next();
-
-                if (message.getIv().equals(iv)) {
-                    iterator.remove();
-                    message.setDeleted(true);
-                    notifyDataSetChanged();
-                    return message;
-                }
+            message = mMessages.getByIv(iv);
+            if (message == null) {
+                return null;
             }
+            mMessages.remove(message);
         }
 
-        return null;
+        message.setDeleted(true);
+        notifyDataSetChanged();
+        return message;
     }
 
     public SurespotMessage deleteMessageById(Integer id) {
         SurespotMessage message = null;
-        for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(mMessages.size()); iterator.hasPrevious(); ) {
-            message = iterator.previous();
-
-            Integer localId = message.getId();
-            if (localId != null && localId.equals(id)) {
-                SurespotLog.v(TAG, "deleting message");
-                message.setDeleted(true);
-                iterator.remove();
-                notifyDataSetChanged();
-                return message;
+        synchronized (mMessages) {
+            message = mMessages.getById(id);
+            if (message == null) {
+                return null;
             }
+            SurespotLog.v(TAG, "deleting message");
+            mMessages.remove(message);
         }
 
-        return null;
+        message.setDeleted(true);
+        notifyDataSetChanged();
+        return message;
     }
 
     public SurespotMessage getMessageById(Integer id) {
-        SurespotMessage message = null;
-        for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext(); ) {
-            message = iterator.next();
-
-            Integer localId = message.getId();
-            if (localId != null && localId.equals(id)) {
-
-                return message;
-            }
+        synchronized (mMessages) {
+            return mMessages.getById(id);
         }
-        return null;
     }
 
     public SurespotMessage getMessageByIv(String iv) {
-        SurespotMessage message = null;
-        for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(mMessages.size()); iterator.hasPrevious(); ) {
-            message = iterator.previous();
-
-            String localIv = message.getIv();
-            if (localIv != null && localIv.equals(iv)) {
-                return message;
-            }
+        synchronized (mMessages) {
+            return mMessages.getByIv(iv);
         }
-
-        return null;
     }
 
-    public void sort() {
-        Collections.sort(mMessages);
-
-    }
-
-    public void deleteAllMessages(int utaiMessageId) {
-
+    public void deleteAllMessages(final int utaiMessageId) {
         synchronized (mMessages) {
-
-            //
-            // mMessages.clear();
-            for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext(); ) {
-                SurespotMessage message = iterator.next();
-
-                if (message.getId() == null || (message.getId() != null && message.getId() <= utaiMessageId)) {
-                    message.setDeleted(true);
-                    iterator.remove();
+            ArrayList<SurespotMessage> deleted = mMessages.removeAll(new MessageStore.Filter() {
+                @Override
+                public boolean matches(SurespotMessage message) {
+                    return message.getId() == null || message.getId() <= utaiMessageId;
                 }
+            });
+            for (SurespotMessage message : deleted) {
+                message.setDeleted(true);
             }
         }
     }
 
-    public void deleteTheirMessages(int utaiMessageId) {
+    public void deleteTheirMessages(final int utaiMessageId) {
+        final String loggedInUser = IdentityController.getLoggedInUser();
         synchronized (mMessages) {
-            for (ListIterator<SurespotMessage> iterator = mMessages.listIterator(); iterator.hasNext(); ) {
-                SurespotMessage message = iterator.next();
-
-                // if it's not our message, delete it
-                if (message.getId() != null && message.getId() <= utaiMessageId && !message.getFrom().equals(IdentityController.getLoggedInUser())) {
-                    message.setDeleted(true);
-                    iterator.remove();
+            ArrayList<SurespotMessage> deleted = mMessages.removeAll(new MessageStore.Filter() {
+                @Override
+                public boolean matches(SurespotMessage message) {
+                    // if it's not our message, delete it
+                    return message.getId() != null && message.getId() <= utaiMessageId && !message.getFrom().equals(loggedInUser);
                 }
+            });
+            for (SurespotMessage message : deleted) {
+                message.setDeleted(true);
             }
         }
     }
@@ -625,7 +612,7 @@ public class ChatAdapter extends BaseAdapter {
         synchronized (mMessages) {
             if (!mLoaded) {
 
-                for (SurespotMessage message : mMessages) {
+                for (SurespotMessage message : mMessages.getMessages()) {
                     if (message.isLoading() && !message.isLoaded()) {
                         return;
                     }
@@ -641,18 +628,77 @@ public class ChatAdapter extends BaseAdapter {
         return mLoaded;
     }
 
+    public RowLoadScheduler getRowLoadScheduler() {
+        return mRowLoadScheduler;
+    }
+
+    /**
+     * Called by the list as it scrolls so row work is ordered by what's on screen and the rows coming up are prefetched.
+     */
+    public void setVisibleRange(int first, int last) {
+        mRowLoadScheduler.setVisibleRange(first, last);
+        mRowPrefetcher.onScroll(first, last);
+    }
+
+    /**
+     * @return the message's row or -1 if it's not in the adapter
+     */
+    public int getPosition(SurespotMessage message) {
+        synchronized (mMessages) {
+            return mMessages.indexOf(message);
+        }
+    }
+
     public Context getContext() {
         return mContext;
     }
 
     public void addControlMessage(SurespotControlMessage message) {
+        Integer messageId = getTargetMessageId(message);
+        if (messageId == null) {
+            return;
+        }
+
         synchronized (mControlMessages) {
-            mControlMessages.add(message);
+            ArrayList<SurespotControlMessage> controlMessages = mControlMessages.get(messageId);
+            if (controlMessages == null) {
+                controlMessages = new ArrayList<SurespotControlMessage>(1);
+                mControlMessages.put(messageId, controlMessages);
+            }
+            controlMessages.add(message);
         }
     }
 
-    public ArrayList<SurespotControlMessage> getControlMessages() {
-        return mControlMessages;
+    /**
+     * @return the control messages received this session that act on the message with this id
+     */
+    public List<SurespotControlMessage> getControlMessages(Integer messageId) {
+        if (messageId == null) {
+            return Collections.emptyList();
+        }
+
+        synchronized (mControlMessages) {
+            ArrayList<SurespotControlMessage> controlMessages = mControlMessages.get(messageId);
+            if (controlMessages == null) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<SurespotControlMessage>(controlMessages);
+        }
+    }
+
+    private static Integer getTargetMessageId(SurespotControlMessage message) {
+        String moreData = message.getMoreData();
+        if (moreData == null) {
+            return null;
+        }
+
+        try {
+            return Integer.parseInt(moreData);
+        }
+        catch (NumberFormatException e) {
+            SurespotLog.w(TAG, e, "control message has no target message id: %s", moreData);
+            return null;
+        }
     }
 
 }
@@ -8,24 +8,32 @@ import android.support.v4.view.ViewPager;
 import android.text.TextUtils;
 import android.view.MenuItem;
 
+import com.google.common.collect.ComparisonChain;
+import com.google.gson.stream.JsonReader;
 import com.twofours.surespot.R;
 import com.twofours.surespot.StateController;
 import com.twofours.surespot.StateController.FriendState;
 import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.chat.MessageDataParser.LatestData;
+import com.twofours.surespot.chat.MessageDataParser.MessageData;
 import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
 import com.twofours.surespot.encryption.EncryptionController;
+import com.twofours.surespot.encryption.MessageBatchDecryptor;
 import com.twofours.surespot.friends.AutoInviteData;
 import com.twofours.surespot.friends.Friend;
 import com.twofours.surespot.friends.FriendAdapter;
 import com.twofours.surespot.identity.IdentityController;
 import com.twofours.surespot.images.FileCacheController;
+import com.twofours.surespot.images.ThumbnailCacheController;
 import com.twofours.surespot.images.MessageImageDownloader;
 import com.twofours.surespot.network.IAsyncCallback;
 import com.twofours.surespot.network.MainThreadCallbackWrapper;
+import com.twofours.surespot.network.MainThreadParsingCallbackWrapper;
 import com.twofours.surespot.network.NetworkController;
 import com.twofours.surespot.services.CommunicationService;
+import com.twofours.surespot.services.CredentialCachingService;
 import com.viewpagerindicator.TitlePageIndicator;
 
 import org.json.JSONArray;
@@ -36,12 +44,17 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -55,6 +68,8 @@ public class ChatController {
 
     public HashMap<String, ChatAdapter> mChatAdapters;
     private HashMap<String, Integer> mEarliestMessage;
+    // socket messages in arrival order, only touched on the main thread
+    private final ArrayDeque<IncomingMessage> mIncomingMessages = new ArrayDeque<IncomingMessage>();
 
     private FriendAdapter mFriendAdapter;
     private ChatPagerAdapter mChatPagerAdapter;
@@ -195,6 +210,8 @@ public class ChatController {
         final String otherUser = message.getOtherUser();
 
         final ChatAdapter chatAdapter = mChatAdapters.get(otherUser);
+        final IncomingMessage incoming = new IncomingMessage(message, chatAdapter);
+        mIncomingMessages.add(incoming);
 
         // if the adapter is open add the message
         if (chatAdapter != null) {
@@ -240,100 +257,110 @@ public class ChatController {
                 }
 
                 protected void onPostExecute(Void result) {
+                    incoming.mReady = true;
+                    applyIncomingMessages();
+                }
+            }.executeOnExecutor(SurespotApplication.CRYPTO_EXECUTOR);
+        }
+        else {
+            SurespotLog.d(TAG, "ChatAdapter not open for user: %s", otherUser);
+            incoming.mReady = true;
+            applyIncomingMessages();
+        }
 
-                    boolean added = applyControlMessages(chatAdapter, message, false, true, true);
-                    scrollToEnd(otherUser);
+    }
 
-                    Friend friend = mFriendAdapter.getFriend(otherUser);
-                    if (friend != null) {
-                        int messageId = message.getId();
+    // messages decrypt in parallel but friend ids, unread counts and the chat only move forward if they're applied in the order they came
+    private void applyIncomingMessages() {
+        while (!mIncomingMessages.isEmpty() && mIncomingMessages.peek().mReady) {
+            IncomingMessage incoming = mIncomingMessages.poll();
+            if (incoming.mChatAdapter != null) {
+                applyIncomingMessage(incoming.mChatAdapter, incoming.mMessage);
+            }
+            else {
+                Friend friend = mFriendAdapter.getFriend(incoming.mMessage.getOtherUser());
+                if (friend != null) {
+                    int messageId = incoming.mMessage.getId();
 
-                        // always update the available id
-                        friend.setAvailableMessageId(messageId, false);
+                    // always update the available id
+                    friend.setAvailableMessageId(messageId, false);
+                }
 
-                        // if the chat is showing set the last viewed id the id of the message we just received
-                        if (otherUser.equals(mCurrentChat)) {
+                mFriendAdapter.notifyDataSetChanged();
+                mFriendAdapter.sort();
+            }
+        }
+    }
 
-                            friend.setLastViewedMessageId(messageId);
+    private void applyIncomingMessage(ChatAdapter chatAdapter, SurespotMessage message) {
+        String otherUser = message.getOtherUser();
+        boolean added = applyControlMessages(chatAdapter, message, false, true);
+        scrollToEnd(otherUser);
 
-                            // if it was a voice message from the other user set play flag
-                            // TODO wrap in preference
-                            if (!ChatUtils.isMyMessage(message) && message.getMimeType().equals(SurespotConstants.MimeTypes.M4A)) {
-                                message.setPlayMedia(true);
-                            }
+        Friend friend = mFriendAdapter.getFriend(otherUser);
+        if (friend != null) {
+            int messageId = message.getId();
 
-                        }
-                        // chat not showing
-                        else {
-                            // if it's my message increment the count by one to account for it as I may have unread messages from the
-                            // other user; we
-                            // can't just set the last viewed to the latest message
-                            if (ChatUtils.isMyMessage(message) && added) {
-                                int adjustedLastViewedId = friend.getLastViewedMessageId() + 1;
-                                if (adjustedLastViewedId < messageId) {
-                                    friend.setLastViewedMessageId(adjustedLastViewedId);
-                                }
-                                else {
-                                    friend.setLastViewedMessageId(messageId);
-                                }
-                            }
-                        }
+            // always update the available id
+            friend.setAvailableMessageId(messageId, false);
 
-                        mFriendAdapter.sort();
-                        mFriendAdapter.notifyDataSetChanged();
-                    }
-                }
-            }.execute();
-        }
-        else {
-            SurespotLog.d(TAG, "ChatAdapter not open for user: %s", otherUser);
-            //new AsyncTask<Void, Void, Void>() {
+            // if the chat is showing set the last viewed id the id of the message we just received
+            if (otherUser.equals(mCurrentChat)) {
 
-//				@Override
-//				protected Void doInBackground(Void... params) {params
-            Friend friend = mFriendAdapter.getFriend(otherUser);
-            if (friend != null) {
-                int messageId = message.getId();
+                friend.setLastViewedMessageId(messageId);
+
+                // if it was a voice message from the other user set play flag
+                // TODO wrap in preference
+                if (!ChatUtils.isMyMessage(message) && message.getMimeType().equals(SurespotConstants.MimeTypes.M4A)) {
+                    message.setPlayMedia(true);
+                }
 
-                // always update the available id
-                friend.setAvailableMessageId(messageId, false);
+            }
+            // chat not showing
+            else {
+                // if it's my message increment the count by one to account for it as I may have unread messages from the
+                // other user; we
+                // can't just set the last viewed to the latest message
+                if (ChatUtils.isMyMessage(message) && added) {
+                    int adjustedLastViewedId = friend.getLastViewedMessageId() + 1;
+                    if (adjustedLastViewedId < messageId) {
+                        friend.setLastViewedMessageId(adjustedLastViewedId);
+                    }
+                    else {
+                        friend.setLastViewedMessageId(messageId);
+                    }
+                }
             }
 
-//					return null;
-//				};
-//
-//				@Override
-//				protected void onPostExecute(Void aVoid) {
-            mFriendAdapter.notifyDataSetChanged();
             mFriendAdapter.sort();
+            mFriendAdapter.notifyDataSetChanged();
+        }
+    }
 
-//				};
-//			}.execute();
+    private static class IncomingMessage {
+        private final SurespotMessage mMessage;
+        private final ChatAdapter mChatAdapter;
+        // decrypted, or didn't need to be
+        private boolean mReady;
 
+        private IncomingMessage(SurespotMessage message, ChatAdapter chatAdapter) {
+            mMessage = message;
+            mChatAdapter = chatAdapter;
         }
-
     }
 
-
-    private boolean applyControlMessages(ChatAdapter chatAdapter, SurespotMessage message, boolean checkSequence, boolean sort, boolean notify) {
+    private boolean applyControlMessages(ChatAdapter chatAdapter, SurespotMessage message, boolean checkSequence, boolean notify) {
         // see if we have applicable control messages and apply them if necessary
-        ArrayList<SurespotControlMessage> controlMessages = chatAdapter.getControlMessages();
-        ArrayList<SurespotControlMessage> applicableControlMessages = new ArrayList<SurespotControlMessage>();
-        for (SurespotControlMessage controlMessage : controlMessages) {
-            int messageId = Integer.parseInt(controlMessage.getMoreData());
-            if (message.getId() == messageId) {
-                applicableControlMessages.add(controlMessage);
-            }
-        }
+        List<SurespotControlMessage> applicableControlMessages = chatAdapter.getControlMessages(message.getId());
         boolean added = false;
 
         if (applicableControlMessages.size() == 0) {
 
-            added = chatAdapter.addOrUpdateMessage(message, checkSequence, sort, notify);
+            added = chatAdapter.addOrUpdateMessage(message, checkSequence, notify);
 
         }
         else {
-            added = chatAdapter.addOrUpdateMessage(message, checkSequence, false, false);
+            added = chatAdapter.addOrUpdateMessage(message, checkSequence, false);
 
             for (SurespotControlMessage controlMessage : applicableControlMessages) {
                 SurespotLog.d(TAG, "applying control message %s: to message %s", controlMessage, message);
@@ -392,6 +419,47 @@ public class ChatController {
 
     // message handling shiznit
     void loadEarlierMessages(final String username, final IAsyncCallback<Boolean> callback) {
+        Integer firstMessageId = mEarliestMessage.get(username);
+        if (firstMessageId == null) {
+            firstMessageId = getEarliestMessageId(username);
+            mEarliestMessage.put(username, firstMessageId);
+        }
+
+        if (firstMessageId == null || firstMessageId <= 1 || TextUtils.isEmpty(mUsername)) {
+            loadEarlierMessagesFromServer(username, callback);
+            return;
+        }
+
+        // page in what we have saved before asking the server
+        final Integer beforeId = firstMessageId;
+        final String spot = ChatUtils.getSpot(mUsername, username);
+        final String ourUsername = mUsername;
+        new AsyncTask<Void, Void, ArrayList<SurespotMessage>>() {
+            @Override
+            protected ArrayList<SurespotMessage> doInBackground(Void... params) {
+                return SurespotApplication.getStateController().loadMessagePage(ourUsername, spot, beforeId, SurespotConstants.LOAD_MESSAGE_PAGE_SIZE);
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<SurespotMessage> messages) {
+                ChatAdapter chatAdapter = mChatAdapters.get(username);
+                if (messages.isEmpty() || chatAdapter == null) {
+                    loadEarlierMessagesFromServer(username, callback);
+                    return;
+                }
+
+                for (int i = messages.size() - 1; i >= 0; i--) {
+                    chatAdapter.insertMessage(messages.get(i), false);
+                }
+
+                SurespotLog.d(TAG, "%s: loaded: %d earlier messages from disk.", username, messages.size());
+                mEarliestMessage.put(username, messages.get(0).getId());
+                callback.handleResponse(true);
+            }
+        }.executeOnExecutor(SurespotApplication.DISK_EXECUTOR);
+    }
+
+    private void loadEarlierMessagesFromServer(final String username, final IAsyncCallback<Boolean> callback) {
         if (SurespotApplication.getCommunicationService().getConnectionState() == CommunicationService.STATE_CONNECTED) {
 
             // mLoading = true;
@@ -417,7 +485,15 @@ public class ChatController {
                     // final int fMessageId = firstMessageId;
                     final ChatAdapter chatAdapter = mChatAdapters.get(username);
 
-                    mNetworkController.getEarlierMessages(username, firstMessageId, new MainThreadCallbackWrapper(new MainThreadCallbackWrapper.MainThreadCallback() {
+                    mNetworkController.getEarlierMessages(username, firstMessageId, new MainThreadParsingCallbackWrapper<List<SurespotMessage>>(
+                            new MainThreadParsingCallbackWrapper.ResponseParser<List<SurespotMessage>>() {
+                                @Override
+                                public List<SurespotMessage> parse(JsonReader reader) throws IOException {
+                                    Map<String, List<SurespotMessage>> messages = new LinkedHashMap<String, List<SurespotMessage>>();
+                                    messages.put(username, MessageDataParser.parseMessages(reader));
+                                    return MessageBatchDecryptor.decryptSync(mContext, messages).get(username);
+                                }
+                            }, new MainThreadParsingCallbackWrapper.MainThreadParsingCallback<List<SurespotMessage>>() {
                         @Override
                         public void onFailure(Call call, IOException e) {
                             SurespotLog.i(TAG, e, "%s: getEarlierMessages", username);
@@ -426,35 +502,22 @@ public class ChatController {
                         }
 
                         @Override
-                        public void onResponse(Call call, Response response, String responseString) throws IOException {
+                        public void onResponse(Call call, Response response, List<SurespotMessage> messages) throws IOException {
                             if (response.isSuccessful()) {
-                                // if (getActivity() != null) {
                                 SurespotMessage message = null;
-
-                                try {
-                                    JSONArray jsonArray = new JSONArray(responseString);
-
-                                    for (int i = jsonArray.length() - 1; i >= 0; i--) {
-                                        JSONObject jsonMessage = jsonArray.getJSONObject(i);
-                                        message = SurespotMessage.toSurespotMessage(jsonMessage);
-                                        chatAdapter.insertMessage(message, false);
-                                    }
-
-                                    SurespotLog.d(TAG, "%s: loaded: %d earlier messages from the server.", username, jsonArray.length());
-                                    if (message != null) {
-                                        mEarliestMessage.put(username, message.getId());
-                                        // chatAdapter.notifyDataSetChanged();
-                                    }
-
-                                    // chatAdapter.setLoading(false);
-                                    callback.handleResponse(jsonArray.length() > 0);
-                                }
-                                catch (JSONException e) {
-                                    SurespotLog.e(TAG, e, "%s: error loading earlier messages", username);
-                                    callback.handleResponse(false);
+                                for (int i = messages.size() - 1; i >= 0; i--) {
+                                    message = messages.get(i);
+                                    chatAdapter.insertMessage(message, false);
                                 }
 
+                                SurespotLog.d(TAG, "%s: loaded: %d earlier messages from the server.", username, messages.size());
+                                if (message != null) {
+                                    mEarliestMessage.put(username, message.getId());
+                                    // chatAdapter.notifyDataSetChanged();
+                                }
 
+                                // chatAdapter.setLoading(false);
+                                callback.handleResponse(messages.size() > 0);
                             }
                             else {
                                 SurespotLog.i(TAG, "%s: getEarlierMessages error", username);
@@ -462,8 +525,6 @@ public class ChatController {
                                 callback.handleResponse(false);
                             }
                         }
-
-
                     }));
                 }
                 else {
@@ -499,7 +560,23 @@ public class ChatController {
             }
         }
 
-        mNetworkController.getLatestData(mLatestUserControlId, spotIds, new MainThreadCallbackWrapper(new MainThreadCallbackWrapper.MainThreadCallback() {
+        // only bother decrypting messages for open chats
+        final Set<String> openChats = new HashSet<String>(mChatAdapters.keySet());
+        mNetworkController.getLatestData(mLatestUserControlId, spotIds, new MainThreadParsingCallbackWrapper<LatestData>(
+                new MainThreadParsingCallbackWrapper.ResponseParser<LatestData>() {
+                    @Override
+                    public LatestData parse(JsonReader reader) throws IOException {
+                        LatestData latestData = MessageDataParser.parseLatestData(reader);
+                        Map<String, List<SurespotMessage>> messages = new LinkedHashMap<String, List<SurespotMessage>>();
+                        for (MessageData messageData : latestData.messageData) {
+                            if (messageData.messages != null && openChats.contains(messageData.username)) {
+                                messages.put(messageData.username, messageData.messages);
+                            }
+                        }
+                        MessageBatchDecryptor.decryptSync(mContext, messages);
+                        return latestData;
+                    }
+                }, new MainThreadParsingCallbackWrapper.MainThreadParsingCallback<LatestData>() {
                     @Override
                     public void onFailure(Call call, IOException e) {
                         Utils.makeToast(mContext, mContext.getString(R.string.loading_latest_messages_failed));
@@ -508,21 +585,12 @@ public class ChatController {
                     }
 
                     @Override
-                    public void onResponse(Call call, Response response, String responseString) throws IOException {
+                    public void onResponse(Call call, Response response, LatestData latestData) throws IOException {
                         if (response.isSuccessful()) {
-                            JSONObject jsonResponse = null;
-                            try {
-                                jsonResponse = new JSONObject(responseString);
-                                SurespotLog.v(TAG, "getlatestData success, response: %s, statusCode: %d", jsonResponse, response.code());
-                            }
-                            catch (JSONException e) {
-                                Utils.makeToast(mContext, mContext.getString(R.string.loading_latest_messages_failed));
-                                SurespotLog.w(TAG, e, "error getLatestData");
-                                setProgress(null, false);
-                                return;
-                            }
+                            SurespotLog.v(TAG, "getlatestData success, message data for %d users, statusCode: %d", latestData.messageData.size(),
+                                    response.code());
 
-                            final boolean hasSigs = jsonResponse.has("sigs");
+                            final boolean hasSigs = latestData.hasSigs;
                             new AsyncTask<Void, Void, Void>() {
                                 @Override
                                 protected Void doInBackground(Void... voids) {
@@ -548,78 +616,38 @@ public class ChatController {
                                     }
                                     return null;
                                 }
-                            }.execute();
-
-                            JSONObject conversationIds = jsonResponse.optJSONObject("conversationIds");
+                            }.executeOnExecutor(SurespotApplication.NETWORK_EXECUTOR);
 
                             Friend friend = null;
-                            if (conversationIds != null) {
-                                Iterator i = conversationIds.keys();
-                                while (i.hasNext()) {
-                                    String spot = (String) i.next();
-                                    try {
-                                        Integer availableId = conversationIds.getInt(spot);
-                                        String user = ChatUtils.getOtherSpotUser(spot, mUsername);
-                                        // update available ids
-                                        friend = mFriendAdapter.getFriend(user);
-                                        if (friend != null) {
-                                            friend.setAvailableMessageId(availableId, mayBeCacheClear);
-                                        }
-                                    }
-                                    catch (Exception e) {
-                                        SurespotLog.w(TAG, e, "getlatestData");
-                                    }
+                            for (Entry<String, Integer> entry : latestData.conversationIds.entrySet()) {
+                                String user = ChatUtils.getOtherSpotUser(entry.getKey(), mUsername);
+                                // update available ids
+                                friend = mFriendAdapter.getFriend(user);
+                                if (friend != null) {
+                                    friend.setAvailableMessageId(entry.getValue(), mayBeCacheClear);
                                 }
                             }
 
-                            JSONObject controlIds = jsonResponse.optJSONObject("controlIds");
-                            if (controlIds != null) {
-                                Iterator i = conversationIds.keys();
-                                while (i.hasNext()) {
-                                    String spot = (String) i.next();
-                                    try {
-                                        if (controlIds.has(spot)) {
-                                            Integer availableId = controlIds.getInt(spot);
-                                            String user = ChatUtils.getOtherSpotUser(spot, mUsername);
-                                            // update available ids
-                                            friend = mFriendAdapter.getFriend(user);
-                                            if (friend != null) {
-                                                friend.setAvailableMessageControlId(availableId);
-                                            }
-                                        }
-                                    }
-                                    catch (JSONException e) {
-                                        SurespotLog.w(TAG, e, "getlatestData");
-                                    }
+                            for (Entry<String, Integer> entry : latestData.controlIds.entrySet()) {
+                                String user = ChatUtils.getOtherSpotUser(entry.getKey(), mUsername);
+                                // update available ids
+                                friend = mFriendAdapter.getFriend(user);
+                                if (friend != null) {
+                                    friend.setAvailableMessageControlId(entry.getValue());
                                 }
                             }
 
-                            JSONArray userControlMessages = jsonResponse.optJSONArray("userControlMessages");
-                            if (userControlMessages != null) {
-                                handleControlMessages(mUsername, userControlMessages);
+                            if (latestData.userControlMessages != null) {
+                                handleControlMessages(mUsername, latestData.userControlMessages);
                             }
 
-                            JSONArray messageDatas = jsonResponse.optJSONArray("messageData");
-                            if (messageDatas != null) {
-                                for (int i = 0; i < messageDatas.length(); i++) {
-                                    try {
-                                        JSONObject messageData = messageDatas.getJSONObject(i);
-                                        String friendName = messageData.getString("username");
-
-                                        JSONArray controlMessages = messageData.optJSONArray("controlMessages");
-                                        if (controlMessages != null) {
-                                            handleControlMessages(friendName, controlMessages);
-                                        }
-
-                                        JSONArray messages = messageData.optJSONArray("messages");
-                                        if (messages != null) {
-                                            handleMessages(friendName, messages, mayBeCacheClear);
-                                        }
+                            for (MessageData messageData : latestData.messageData) {
+                                if (messageData.controlMessages != null) {
+                                    handleControlMessages(messageData.username, messageData.controlMessages);
+                                }
 
-                                    }
-                                    catch (JSONException e) {
-                                        SurespotLog.w(TAG, e, "getlatestData");
-                                    }
+                                if (messageData.messages != null) {
+                                    handleMessages(messageData.username, messageData.messages, mayBeCacheClear);
                                 }
                             }
 
@@ -734,7 +762,19 @@ public class ChatController {
         if (fetchMessageId > -1 || fetchControlMessageId > -1) {
             setProgress(username, true);
 
-            mNetworkController.getMessageData(username, fetchMessageId, fetchControlMessageId, new MainThreadCallbackWrapper(new MainThreadCallbackWrapper.MainThreadCallback() {
+            mNetworkController.getMessageData(username, fetchMessageId, fetchControlMessageId, new MainThreadParsingCallbackWrapper<MessageData>(
+                    new MainThreadParsingCallbackWrapper.ResponseParser<MessageData>() {
+                        @Override
+                        public MessageData parse(JsonReader reader) throws IOException {
+                            MessageData messageData = MessageDataParser.parseMessageData(reader);
+                            if (messageData.messages != null && (fetchMessageId > -1 || forceMessageUpdate)) {
+                                Map<String, List<SurespotMessage>> messages = new LinkedHashMap<String, List<SurespotMessage>>();
+                                messages.put(username, messageData.messages);
+                                MessageBatchDecryptor.decryptSync(mContext, messages);
+                            }
+                            return messageData;
+                        }
+                    }, new MainThreadParsingCallbackWrapper.MainThreadParsingCallback<MessageData>() {
 
                 @Override
                 public void onFailure(Call call, IOException e) {
@@ -743,29 +783,16 @@ public class ChatController {
                 }
 
                 @Override
-                public void onResponse(Call call, Response response, String responseString) throws IOException {
+                public void onResponse(Call call, Response response, MessageData messageData) throws IOException {
                     if (response.isSuccessful()) {
-                        JSONObject json;
-                        try {
-                            json = new JSONObject(responseString);
-                        }
-                        catch (JSONException e) {
-                            SurespotLog.w(TAG, e, "error getting latest message data for user: %s", username);
-                            setProgress(username, false);
-                            return;
+                        if (messageData.controlMessages != null) {
+                            handleControlMessages(username, messageData.controlMessages);
                         }
 
-                        JSONArray controlMessages = json.optJSONArray("controlMessages");
-                        if (controlMessages != null) {
-                            handleControlMessages(username, controlMessages);
-                        }
-
-                        JSONArray messages = json.optJSONArray("messages");
-
                         // don't update messages if we didn't query for them
                         // this prevents setting message state to error before we get the true result
                         if (fetchMessageId > -1 || forceMessageUpdate) {
-                            handleMessages(username, messages, false);
+                            handleMessages(username, messageData.messages, false);
                         }
 
                         setProgress(username, false);
@@ -778,36 +805,28 @@ public class ChatController {
 
     }
 
-    private void handleControlMessages(String username, JSONArray jsonArray) {
+    private void handleControlMessages(String username, List<SurespotControlMessage> controlMessages) {
         SurespotLog.d(TAG, "%s: handleControlMessages", username);
         final ChatAdapter chatAdapter = mChatAdapters.get(username);
 
         SurespotControlMessage message = null;
         boolean messageActivity = false;
         boolean userActivity = false;
-        for (int i = 0; i < jsonArray.length(); i++) {
-            try {
-                JSONObject jsonMessage = new JSONObject(jsonArray.getString(i));
-                message = SurespotControlMessage.toSurespotControlMessage(jsonMessage);
-                handleControlMessage(chatAdapter, message, false, false);
-                // if it's a system message from another user then check version
-                if (message.getType().equals("user")) {
-                    userActivity = true;
-                }
-                else if (message.getType().equals("message")) {
-                    messageActivity = true;
-                }
-
+        for (SurespotControlMessage controlMessage : controlMessages) {
+            message = controlMessage;
+            handleControlMessage(chatAdapter, message, false, false);
+            // if it's a system message from another user then check version
+            if (message.getType().equals("user")) {
+                userActivity = true;
             }
-            catch (JSONException e) {
-                SurespotLog.w(TAG, e, "%s: error creating chat message", username);
+            else if (message.getType().equals("message")) {
+                messageActivity = true;
             }
-
         }
 
         if (message != null) {
 
-            SurespotLog.d(TAG, "%s: loaded: %d latest control messages from the server.", username, jsonArray.length());
+            SurespotLog.d(TAG, "%s: loaded: %d latest control messages from the server.", username, controlMessages.size());
 
             if (messageActivity || userActivity) {
                 Friend friend = mFriendAdapter.getFriend(username);
@@ -817,7 +836,6 @@ public class ChatController {
 
                         if (chatAdapter != null) {
                             friend.setLastReceivedMessageControlId(message.getId());
-                            chatAdapter.sort();
                             chatAdapter.notifyDataSetChanged();
                         }
 
@@ -1068,6 +1086,10 @@ public class ChatController {
             if (fcc != null) {
                 fcc.clearCache();
             }
+            ThumbnailCacheController tcc = SurespotApplication.getThumbnailCacheController();
+            if (tcc != null) {
+                tcc.clearCache();
+            }
 
             // or you
             mFriendAdapter.removeFriend(deletedUser);
@@ -1107,6 +1129,13 @@ public class ChatController {
                 mNetworkController.removeCacheEntry(dMessage.getData());
             }
 
+            if (dMessage.getMimeType().equals(SurespotConstants.MimeTypes.IMAGE)) {
+                ThumbnailCacheController tcc = SurespotApplication.getThumbnailCacheController();
+                if (tcc != null) {
+                    tcc.removeThumbnail(dMessage);
+                }
+            }
+
             boolean myMessage = dMessage.getFrom().equals(mUsername);
 
             // if i sent the delete, or it's not my message then delete it
@@ -1118,7 +1147,10 @@ public class ChatController {
         }
     }
 
-    private void handleMessages(String username, JSONArray jsonMessages, boolean mayBeCacheClear) {
+    /**
+     * Decrypt the messages for each user in the background and add each user's messages to their chat in one pass.
+     */
+    private void handleMessages(String username, List<SurespotMessage> messages, boolean mayBeCacheClear) {
         SurespotLog.d(TAG, "%s: handleMessages", username);
         final ChatAdapter chatAdapter = mChatAdapters.get(username);
         if (chatAdapter == null) {
@@ -1126,37 +1158,30 @@ public class ChatController {
         }
 
         // if we received new messages
-        if (jsonMessages != null) {
+        if (messages != null) {
 
             int sentByMeCount = 0;
 
             SurespotMessage lastMessage = null;
-            try {
-                SurespotLog.d(TAG, "%s: loaded: %d messages from the server", username, jsonMessages.length());
-                for (int i = 0; i < jsonMessages.length(); i++) {
-
-                    lastMessage = SurespotMessage.toSurespotMessage(jsonMessages.getJSONObject(i));
-                    boolean myMessage = lastMessage.getFrom().equals(mUsername);
-
-                    if (myMessage) {
-                        if (lastMessage.getMimeType().equals(SurespotConstants.MimeTypes.IMAGE) || lastMessage.getMimeType().equals(SurespotConstants.MimeTypes.M4A)) {
-                            handleCachedFile(chatAdapter, lastMessage);
-                        }
+            SurespotLog.d(TAG, "%s: loaded: %d messages from the server", username, messages.size());
+            for (SurespotMessage message : messages) {
+                lastMessage = message;
+                boolean myMessage = lastMessage.getFrom().equals(mUsername);
+
+                if (myMessage) {
+                    if (lastMessage.getMimeType().equals(SurespotConstants.MimeTypes.IMAGE) || lastMessage.getMimeType().equals(SurespotConstants.MimeTypes.M4A)) {
+                        handleCachedFile(chatAdapter, lastMessage);
                     }
+                }
 
-                    boolean added = applyControlMessages(chatAdapter, lastMessage, false, false, false);
+                boolean added = applyControlMessages(chatAdapter, lastMessage, false, false);
 
-                    SurespotApplication.getCommunicationService().messageSendCompleted(lastMessage);
-                    SurespotApplication.getCommunicationService().removeQueuedMessage(lastMessage);
-                    if (added && myMessage) {
-                        sentByMeCount++;
-                    }
+                SurespotApplication.getCommunicationService().messageSendCompleted(lastMessage);
+                SurespotApplication.getCommunicationService().removeQueuedMessage(lastMessage);
+                if (added && myMessage) {
+                    sentByMeCount++;
                 }
             }
-            catch (JSONException e) {
-                SurespotLog.w(TAG, e, "jsonStringsToMessages");
-
-            }
 
             if (lastMessage != null) {
                 Friend friend = mFriendAdapter.getFriend(username);
@@ -1190,7 +1215,6 @@ public class ChatController {
             }
         }
 
-        chatAdapter.sort();
         chatAdapter.doneCheckingSequence();
         // mark messages left in chatAdapter with no id as errored
         // chatAdapter.markErrored();
@@ -1241,11 +1265,14 @@ public class ChatController {
         if (!TextUtils.isEmpty(mUsername)) {
             String spot = ChatUtils.getSpot(mUsername, username);
             ChatAdapter chatAdapter = mChatAdapters.get(username);
+            // just the newest page, loadEarlierMessages pages in the rest as they scroll up
+            ArrayList<SurespotMessage> messages = SurespotApplication.getStateController().loadMessagePage(mUsername, spot, null,
+                    SurespotConstants.LOAD_MESSAGE_PAGE_SIZE);
             if (replace) {
-                chatAdapter.setMessages(SurespotApplication.getStateController().loadMessages(mUsername, spot));
+                chatAdapter.setMessages(messages);
             }
             else {
-                chatAdapter.addOrUpdateMessages(SurespotApplication.getStateController().loadMessages(mUsername, spot));
+                chatAdapter.addOrUpdateMessages(messages);
             }
         }
 
@@ -1286,6 +1313,7 @@ public class ChatController {
 
         mFriendAdapter.setFriends(friends);
         mFriendAdapter.setLoading(false);
+        warmSharedSecrets();
 
         //SurespotApplication.getCommunicationService().loadUnsentMessages();
     }
@@ -1490,7 +1518,7 @@ public class ChatController {
                     ChatUtils.base64EncodeNowrap(iv)));
 
 
-            chatAdapter.addOrUpdateMessage(chatMessage, false, true, true);
+            chatAdapter.addOrUpdateMessage(chatMessage, false, true);
             SurespotApplication.getCommunicationService().enqueueMessage(chatMessage);
             SurespotApplication.getCommunicationService().processNextMessage();
 
@@ -1504,7 +1532,7 @@ public class ChatController {
                 ChatAdapter chatAdapter = mChatAdapters.get(message.getTo());
                 if (chatAdapter != null) {
                     try {
-                        boolean added = chatAdapter.addOrUpdateMessage(message, false, true, true);
+                        boolean added = chatAdapter.addOrUpdateMessage(message, false, true);
                         SurespotApplication.getCommunicationService().saveMessages(message.getTo());
                         if (added) {
                             scrollToEnd(message.getTo());
@@ -1808,6 +1836,7 @@ public class ChatController {
                         if (mFriendAdapter != null) {
                             mFriendAdapter.addFriends(friends);
                             mFriendAdapter.setLoading(false);
+                            warmSharedSecrets();
                         }
 
                         getLatestData(userSuddenlyHasFriends);
@@ -1827,6 +1856,40 @@ public class ChatController {
         }
     }
 
+    /**
+     * Get the shared secrets for our friends' latest keys worked out before their messages need them. There's no last message time on
+     * a friend so open chats and new messages go first, then the friends with the most messages.
+     */
+    private void warmSharedSecrets() {
+        CredentialCachingService cachingService = SurespotApplication.getCachingService();
+        List<Friend> friends = mFriendAdapter.getFriends();
+        if (cachingService == null || friends == null) {
+            return;
+        }
+
+        ArrayList<Friend> warm = new ArrayList<Friend>(friends.size());
+        for (Friend friend : friends) {
+            if (friend.isFriend() && !friend.isDeleted()) {
+                warm.add(friend);
+            }
+        }
+
+        Collections.sort(warm, new Comparator<Friend>() {
+            @Override
+            public int compare(Friend lhs, Friend rhs) {
+                return ComparisonChain.start().compareTrueFirst(lhs.isChatActive(), rhs.isChatActive())
+                        .compareTrueFirst(lhs.isMessageActivity(), rhs.isMessageActivity()).compare(rhs.getAvailableMessageId(), lhs.getAvailableMessageId())
+                        .result();
+            }
+        });
+
+        ArrayList<String> usernames = new ArrayList<String>(warm.size());
+        for (Friend friend : warm) {
+            usernames.add(friend.getName());
+        }
+        cachingService.warmSharedSecrets(usernames);
+    }
+
     public void closeTab() {
         if (mChatPagerAdapter.getCount() > 0) {
 
@@ -1982,7 +2045,7 @@ public class ChatController {
                     mFriendAdapter.sort();
                     mFriendAdapter.notifyDataSetChanged();
                 }
-            }.execute();
+            }.executeOnExecutor(SurespotApplication.CRYPTO_EXECUTOR);
         }
     }
 
@@ -2018,7 +2081,7 @@ public class ChatController {
                 // @Override
                 // public void run() {
 
-                return applyControlMessages(chatAdapter, message, false, true, false);
+                return applyControlMessages(chatAdapter, message, false, false);
 
                 // }
                 // });
@@ -173,6 +173,10 @@ public class ChatFragment extends Fragment {
 
 		@Override
 		public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+			if (mChatAdapter != null) {
+				mChatAdapter.setVisibleRange(firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+			}
+
 			// SurespotLog.v(TAG, "onScroll, mLoadiNG : " + mLoading + ", totalItemCount: " + totalItemCount + ", firstVisibleItem: "
 			// + firstVisibleItem + ", visibleItemCount: " + visibleItemCount);
 
@@ -35,6 +35,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -42,15 +43,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
 import java.util.Random;
 
 public class ChatUtils {
     private static final String TAG = "ChatUtils";
+    private static final int SAMPLED_IMAGE_BUFFER_SIZE = 16 * 1024;
+    // enough to get past exif and other headers to the image dimensions, bigger headers take a second pass
+    private static final int SAMPLED_IMAGE_HEADER_LIMIT = 256 * 1024;
     private static Random mImageUploadFileRandom = new Random();
 
     public static String getOtherUser(String from, String to) {
@@ -182,7 +186,7 @@ public class ChatUtils {
                                     }
                                 }
                             };
-                            SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
+                            SurespotApplication.NETWORK_EXECUTOR.execute(runnable);
                         }
                     }
                     else {
@@ -238,7 +242,7 @@ public class ChatUtils {
             }
         };
 
-        SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
+        SurespotApplication.NETWORK_EXECUTOR.execute(runnable);
     }
 
 
@@ -290,7 +294,7 @@ public class ChatUtils {
             }
         };
 
-        SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
+        SurespotApplication.NETWORK_EXECUTOR.execute(runnable);
 
     }
 
@@ -332,7 +336,7 @@ public class ChatUtils {
             }
         };
 
-        SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
+        SurespotApplication.NETWORK_EXECUTOR.execute(runnable);
 
     }
 
@@ -410,6 +414,85 @@ public class ChatUtils {
 
     }
 
+    /**
+     * Decode the image scaled to the display height from a stream in one read through. The header is read into our own buffer until the
+     * bounds can be decoded from it, then the pixel pass reads that buffer followed by the rest of the stream. The stream is read to the
+     * end afterwards so a decrypting stream checks its tag, and the bitmap is thrown away if that fails.
+     * <p/>
+     * If the bounds aren't within the first {@link #SAMPLED_IMAGE_HEADER_LIMIT} bytes the stream is only used to find them and null is
+     * returned with options.inJustDecodeBounds still set and the bounds filled in. Call again with the same options and a fresh stream of
+     * the image to decode the pixels.
+     *
+     * @param options new options, or the options from a pass that only found the bounds
+     */
+    public static Bitmap getSampledImage(InputStream in, BitmapFactory.Options options) throws IOException {
+        InputStream imageStream = in;
+        if (!options.inJustDecodeBounds || options.outHeight <= 0) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(SAMPLED_IMAGE_BUFFER_SIZE);
+            boolean ended = readImageHeader(in, header, options);
+            imageStream = new SequenceInputStream(new ByteArrayInputStream(header.toByteArray()), in);
+
+            if (options.outHeight <= 0) {
+                if (ended) {
+                    SurespotLog.v(TAG, "getSampledImage, no image bounds");
+                    return null;
+                }
+
+                SurespotLog.v(TAG, "getSampledImage, header larger than %d bytes, decoding bounds from the stream", SAMPLED_IMAGE_HEADER_LIMIT);
+                BitmapFactory.decodeStream(imageStream, null, options);
+                readToEnd(imageStream);
+                return null;
+            }
+        }
+
+        int reqHeight = SurespotConfiguration.getImageDisplayHeight();
+        if (options.outHeight > reqHeight) {
+            options.inSampleSize = calculateInSampleSize(options, 0, reqHeight);
+            SurespotLog.v(TAG, "getSampledImage, inSampleSize: " + options.inSampleSize);
+        }
+
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeStream(imageStream, null, options);
+
+        try {
+            readToEnd(imageStream);
+        }
+        catch (IOException e) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            throw e;
+        }
+        return bitmap;
+    }
+
+    // read the header a chunk at a time until the bounds decode from it, returns true if the stream ended first
+    private static boolean readImageHeader(InputStream in, ByteArrayOutputStream header, BitmapFactory.Options options) throws IOException {
+        options.inJustDecodeBounds = true;
+        byte[] buffer = new byte[SAMPLED_IMAGE_BUFFER_SIZE];
+        while (header.size() < SAMPLED_IMAGE_HEADER_LIMIT) {
+            int read = in.read(buffer);
+            if (read == -1) {
+                return true;
+            }
+            header.write(buffer, 0, read);
+
+            byte[] headerBytes = header.toByteArray();
+            BitmapFactory.decodeByteArray(headerBytes, 0, headerBytes.length, options);
+            if (options.outHeight > 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static void readToEnd(InputStream in) throws IOException {
+        byte[] buffer = new byte[SAMPLED_IMAGE_BUFFER_SIZE];
+        while (in.read(buffer) != -1) {
+            // just reading to the end
+        }
+    }
+
     public static Bitmap getSampledImage(byte[] data) {
         BitmapFactory.Options options = new Options();
         decodeBounds(options, data);
@@ -657,55 +740,6 @@ public class ChatUtils {
         return Base64.decode(buf, Base64.DEFAULT);
     }
 
-    /**
-     * Converts the string to the unicode format '\u0020'.
-     * <p/>
-     * This format is the Java source code format.
-     * <p/>
-     * <pre>
-     *   CharUtils.unicodeEscaped(' ') = "\u0020"
-     *   CharUtils.unicodeEscaped('A') = "\u0041"
-     * </pre>
-     *
-     * @param ch the character to convert
-     * @return the escaped unicode string
-     */
-    public static String unicodeEscaped(int ch) {
-        if (ch < 0x10) {
-            return "\\u000" + Integer.toHexString(ch);
-        }
-        else if (ch < 0x100) {
-            return "\\u00" + Integer.toHexString(ch);
-        }
-        else if (ch < 0x1000) {
-            return "\\u0" + Integer.toHexString(ch);
-        }
-        return "\\u" + Integer.toHexString(ch);
-    }
-
-    /**
-     * Converts the string to the unicode format '\u0020'.
-     * <p/>
-     * This format is the Java source code format.
-     * <p/>
-     * If <code>null</code> is passed in, <code>null</code> will be returned.
-     * <p/>
-     * <pre>
-     *   CharUtils.unicodeEscaped(null) = null
-     *   CharUtils.unicodeEscaped(' ')  = "\u0020"
-     *   CharUtils.unicodeEscaped('A')  = "\u0041"
-     * </pre>
-     *
-     * @param ch the character to convert, may be null
-     * @return the escaped unicode string, null if null input
-     */
-    public static String unicodeEscaped(Character ch) {
-        if (ch == null) {
-            return null;
-        }
-        return unicodeEscaped(ch.charValue());
-    }
-
     public static void setMessageErrorText(Context context, TextView textView, SurespotMessage message) {
         String statusText = null;
         switch (message.getErrorStatus()) {
@@ -743,43 +777,4 @@ public class ChatUtils {
 
         textView.setText(statusText);
     }
-
-    public static class CodePoint {
-        public int codePoint;
-        public int start;
-        public int end;
-    }
-
-    // iterate through codepoints http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=5003547
-    public static Iterable<CodePoint> codePoints(final String s) {
-        return new Iterable<CodePoint>() {
-            public Iterator<CodePoint> iterator() {
-                return new Iterator<CodePoint>() {
-                    int nextIndex = 0;
-
-                    public boolean hasNext() {
-                        return nextIndex < s.length();
-                    }
-
-                    public CodePoint next() {
-                        int result = s.codePointAt(nextIndex);
-
-                        CodePoint cp = new CodePoint();
-                        cp.codePoint = result;
-                        cp.start = nextIndex;
-                        nextIndex += Character.charCount(result);
-                        cp.end = nextIndex;
-                        return cp;
-                    }
-
-                    public void remove() {
-                        throw new UnsupportedOperationException();
-                    }
-                };
-            }
-        };
-    }
-
 }
-
-
@@ -1,12 +1,11 @@
 package com.twofours.surespot.chat;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
@@ -14,7 +13,6 @@ import android.text.TextUtils;
 import android.text.style.ImageSpan;
 
 import com.twofours.surespot.R;
-import com.twofours.surespot.chat.ChatUtils.CodePoint;
 import com.twofours.surespot.common.Utils;
 
 /**
@@ -37,28 +35,27 @@ public class EmojiParser {
 	private final Context mContext;
 	private final List<String> mEmojiChars;
 	private final List<Integer> mEmojiRes;
-	private final HashMap<Integer, Object> mUncategorized;
-	private HashMap<String, Integer> mCodepointToIndex;
+	private HashMap<Integer, Integer> mCodepointToIndex;
+	// mCodepointToIndex frozen into code points sorted for binary search and their indexes, so parsing doesn't box or build strings
+	private int[] mCodepoints;
+	private int[] mCodepointIndexes;
 	private int mEmojiCount = 0;
 
-	@SuppressLint("DefaultLocale")
 	private EmojiParser(Context context) {
 
 		mContext = context;
-		mCodepointToIndex = new HashMap<String, Integer>();
+		mCodepointToIndex = new HashMap<Integer, Integer>();
 		mEmojiChars = new ArrayList<String>();
 		mEmojiRes = new ArrayList<Integer>();
-		mUncategorized = new HashMap<Integer, Object>();
 
 		addCharToResMapping("2764", R.drawable.heart);
-		mUncategorized.put(0x2764, null);
 		addCharToResMapping("1F600", R.drawable.grin);		
 		addCharToResMapping("1F603", R.drawable.grinning);
 		addCharToResMapping("1F602", R.drawable.face_with_tear_of_joy);
 				
 		//doesn't look right on ios, remove and remap incoming
 		//addCharToResMapping("1F603", R.drawable.smiley);
-		mCodepointToIndex.put(("\\u1F601").toLowerCase(), 2);
+		remapCharToIndex("1F601", 2);
 		addCharToResMapping("1F604", R.drawable.smile);
 		addCharToResMapping("1F605", R.drawable.sweat_smile);
 		addCharToResMapping("1F606", R.drawable.laughing);
@@ -66,13 +63,12 @@ public class EmojiParser {
 		addCharToResMapping("1F60A", R.drawable.satisfied);
 		addCharToResMapping("1F60B", R.drawable.face_savouring_delicious_food);
 		//doesn't look right on ios, remove and remap incoming
-		mCodepointToIndex.put(("\\u1F60C").toLowerCase(), 13);
+		remapCharToIndex("1F60C", 13);
 		// addCharToResMapping("1F60C", R.drawable.relieved);
 		addCharToResMapping("1F60D", R.drawable.heart_eyes);
 		addCharToResMapping("1F60F", R.drawable.smirk);
 		addCharToResMapping("F0002", R.drawable.blush);
 		addCharToResMapping("263A", R.drawable.relaxed);
-		mUncategorized.put(0x263A, null);
 		addCharToResMapping("F0018", R.drawable.white_smiling_face);
 
 		addCharToResMapping("1F611", R.drawable.expressionless);
@@ -93,7 +89,7 @@ public class EmojiParser {
 		addCharToResMapping("F0003", R.drawable.drunk);
 		//doesn't look right on ios, remove and remap incoming
 		// addCharToResMapping("F0004", R.drawable.wink2);
-		mCodepointToIndex.put(("\\uF0004").toLowerCase(), 25);
+		remapCharToIndex("F0004", 25);
 		addCharToResMapping("F0005", R.drawable.smiling_face);
 
 		addCharToResMapping("1F620", R.drawable.angry_face);
@@ -141,7 +137,7 @@ public class EmojiParser {
 		addCharToResMapping("1F64E", R.drawable.person_with_pouting_face);
 		addCharToResMapping("1F64F", R.drawable.person_with_folded_hands);
 		addCharToResMapping("1F483", R.drawable.dancer);
-		mCodepointToIndex.put(("\\uF0000").toLowerCase(), 71);
+		remapCharToIndex("F0000", 71);
 		addCharToResMapping("F0007", R.drawable.ninja);
 
 		addCharToResMapping("1F46A", R.drawable.family);
@@ -168,7 +164,6 @@ public class EmojiParser {
 		addCharToResMapping("1F37A", R.drawable.beer_mug);
 
 		addCharToResMapping("2615", R.drawable.hot_beverage);
-		mUncategorized.put(0x2615, null);
 
 		addCharToResMapping("1F4A9", R.drawable.poop);
 		addCharToResMapping("1F40C", R.drawable.snail);
@@ -198,7 +193,6 @@ public class EmojiParser {
 		addCharToResMapping("1F44A", R.drawable.fisted_hand_sign);
 		addCharToResMapping("1F44D", R.drawable.thumbs_up_sign);
 		addCharToResMapping("270C", R.drawable.victory_hand);
-		mUncategorized.put(0x270C, null);
 		addCharToResMapping("1F4AC", R.drawable.speech_balloon);
 
 		addCharToResMapping("1F383", R.drawable.jack_o_lantern);
@@ -217,7 +211,6 @@ public class EmojiParser {
 		addCharToResMapping("F0012", R.drawable.ocean_dive_view);
 		addCharToResMapping("F0011", R.drawable.scuba_diver);
 		addCharToResMapping("2693", R.drawable.anchor);
-		mUncategorized.put(0x2693, null);
 		addCharToResMapping("1F3AE", R.drawable.video_game);
 		addCharToResMapping("1F3A4", R.drawable.microphone);
 		addCharToResMapping("1F3B8", R.drawable.guitar);
@@ -242,42 +235,26 @@ public class EmojiParser {
 		addCharToResMapping("1F31E", R.drawable.sun_with_face);
 
 		addCharToResMapping("2600", R.drawable.sun);
-		mUncategorized.put(0x2600, null);
 		addCharToResMapping("2601", R.drawable.cloud);
-		mUncategorized.put(0x2601, null);
 		addCharToResMapping("1F5FB", R.drawable.mount_fuji);
 		addCharToResMapping("1F335", R.drawable.cactus);
 		addCharToResMapping("26A1", R.drawable.high_voltage_sign);
-		mUncategorized.put(0x26A1, null);
 		addCharToResMapping("1F6B9", R.drawable.mens_symbol);
 		addCharToResMapping("267F", R.drawable.wheelchair);
-		mUncategorized.put(0x267F, null);
 		addCharToResMapping("1F51E", R.drawable.no_one_under_eighteen_symbol);
 
 		addCharToResMapping("2648", R.drawable.aries);
-		mUncategorized.put(0x2648, null);
 		addCharToResMapping("2649", R.drawable.taurus);
-		mUncategorized.put(0x2649, null);
 		addCharToResMapping("264A", R.drawable.gemini);
-		mUncategorized.put(0x264A, null);
 		addCharToResMapping("264B", R.drawable.cancer);
-		mUncategorized.put(0x264B, null);
 		addCharToResMapping("264C", R.drawable.leo);
-		mUncategorized.put(0x264C, null);
 		addCharToResMapping("264D", R.drawable.virgo);
-		mUncategorized.put(0x264D, null);
 		addCharToResMapping("264E", R.drawable.libra);
-		mUncategorized.put(0x264E, null);
 		addCharToResMapping("264F", R.drawable.scorpius);
-		mUncategorized.put(0x264F, null);
 		addCharToResMapping("2650", R.drawable.sagittarius);
-		mUncategorized.put(0x2650, null);
 		addCharToResMapping("2651", R.drawable.capricorn);
-		mUncategorized.put(0x2651, null);
 		addCharToResMapping("2652", R.drawable.aquarius);
-		mUncategorized.put(0x2652, null);
 		addCharToResMapping("2653", R.drawable.pisces);
-		mUncategorized.put(0x2653, null);
 
 		// // omitted
 		// addCharToResMapping("", R.drawable.rainbow_sky);
@@ -300,6 +277,7 @@ public class EmojiParser {
 		// addCharToResMapping("", R.drawable.pegasus_black);
 		// addCharToResMapping("", R.drawable.penguin_chick);
 
+		buildCodepointLookup();
 	}
 
 	private void addCharToResMapping(String chars, int id) {
@@ -310,7 +288,26 @@ public class EmojiParser {
 		mEmojiChars.add(chars);
 		mEmojiRes.add(id);
 
-		mCodepointToIndex.put(("\\u" + chars).toLowerCase(), mEmojiCount++);
+		mCodepointToIndex.put(Integer.parseInt(chars, 16), mEmojiCount++);
+	}
+
+	private void remapCharToIndex(String chars, int index) {
+		mCodepointToIndex.put(Integer.parseInt(chars, 16), index);
+	}
+
+	private void buildCodepointLookup() {
+		mCodepoints = new int[mCodepointToIndex.size()];
+		int i = 0;
+		for (Integer codepoint : mCodepointToIndex.keySet()) {
+			mCodepoints[i++] = codepoint;
+		}
+		Arrays.sort(mCodepoints);
+
+		mCodepointIndexes = new int[mCodepoints.length];
+		for (i = 0; i < mCodepoints.length; i++) {
+			mCodepointIndexes[i] = mCodepointToIndex.get(mCodepoints[i]);
+		}
+		mCodepointToIndex = null;
 	}
 
 	public CharSequence getEmojiChar(int position) {
@@ -335,34 +332,28 @@ public class EmojiParser {
 		}
 
 		SpannableStringBuilder builder = new SpannableStringBuilder(text);
-		// TODO use regex
-		// would be nice to use a regex for these wacky characters:
-		// http://stackoverflow.com/questions/5409636/java-support-for-non-bmp-unicode-characters-i-e-codepoints-0xffff-in-their
-		Iterator<CodePoint> i = ChatUtils.codePoints(text).iterator();
-		while (i.hasNext()) {
-
-			CodePoint cp = i.next();
-
-			if (mUncategorized.containsKey(cp.codePoint) || Character.isSupplementaryCodePoint(cp.codePoint)) {
-				String escapedUnicode = ChatUtils.unicodeEscaped(cp.codePoint);
-				int index = getEmojiIndex(escapedUnicode);
-
+		int length = text.length();
+		int lowest = mCodepoints[0];
+		for (int i = 0; i < length;) {
+			int codepoint = text.codePointAt(i);
+			int end = i + Character.charCount(codepoint);
+
+			// most text is well below the lowest emoji
+			if (codepoint >= lowest) {
+				int index = getEmojiIndex(codepoint);
 				if (index >= 0) {
-					Integer resId = mEmojiRes.get(index);
-					builder.setSpan(new ImageSpan(mContext, resId), cp.start, cp.end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+					builder.setSpan(new ImageSpan(mContext, mEmojiRes.get(index)), i, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
 				}
 			}
+			i = end;
 		}
 
-		// SurespotLog.v(TAG, "decrypted supp unicode chars: %s.", suppCps);
 		return builder;
 	}
 
-	@SuppressLint("DefaultLocale")
-	private int getEmojiIndex(String codepoint) {
-		// SurespotLog.v(TAG,"getting index of codepoint: " + codepoint);
-		Integer index = mCodepointToIndex.get(codepoint.toLowerCase());
-		return (index == null ? -1 : index);
+	private int getEmojiIndex(int codepoint) {
+		int found = Arrays.binarySearch(mCodepoints, codepoint);
+		return found < 0 ? -1 : mCodepointIndexes[found];
 	}
 
 	public int getRandomEmojiResource() {
@@ -0,0 +1,289 @@
+package com.twofours.surespot.chat;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.twofours.surespot.common.SurespotLog;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the message data responses (/optdata, /messagedataopt and /messagesopt) straight off the response stream into messages,
+ * without building a String or JSONObject of the whole response first. Produces the same messages as
+ * {@link SurespotMessage#toSurespotMessage(org.json.JSONObject)} and {@link SurespotControlMessage#toSurespotControlMessage}.
+ */
+public class MessageDataParser {
+    private static final String TAG = "MessageDataParser";
+
+    public static class MessageData {
+        public String username;
+        public List<SurespotControlMessage> controlMessages;
+        public List<SurespotMessage> messages;
+    }
+
+    public static class LatestData {
+        // only present when our signatures need updating
+        public boolean hasSigs;
+        public Map<String, Integer> conversationIds = new LinkedHashMap<String, Integer>();
+        public Map<String, Integer> controlIds = new LinkedHashMap<String, Integer>();
+        public List<SurespotControlMessage> userControlMessages;
+        public List<MessageData> messageData = new ArrayList<MessageData>();
+    }
+
+    public static LatestData parseLatestData(JsonReader reader) throws IOException {
+        LatestData latestData = new LatestData();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            }
+            else if (name.equals("sigs")) {
+                latestData.hasSigs = true;
+                reader.skipValue();
+            }
+            else if (name.equals("conversationIds")) {
+                readIds(reader, latestData.conversationIds);
+            }
+            else if (name.equals("controlIds")) {
+                readIds(reader, latestData.controlIds);
+            }
+            else if (name.equals("userControlMessages")) {
+                latestData.userControlMessages = readControlMessages(reader);
+            }
+            else if (name.equals("messageData")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    MessageData messageData = parseMessageData(reader);
+                    if (messageData.username != null) {
+                        latestData.messageData.add(messageData);
+                    }
+                    else {
+                        SurespotLog.w(TAG, "parseLatestData, message data without username");
+                    }
+                }
+                reader.endArray();
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return latestData;
+    }
+
+    public static MessageData parseMessageData(JsonReader reader) throws IOException {
+        MessageData messageData = new MessageData();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            }
+            else if (name.equals("username")) {
+                messageData.username = reader.nextString();
+            }
+            else if (name.equals("controlMessages")) {
+                messageData.controlMessages = readControlMessages(reader);
+            }
+            else if (name.equals("messages")) {
+                messageData.messages = parseMessages(reader);
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return messageData;
+    }
+
+    public static List<SurespotMessage> parseMessages(JsonReader reader) throws IOException {
+        List<SurespotMessage> messages = new ArrayList<SurespotMessage>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            SurespotMessage message = readMessage(reader);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        reader.endArray();
+
+        return messages;
+    }
+
+    private static List<SurespotControlMessage> readControlMessages(JsonReader reader) throws IOException {
+        List<SurespotControlMessage> messages = new ArrayList<SurespotControlMessage>();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            SurespotControlMessage message = readControlMessage(reader);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        reader.endArray();
+
+        return messages;
+    }
+
+    private static void readIds(JsonReader reader, Map<String, Integer> ids) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String spot = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            }
+            else {
+                ids.put(spot, reader.nextInt());
+            }
+        }
+        reader.endObject();
+    }
+
+    // messages are stored on the server as json strings so may come through as a string rather than an object
+    private static JsonReader objectReader(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.STRING) {
+            return new JsonReader(new StringReader(reader.nextString()));
+        }
+        return reader;
+    }
+
+    private static SurespotMessage readMessage(JsonReader jsonReader) throws IOException {
+        JsonReader reader = objectReader(jsonReader);
+        SurespotMessage message = new SurespotMessage();
+        message.setData("");
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            }
+            else if (name.equals("from")) {
+                message.setFrom(reader.nextString());
+            }
+            else if (name.equals("to")) {
+                message.setTo(reader.nextString());
+            }
+            else if (name.equals("iv")) {
+                message.setIv(reader.nextString());
+            }
+            else if (name.equals("data")) {
+                message.setData(reader.nextString());
+            }
+            else if (name.equals("mimeType")) {
+                message.setMimeType(reader.nextString());
+            }
+            else if (name.equals("toVersion")) {
+                message.setToVersion(reader.nextString());
+            }
+            else if (name.equals("fromVersion")) {
+                message.setFromVersion(reader.nextString());
+            }
+            else if (name.equals("shareable")) {
+                message.setShareable(reader.nextBoolean());
+            }
+            else if (name.equals("voicePlayed")) {
+                message.setVoicePlayed(reader.nextBoolean());
+            }
+            else if (name.equals("hashed")) {
+                message.setHashed(reader.nextBoolean());
+            }
+            else if (name.equals("gcm")) {
+                message.setGcm(reader.nextBoolean());
+            }
+            else if (name.equals("id")) {
+                int id = reader.nextInt();
+                if (id > 0) {
+                    message.setId(id);
+                }
+            }
+            else if (name.equals("errorStatus")) {
+                int errorStatus = reader.nextInt();
+                if (errorStatus > 0) {
+                    message.setErrorStatus(errorStatus);
+                }
+            }
+            else if (name.equals("datetime")) {
+                long datetime = reader.nextLong();
+                if (datetime > 0) {
+                    message.setDateTime(new Date(datetime));
+                }
+            }
+            else if (name.equals("dataSize")) {
+                int dataSize = reader.nextInt();
+                if (dataSize > 0) {
+                    message.setDataSize(dataSize);
+                }
+            }
+            else if (name.equals("plainData")) {
+                message.setPlainData(reader.nextString());
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (message.getFrom() == null || message.getTo() == null || message.getIv() == null || message.getMimeType() == null
+                || message.getToVersion() == null || message.getFromVersion() == null) {
+            SurespotLog.w(TAG, "readMessage, message missing required fields: %s", message.getIv());
+            return null;
+        }
+
+        return message;
+    }
+
+    private static SurespotControlMessage readControlMessage(JsonReader jsonReader) throws IOException {
+        JsonReader reader = objectReader(jsonReader);
+        SurespotControlMessage message = new SurespotControlMessage();
+        message.setFrom("");
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            }
+            else if (name.equals("type")) {
+                message.setType(reader.nextString());
+            }
+            else if (name.equals("id")) {
+                message.setId(reader.nextInt());
+            }
+            else if (name.equals("action")) {
+                message.setAction(reader.nextString());
+            }
+            else if (name.equals("data")) {
+                message.setData(reader.nextString());
+            }
+            else if (name.equals("from")) {
+                message.setFrom(reader.nextString());
+            }
+            else if (name.equals("moredata")) {
+                message.setMoreData(reader.nextString());
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (message.getType() == null || message.getId() == null || message.getAction() == null || message.getData() == null) {
+            SurespotLog.w(TAG, "readControlMessage, control message missing required fields: %s", message.getId());
+            return null;
+        }
+
+        return message;
+    }
+}
@@ -0,0 +1,182 @@
+package com.twofours.surespot.chat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Messages for a chat kept in display order (by id, messages without an id last) with hash indexes by id and iv so lookups don't
+ * have to walk the list.
+ * <p/>
+ * Messages are inserted at their sorted position so the list never needs a full sort. A message's id must only be changed through
+ * {@link #setId} so it stays indexed and in order. Not thread safe, callers synchronize.
+ */
+class MessageStore {
+    private final ArrayList<SurespotMessage> mMessages = new ArrayList<SurespotMessage>();
+    private final HashMap<Integer, SurespotMessage> mMessagesById = new HashMap<Integer, SurespotMessage>();
+    private final HashMap<String, SurespotMessage> mMessagesByIv = new HashMap<String, SurespotMessage>();
+
+    /**
+     * The backing list in display order, don't modify it.
+     */
+    public ArrayList<SurespotMessage> getMessages() {
+        return mMessages;
+    }
+
+    public int size() {
+        return mMessages.size();
+    }
+
+    public SurespotMessage get(int position) {
+        return mMessages.get(position);
+    }
+
+    /**
+     * Find the stored message that {@link SurespotMessage#equals} the given one.
+     */
+    public SurespotMessage find(SurespotMessage message) {
+        SurespotMessage found = getById(message.getId());
+        if (found == null) {
+            found = getByIv(message.getIv());
+        }
+        return found;
+    }
+
+    public SurespotMessage getById(Integer id) {
+        return id == null ? null : mMessagesById.get(id);
+    }
+
+    public SurespotMessage getByIv(String iv) {
+        return iv == null ? null : mMessagesByIv.get(iv);
+    }
+
+    /**
+     * Insert the message after any messages that sort equal to it, the same place add then a stable sort would put it.
+     */
+    public void add(SurespotMessage message) {
+        mMessages.add(upperBound(message), message);
+        index(message);
+    }
+
+    public void addAll(Collection<SurespotMessage> messages) {
+        for (SurespotMessage message : messages) {
+            add(message);
+        }
+    }
+
+    public void setId(SurespotMessage message, Integer id) {
+        int position = indexOf(message);
+        if (position > -1) {
+            mMessages.remove(position);
+        }
+        if (message.getId() != null) {
+            mMessagesById.remove(message.getId());
+        }
+
+        message.setId(id);
+        add(message);
+    }
+
+    public boolean remove(SurespotMessage message) {
+        int position = indexOf(message);
+        if (position == -1) {
+            return false;
+        }
+
+        mMessages.remove(position);
+        unindex(message);
+        return true;
+    }
+
+    /**
+     * Remove every message matching the filter in one pass, returns the removed messages.
+     */
+    public ArrayList<SurespotMessage> removeAll(Filter filter) {
+        ArrayList<SurespotMessage> removed = new ArrayList<SurespotMessage>();
+        for (Iterator<SurespotMessage> iterator = mMessages.iterator(); iterator.hasNext(); ) {
+            SurespotMessage message = iterator.next();
+            if (filter.matches(message)) {
+                iterator.remove();
+                unindex(message);
+                removed.add(message);
+            }
+        }
+        return removed;
+    }
+
+    public void clear() {
+        mMessages.clear();
+        mMessagesById.clear();
+        mMessagesByIv.clear();
+    }
+
+    int indexOf(SurespotMessage message) {
+        // binary search to the first message that sorts equal then look for this instance
+        int low = 0;
+        int high = mMessages.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mMessages.get(mid).compareTo(message) < 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        for (int i = low; i < mMessages.size(); i++) {
+            SurespotMessage candidate = mMessages.get(i);
+            if (candidate == message) {
+                return i;
+            }
+            if (candidate.compareTo(message) != 0) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    private int upperBound(SurespotMessage message) {
+        int size = mMessages.size();
+        // most messages arrive in order
+        if (size == 0 || mMessages.get(size - 1).compareTo(message) <= 0) {
+            return size;
+        }
+
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mMessages.get(mid).compareTo(message) <= 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void index(SurespotMessage message) {
+        if (message.getId() != null) {
+            mMessagesById.put(message.getId(), message);
+        }
+        if (message.getIv() != null) {
+            mMessagesByIv.put(message.getIv(), message);
+        }
+    }
+
+    private void unindex(SurespotMessage message) {
+        if (message.getId() != null && mMessagesById.get(message.getId()) == message) {
+            mMessagesById.remove(message.getId());
+        }
+        if (message.getIv() != null && mMessagesByIv.get(message.getIv()) == message) {
+            mMessagesByIv.remove(message.getIv());
+        }
+    }
+
+    public interface Filter {
+        boolean matches(SurespotMessage message);
+    }
+}
@@ -0,0 +1,269 @@
+package com.twofours.surespot.chat;
+
+import android.os.SystemClock;
+
+import com.twofours.surespot.common.SurespotLog;
+import com.twofours.surespot.images.SingleFlightLoader;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Orders the decrypt and download work for a chat's rows by where the rows are relative to what's on screen: visible rows first, then
+ * rows within {@link #PREFETCH_ROWS} of the screen nearest first, then everything else. Work for rows whose view has been rebound, or
+ * whose message is gone, is dropped before it starts.
+ * <p/>
+ * Each task still runs on its lane executor, the lane just runs whichever pending task matters most when a thread frees up rather
+ * than the one that was submitted. A task's rank is worked out when it's submitted and again only when the visible range changes, so
+ * taking the next task doesn't look at every pending one.
+ */
+public class RowLoadScheduler {
+    private static final String TAG = "RowLoadScheduler";
+    // rows either side of the visible ones that still count as wanted soon
+    public static final int PREFETCH_ROWS = 10;
+    private static final int STATS_LOG_INTERVAL = 100;
+
+    private static final HashMap<String, WaitStats> mWaitStats = new HashMap<String, WaitStats>();
+
+    private final ChatAdapter mChatAdapter;
+    // pending tasks per lane executor, best ranked first
+    private final HashMap<Executor, PriorityQueue<PendingTask>> mPending = new HashMap<Executor, PriorityQueue<PendingTask>>();
+    private long mSequence;
+    // unknown until the list reports a scroll, until then run in submission order
+    private int mFirstVisible = -1;
+    private int mLastVisible = -1;
+
+    public interface RowTask extends Runnable {
+        SurespotMessage getMessage();
+
+        /**
+         * @return true if nothing wants the result any more
+         */
+        boolean isStale();
+
+        /**
+         * Called instead of run when the task is dropped as stale.
+         */
+        void onDropped();
+    }
+
+    public RowLoadScheduler(ChatAdapter chatAdapter) {
+        mChatAdapter = chatAdapter;
+    }
+
+    public void setVisibleRange(int first, int last) {
+        ArrayList<PendingTask> pendingTasks = new ArrayList<PendingTask>();
+        synchronized (mPending) {
+            if (first == mFirstVisible && last == mLastVisible) {
+                return;
+            }
+
+            mFirstVisible = first;
+            mLastVisible = last;
+            for (PriorityQueue<PendingTask> lane : mPending.values()) {
+                pendingTasks.addAll(lane);
+            }
+        }
+
+        if (pendingTasks.isEmpty()) {
+            return;
+        }
+
+        // work out positions without holding our lock, the adapter takes its own
+        int[] priorities = new int[pendingTasks.size()];
+        for (int i = 0; i < priorities.length; i++) {
+            priorities[i] = getPriority(mChatAdapter.getPosition(pendingTasks.get(i).mTask.getMessage()), first, last);
+        }
+
+        synchronized (mPending) {
+            // a newer range has already re-ranked everything
+            if (first != mFirstVisible || last != mLastVisible) {
+                return;
+            }
+
+            for (int i = 0; i < priorities.length; i++) {
+                pendingTasks.get(i).mPriority = priorities[i];
+            }
+
+            // the queues can't re-sort in place, rebuild them with the new ranks; anything claimed meanwhile has already left
+            for (PriorityQueue<PendingTask> lane : mPending.values()) {
+                ArrayList<PendingTask> tasks = new ArrayList<PendingTask>(lane);
+                lane.clear();
+                lane.addAll(tasks);
+            }
+        }
+    }
+
+    public void execute(String taskClass, Executor executor, RowTask task) {
+        int position = mChatAdapter.getPosition(task.getMessage());
+        final PendingTask pending;
+        synchronized (mPending) {
+            pending = new PendingTask(taskClass, executor, task, mSequence++);
+            pending.mPriority = getPriority(position, mFirstVisible, mLastVisible);
+            PriorityQueue<PendingTask> lane = mPending.get(executor);
+            if (lane == null) {
+                lane = new PriorityQueue<PendingTask>(11, PENDING_ORDER);
+                mPending.put(executor, lane);
+            }
+            lane.add(pending);
+        }
+
+        // one slot per task, the slot runs whatever is most wanted for its lane when it gets a thread
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runNext(pending.mExecutor);
+            }
+        });
+    }
+
+    /**
+     * An executor that schedules what it's given as row work for the message, for loads that hand their own runnable to an executor. A
+     * {@link SingleFlightLoader.Flight} is dropped once it's cancelled, and a dropped one completes with a null result.
+     */
+    public Executor executorFor(final String taskClass, final Executor executor, final SurespotMessage message) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                RowLoadScheduler.this.execute(taskClass, executor, new RowTask() {
+                    @Override
+                    public SurespotMessage getMessage() {
+                        return message;
+                    }
+
+                    @Override
+                    public boolean isStale() {
+                        return command instanceof SingleFlightLoader.Flight && ((SingleFlightLoader.Flight) command).isCancelled();
+                    }
+
+                    @Override
+                    public void onDropped() {
+                        // a dropped load still has to finish so everyone who joined it hears back and the key can be loaded again
+                        if (command instanceof SingleFlightLoader.Flight) {
+                            ((SingleFlightLoader.Flight) command).abandon();
+                            command.run();
+                        }
+                    }
+
+                    @Override
+                    public void run() {
+                        command.run();
+                    }
+                });
+            }
+        };
+    }
+
+    private void runNext(Executor executor) {
+        while (true) {
+            PendingTask next;
+            synchronized (mPending) {
+                PriorityQueue<PendingTask> lane = mPending.get(executor);
+                next = lane == null ? null : lane.poll();
+            }
+
+            // every slot takes one task off the lane, another slot may have taken ours already
+            if (next == null) {
+                return;
+            }
+
+            if (next.mTask.isStale() || mChatAdapter.getPosition(next.mTask.getMessage()) < 0) {
+                recordDropped(next.mTaskClass);
+                next.mTask.onDropped();
+                continue;
+            }
+
+            recordWait(next.mTaskClass, SystemClock.elapsedRealtime() - next.mQueuedAt);
+            next.mTask.run();
+            return;
+        }
+    }
+
+    // lower runs sooner, rows that are gone go first so they're dropped without waiting
+    private static int getPriority(int position, int firstVisible, int lastVisible) {
+        if (firstVisible < 0 || position < 0) {
+            return 0;
+        }
+
+        int distance;
+        if (position < firstVisible) {
+            distance = firstVisible - position;
+        }
+        else if (position > lastVisible) {
+            distance = position - lastVisible;
+        }
+        else {
+            return 0;
+        }
+
+        // beyond the prefetch window everything waits behind the window
+        return distance <= PREFETCH_ROWS ? distance : PREFETCH_ROWS + distance;
+    }
+
+    private static void recordWait(String taskClass, long waitMillis) {
+        synchronized (mWaitStats) {
+            WaitStats stats = getWaitStats(taskClass);
+            stats.mCount++;
+            stats.mTotalWait += waitMillis;
+            stats.mMaxWait = Math.max(stats.mMaxWait, waitMillis);
+            if (stats.mCount % STATS_LOG_INTERVAL == 0) {
+                SurespotLog.d(TAG, "%s: ran %d, average queue wait %dms, max %dms, dropped %d", taskClass, stats.mCount, stats.mTotalWait / stats.mCount,
+                        stats.mMaxWait, stats.mDropped);
+            }
+        }
+    }
+
+    private static void recordDropped(String taskClass) {
+        synchronized (mWaitStats) {
+            getWaitStats(taskClass).mDropped++;
+        }
+    }
+
+    private static WaitStats getWaitStats(String taskClass) {
+        WaitStats stats = mWaitStats.get(taskClass);
+        if (stats == null) {
+            stats = new WaitStats();
+            mWaitStats.put(taskClass, stats);
+        }
+        return stats;
+    }
+
+    private static class WaitStats {
+        private long mCount;
+        private long mTotalWait;
+        private long mMaxWait;
+        private long mDropped;
+    }
+
+    // ties go to whatever was submitted first
+    private static final Comparator<PendingTask> PENDING_ORDER = new Comparator<PendingTask>() {
+        @Override
+        public int compare(PendingTask lhs, PendingTask rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority < rhs.mPriority ? -1 : 1;
+            }
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    };
+
+    private static class PendingTask {
+        private final String mTaskClass;
+        private final Executor mExecutor;
+        private final RowTask mTask;
+        private final long mSequence;
+        private final long mQueuedAt;
+        // only changed under the scheduler lock and the queues are rebuilt before it's let go
+        private int mPriority;
+
+        private PendingTask(String taskClass, Executor executor, RowTask task, long sequence) {
+            mTaskClass = taskClass;
+            mExecutor = executor;
+            mTask = task;
+            mSequence = sequence;
+            mQueuedAt = SystemClock.elapsedRealtime();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.twofours.surespot.chat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import com.twofours.surespot.common.SurespotConstants;
+import com.twofours.surespot.encryption.MessageDecryptor;
+import com.twofours.surespot.images.MessageImageDownloader;
+import com.twofours.surespot.voice.VoiceMessageDownloader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Gets the rows just past the edge of the screen in the direction the chat is scrolling ready before they're bound: decrypts text and
+ * loads images and voice into their caches. What's in flight is capped by count and by attachment size so a fling doesn't start
+ * dozens of downloads, and anything that falls out of the window is cancelled.
+ * <p/>
+ * Only touched on the main thread.
+ */
+public class RowPrefetcher {
+    private static final String TAG = "RowPrefetcher";
+    private static final int PREFETCH_ROWS = RowLoadScheduler.PREFETCH_ROWS;
+    private static final int MAX_PREFETCHES = 6;
+    private static final long MAX_PREFETCH_BYTES = 4 * 1024 * 1024;
+    // for attachments the server didn't give us a size for
+    private static final int DEFAULT_ATTACHMENT_BYTES = 100 * 1024;
+
+    private static Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final ChatAdapter mChatAdapter;
+    private final MessageDecryptor mMessageDecryptor;
+    private final MessageImageDownloader mMessageImageDownloader;
+    private final VoiceMessageDownloader mMessageVoiceDownloader;
+    private final HashMap<String, Outstanding> mOutstanding = new HashMap<String, Outstanding>();
+    private long mOutstandingBytes;
+    private int mLastFirstVisible = -1;
+    // chats open at the bottom so the first scroll is usually back through history
+    private int mDirection = -1;
+
+    public interface Prefetch {
+        void cancel();
+    }
+
+    public RowPrefetcher(ChatAdapter chatAdapter, MessageDecryptor messageDecryptor, MessageImageDownloader messageImageDownloader,
+                         VoiceMessageDownloader messageVoiceDownloader) {
+        mChatAdapter = chatAdapter;
+        mMessageDecryptor = messageDecryptor;
+        mMessageImageDownloader = messageImageDownloader;
+        mMessageVoiceDownloader = messageVoiceDownloader;
+    }
+
+    public void onScroll(int firstVisible, int lastVisible) {
+        if (lastVisible < firstVisible) {
+            return;
+        }
+
+        if (mLastFirstVisible >= 0 && firstVisible != mLastFirstVisible) {
+            mDirection = firstVisible > mLastFirstVisible ? 1 : -1;
+        }
+        mLastFirstVisible = firstVisible;
+
+        // the rows about to come on screen, nearest first
+        ArrayList<SurespotMessage> window = new ArrayList<SurespotMessage>(PREFETCH_ROWS);
+        int count = mChatAdapter.getCount();
+        for (int i = 1; i <= PREFETCH_ROWS; i++) {
+            int position = mDirection > 0 ? lastVisible + i : firstVisible - i;
+            if (position < 0 || position >= count) {
+                break;
+            }
+            window.add((SurespotMessage) mChatAdapter.getItem(position));
+        }
+
+        HashSet<String> wanted = new HashSet<String>();
+        for (SurespotMessage message : window) {
+            if (message.getIv() != null) {
+                wanted.add(message.getIv());
+            }
+        }
+
+        Iterator<Map.Entry<String, Outstanding>> iterator = mOutstanding.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Outstanding> entry = iterator.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().mPrefetch.cancel();
+                mOutstandingBytes -= entry.getValue().mBytes;
+                iterator.remove();
+            }
+        }
+
+        for (SurespotMessage message : window) {
+            if (mOutstanding.size() >= MAX_PREFETCHES || !prefetch(message)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return false if we're out of budget
+     */
+    private boolean prefetch(SurespotMessage message) {
+        final String iv = message.getIv();
+        if (iv == null || mOutstanding.containsKey(iv) || message.getMimeType() == null) {
+            return true;
+        }
+
+        int bytes = getEstimatedBytes(message);
+        if (!mOutstanding.isEmpty() && mOutstandingBytes + bytes > MAX_PREFETCH_BYTES) {
+            return false;
+        }
+
+        final Outstanding outstanding = new Outstanding(bytes);
+        Runnable onDone = new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        done(iv, outstanding);
+                    }
+                });
+            }
+        };
+
+        Prefetch prefetch = null;
+        String mimeType = message.getMimeType();
+        if (mimeType.equals(SurespotConstants.MimeTypes.TEXT)) {
+            if (message.getPlainData() == null && !message.isLoading()) {
+                prefetch = mMessageDecryptor.prefetch(message, onDone);
+            }
+        }
+        else if (mimeType.equals(SurespotConstants.MimeTypes.IMAGE)) {
+            if (!TextUtils.isEmpty(message.getData()) || !TextUtils.isEmpty(message.getPlainData())) {
+                prefetch = mMessageImageDownloader.prefetch(message, onDone);
+            }
+        }
+        else if (mimeType.equals(SurespotConstants.MimeTypes.M4A)) {
+            if (message.getPlainBinaryData() == null) {
+                prefetch = mMessageVoiceDownloader.prefetch(message, onDone);
+            }
+        }
+
+        if (prefetch != null) {
+            outstanding.mPrefetch = prefetch;
+            mOutstanding.put(iv, outstanding);
+            mOutstandingBytes += bytes;
+        }
+        return true;
+    }
+
+    private void done(String iv, Outstanding outstanding) {
+        // only if it's still ours, it may have been cancelled and prefetched again since
+        if (mOutstanding.get(iv) == outstanding) {
+            mOutstanding.remove(iv);
+            mOutstandingBytes -= outstanding.mBytes;
+        }
+    }
+
+    private static int getEstimatedBytes(SurespotMessage message) {
+        if (SurespotConstants.MimeTypes.TEXT.equals(message.getMimeType())) {
+            return message.getData() == null ? 0 : message.getData().length();
+        }
+
+        Integer dataSize = message.getDataSize();
+        return dataSize == null ? DEFAULT_ATTACHMENT_BYTES : dataSize;
+    }
+
+    private static class Outstanding {
+        private final int mBytes;
+        private Prefetch mPrefetch;
+
+        private Outstanding(int bytes) {
+            mBytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.twofours.surespot.encryption;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.twofours.surespot.services.CredentialCachingService.SharedSecretKey;
+
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.crypto.params.ParametersWithIV;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps keyed AES-GCM ciphers around per shared secret so the AES key schedule and the GHASH tables are only expanded once per
+ * conversation instead of once per message.
+ * <p/>
+ * A context is owned by one thread between {@link #acquire} and {@link #release}; concurrent decrypts of the same conversation get
+ * their own contexts, up to {@link #MAX_CONTEXTS_PER_KEY} of which are kept for reuse.
+ */
+public class CipherContextPool {
+    private static final int MAX_KEYS = 64;
+    private static final int MAX_CONTEXTS_PER_KEY = 4;
+    private static final int EXPIRE_MINUTES = 10;
+
+    private final int mKeyLength;
+    private final Cache<SharedSecretKey, BlockingQueue<CipherContext>> mContexts = CacheBuilder.newBuilder().maximumSize(MAX_KEYS)
+            .expireAfterAccess(EXPIRE_MINUTES, TimeUnit.MINUTES).build();
+
+    public CipherContextPool(int keyLength) {
+        mKeyLength = keyLength;
+    }
+
+    /**
+     * Take a context for the key, building a new one if none is pooled or the pooled ones were keyed with a different secret.
+     */
+    public CipherContext acquire(SharedSecretKey key, byte[] secret) {
+        BlockingQueue<CipherContext> contexts = mContexts.getIfPresent(key);
+        if (contexts != null) {
+            CipherContext context;
+            while ((context = contexts.poll()) != null) {
+                if (context.isFor(secret)) {
+                    return context;
+                }
+            }
+        }
+        return new CipherContext(secret, mKeyLength);
+    }
+
+    /**
+     * Hand a context back once the operation completed successfully. Contexts that threw should just be dropped.
+     */
+    public void release(SharedSecretKey key, CipherContext context) {
+        BlockingQueue<CipherContext> contexts = mContexts.getIfPresent(key);
+        if (contexts == null) {
+            BlockingQueue<CipherContext> newContexts = new ArrayBlockingQueue<CipherContext>(MAX_CONTEXTS_PER_KEY);
+            contexts = mContexts.asMap().putIfAbsent(key, newContexts);
+            if (contexts == null) {
+                contexts = newContexts;
+            }
+        }
+        // drops the context if the queue is full
+        contexts.offer(context);
+    }
+
+    public void invalidateAll() {
+        mContexts.invalidateAll();
+    }
+
+    public static class CipherContext {
+        private final byte[] mSecret;
+        private final int mKeyLength;
+        private final GCMBlockCipher mCipher = new GCMBlockCipher(new AESEngine());
+        private boolean mKeyed;
+
+        private CipherContext(byte[] secret, int keyLength) {
+            mSecret = secret;
+            mKeyLength = keyLength;
+        }
+
+        private boolean isFor(byte[] secret) {
+            return mSecret == secret || Arrays.equals(mSecret, secret);
+        }
+
+        /**
+         * Reset the cipher for a new message. The key is only passed on first use, after which GCM keeps the expanded key and
+         * multiplier tables and just takes the new iv.
+         */
+        public GCMBlockCipher init(boolean forEncryption, byte[] iv) {
+            KeyParameter keyParameter = mKeyed ? null : new KeyParameter(mSecret, 0, mKeyLength);
+            mCipher.init(forEncryption, new ParametersWithIV(keyParameter, iv));
+            mKeyed = true;
+            return mCipher;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.twofours.surespot.encryption;
+
+import com.twofours.surespot.encryption.CipherContextPool.CipherContext;
+import com.twofours.surespot.services.CredentialCachingService.SharedSecretKey;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decrypts AES-GCM ciphertext as it's read, on the reading thread, so there's no pipe or second thread between the encrypted source
+ * and whatever consumes the plaintext.
+ * <p/>
+ * GCM only authenticates at the end: plaintext handed out before then is unverified, and reaching the end of the stream throws if
+ * the tag doesn't match. Consumers that might stop early should read to the end before trusting what they decoded.
+ */
+public class DecryptingInputStream extends FilterInputStream {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // gcm holds back up to a block plus the tag
+    private static final int CIPHER_OVERHEAD = 32;
+
+    private final CipherContextPool mPool;
+    private final SharedSecretKey mKey;
+    private final CipherContext mContext;
+    private final GCMBlockCipher mCipher;
+    private final byte[] mInBuffer = new byte[BUFFER_SIZE];
+    private final byte[] mOutBuffer = new byte[BUFFER_SIZE + CIPHER_OVERHEAD];
+    private int mOutPosition;
+    private int mOutLength;
+    private boolean mFinished;
+
+    DecryptingInputStream(InputStream in, CipherContextPool pool, SharedSecretKey key, CipherContext context, byte[] iv) {
+        super(in);
+        mPool = pool;
+        mKey = key;
+        mContext = context;
+        mCipher = context.init(false, iv);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return mOutBuffer[mOutPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+
+        int count = Math.min(length, mOutLength - mOutPosition);
+        System.arraycopy(mOutBuffer, mOutPosition, buffer, offset, count);
+        mOutPosition += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long skipped = 0;
+        while (skipped < byteCount && fill()) {
+            int count = (int) Math.min(byteCount - skipped, mOutLength - mOutPosition);
+            mOutPosition += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mOutLength - mOutPosition;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    // make sure there's plaintext to hand out, returns false at the end of the stream
+    private boolean fill() throws IOException {
+        while (mOutPosition >= mOutLength) {
+            if (mFinished) {
+                return false;
+            }
+
+            mOutPosition = 0;
+            int read = in.read(mInBuffer);
+            if (read == -1) {
+                try {
+                    mOutLength = mCipher.doFinal(mOutBuffer, 0);
+                }
+                catch (InvalidCipherTextException e) {
+                    mFinished = true;
+                    mOutLength = 0;
+                    throw new IOException("could not authenticate message", e);
+                }
+                mFinished = true;
+                // the context is only reusable after a clean finish
+                mPool.release(mKey, mContext);
+            }
+            else {
+                mOutLength = mCipher.processBytes(mInBuffer, 0, read, mOutBuffer, 0);
+            }
+        }
+        return true;
+    }
+}
@@ -7,11 +7,15 @@ import com.twofours.surespot.SurespotApplication;
 import com.twofours.surespot.chat.ChatUtils;
 import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
+import com.twofours.surespot.encryption.CipherContextPool.CipherContext;
 import com.twofours.surespot.network.IAsyncCallback;
+import com.twofours.surespot.services.CredentialCachingService;
+import com.twofours.surespot.services.CredentialCachingService.SharedSecretKey;
+import com.twofours.surespot.services.CredentialCachingService.VersionMap;
 
 import org.spongycastle.crypto.InvalidCipherTextException;
 import org.spongycastle.crypto.digests.SHA256Digest;
-import org.spongycastle.crypto.engines.AESLightEngine;
+import org.spongycastle.crypto.engines.AESEngine;
 import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
 import org.spongycastle.crypto.modes.GCMBlockCipher;
 import org.spongycastle.crypto.params.KeyParameter;
@@ -42,6 +46,8 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -55,6 +61,7 @@ public class EncryptionController {
     private static final int PBKDF_ROUNDS_LEGACY = 1000;
     private static final int PBKDF_ROUNDS = 5000;
     private static final int BUFFER_SIZE = 1024;
+    private static final int STREAM_BUFFER_SIZE = 32 * 1024;
     private static final String TAG = "EncryptionController";
     private static final int AES_KEY_LENGTH = 32;
     private static final int SALT_LENGTH = 16;
@@ -62,15 +69,38 @@ public class EncryptionController {
 
     private static ECParameterSpec curve = ECNamedCurveTable.getParameterSpec("secp521r1");
     private static SecureRandom mSecureRandom = new SurespotSecureRandom();
+    private static CipherContextPool mCipherContexts = new CipherContextPool(AES_KEY_LENGTH);
+    // local state and identities are encrypted with keys stretched from the password, stretch each once a session
+    private static SessionKeyManager mStateKeys = new SessionKeyManager(PBKDF_ROUNDS, mSecureRandom);
+    private static SessionKeyManager mIdentityKeys = new SessionKeyManager(PBKDF_ROUNDS_LEGACY, mSecureRandom);
+
+    // looking up a KeyFactory searches the providers every time and they aren't thread safe, so keep one per algorithm per thread
+    // declared before ServerPublicKey which needs it to be created
+    private static final ThreadLocal<HashMap<String, KeyFactory>> mKeyFactories = new ThreadLocal<HashMap<String, KeyFactory>>() {
+        @Override
+        protected HashMap<String, KeyFactory> initialValue() {
+            return new HashMap<String, KeyFactory>();
+        }
+    };
 
     public static final PublicKey ServerPublicKey = recreatePublicKey("ecdsa", SurespotConstants.SERVER_PUBLIC_KEY);
 
+    private static KeyFactory getKeyFactory(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException {
+        HashMap<String, KeyFactory> keyFactories = mKeyFactories.get();
+        KeyFactory keyFactory = keyFactories.get(algorithm);
+        if (keyFactory == null) {
+            keyFactory = KeyFactory.getInstance(algorithm, "SC");
+            keyFactories.put(algorithm, keyFactory);
+        }
+        return keyFactory;
+    }
+
     public static ECPublicKey recreatePublicKey(String algorithm, String encodedKey) {
 
         try {
             if (encodedKey != null) {
                 X509EncodedKeySpec spec = new X509EncodedKeySpec(decodePublicKey(encodedKey));
-                KeyFactory fact = KeyFactory.getInstance(algorithm, "SC");
+                KeyFactory fact = getKeyFactory(algorithm);
                 ECPublicKey pubKey = (ECPublicKey) fact.generatePublic(spec);
                 return pubKey;
             }
@@ -86,7 +116,7 @@ public class EncryptionController {
     public static ECPrivateKey recreatePrivateKey(String algorithm, String encodedKey) {
         PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(ChatUtils.base64DecodeNowrap(encodedKey));
         try {
-            KeyFactory fact = KeyFactory.getInstance(algorithm, "SC");
+            KeyFactory fact = getKeyFactory(algorithm);
             ECPrivateKey privKey = (ECPrivateKey) fact.generatePrivate(spec);
             return privKey;
         }
@@ -130,7 +160,7 @@ public class EncryptionController {
             protected void onPostExecute(KeyPair[] result) {
                 callback.handleResponse(result);
             }
-        }.execute();
+        }.executeOnExecutor(SurespotApplication.CRYPTO_EXECUTOR);
     }
 
     public static KeyPair[] generateKeyPairsSync() {
@@ -342,64 +372,6 @@ public class EncryptionController {
         return null;
     }
 
-    public static void runEncryptTask(final String ourVersion, final String theirUsername, final String theirVersion, final String ivs, final InputStream in,
-                                      final OutputStream out) {
-        final byte[] iv = ChatUtils.base64DecodeNowrap(ivs);
-        Runnable runnable = new Runnable() {
-            @Override
-            public void run() {
-
-                byte[] buf = new byte[BUFFER_SIZE]; // input buffer
-                try {
-                    final IvParameterSpec ivParams = new IvParameterSpec(iv);
-                    Cipher ccm = Cipher.getInstance("AES/GCM/NoPadding", "SC");
-
-                    SecretKey key = new SecretKeySpec(SurespotApplication.getCachingService().getSharedSecret(ourVersion, theirUsername, theirVersion, true), 0,
-                            AES_KEY_LENGTH, "AES");
-                    ccm.init(Cipher.ENCRYPT_MODE, key, ivParams);
-
-                    CipherOutputStream cos = new CipherOutputStream(out, ccm);
-                    BufferedOutputStream bos = new BufferedOutputStream(cos);
-
-                    int i = 0;
-
-                    while ((i = in.read(buf)) != -1) {
-                        if (Thread.interrupted()) {
-                            break;
-                        }
-                        bos.write(buf, 0, i);
-                        // SurespotLog.v(TAG, "encrypted " + i + " bytes");
-                    }
-
-                    // cos.close();
-                    bos.close();
-
-                    //
-
-                }
-                catch (InvalidCacheLoadException icle) {
-                    // will occur if couldn't load key
-                    SurespotLog.v(TAG, icle, "encryptTask");
-                }
-
-                catch (Exception e) {
-                    SurespotLog.w(TAG, e, "encryptTask");
-                }
-                finally {
-                    try {
-                        in.close();
-                        out.close();
-                    }
-                    catch (IOException e) {
-                        SurespotLog.w(TAG, e, "encryptTask");
-                    }
-                }
-            }
-        };
-
-        SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
-    }
-
     public static String runEncryptTask(final String ourVersion, final String theirUsername, final String theirVersion, final InputStream in,
                                         final OutputStream out) {
         final byte[] iv = new byte[IV_LENGTH];
@@ -456,6 +428,7 @@ public class EncryptionController {
             }
         };
 
+        // these block on whoever reads the other end of the pipe so keep them off the bounded lanes where they could wait on work queued behind them
         SurespotApplication.THREAD_POOL_EXECUTOR.execute(runnable);
         return new String(ChatUtils.base64EncodeNowrap(iv));
     }
@@ -533,36 +506,102 @@ public class EncryptionController {
 
     public static byte[] symmetricDecryptBytes(final String ourVersion, final String username, final String theirVersion, final String ivs, final boolean hashed,
                                                final String cipherData) {
-        GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
-
-        byte[] cipherBytes = null;
-        byte[] iv = null;
-        ParametersWithIV ivParams = null;
         try {
+            byte[] cipherBytes = ChatUtils.base64DecodeNowrap(cipherData);
+            byte[] iv = ChatUtils.base64DecodeNowrap(ivs);
+            return symmetricProcess(false, ourVersion, username, theirVersion, hashed, iv, cipherBytes);
+        }
+        catch (Exception e) {
+            SurespotLog.w(TAG, e, "symmetricDecrypt");
+        }
+        return null;
 
-            cipherBytes = ChatUtils.base64DecodeNowrap(cipherData);
-            iv = ChatUtils.base64DecodeNowrap(ivs);
-            byte[] secret = SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion, hashed);
-            if (secret == null) {
-                return null;
-            }
-            ivParams = new ParametersWithIV(new KeyParameter(secret, 0, AES_KEY_LENGTH), iv);
+    }
 
-            ccm.reset();
-            ccm.init(false, ivParams);
+    /**
+     * Run the shared secret cipher over the input using a pooled cipher context so the key is only expanded once per conversation.
+     *
+     * @return the output or null if the shared secret could not be loaded
+     */
+    private static byte[] symmetricProcess(boolean forEncryption, String ourVersion, String username, String theirVersion, boolean hashed, byte[] iv,
+                                           byte[] input) throws InvalidCipherTextException {
+        CredentialCachingService cachingService = SurespotApplication.getCachingService();
+        byte[] secret = cachingService.getSharedSecret(ourVersion, username, theirVersion, hashed);
+        if (secret == null) {
+            return null;
+        }
 
-            byte[] buf = new byte[ccm.getOutputSize(cipherBytes.length)];
+        SharedSecretKey key = new SharedSecretKey(new VersionMap(cachingService.getLoggedInUser(), ourVersion), new VersionMap(username, theirVersion), hashed);
+        CipherContext context = mCipherContexts.acquire(key, secret);
+        GCMBlockCipher ccm = context.init(forEncryption, iv);
 
-            int len = ccm.processBytes(cipherBytes, 0, cipherBytes.length, buf, 0);
+        byte[] buf = new byte[ccm.getOutputSize(input.length)];
+        int len = ccm.processBytes(input, 0, input.length, buf, 0);
+        len += ccm.doFinal(buf, len);
 
-            len += ccm.doFinal(buf, len);
-            return buf;
+        // only pool the context if the cipher completed, a failed tag check leaves it mid message
+        mCipherContexts.release(key, context);
+        return buf;
+    }
+
+    /**
+     * Encrypt a whole stream on the calling thread with a pooled cipher context, for attachments that are written straight to a file.
+     * Closes neither stream. Returns false if we don't have the shared secret.
+     */
+    public static boolean symmetricEncryptStream(String ourVersion, String username, String theirVersion, byte[] iv, InputStream in, OutputStream out)
+            throws IOException {
+        CredentialCachingService cachingService = SurespotApplication.getCachingService();
+        byte[] secret = cachingService.getSharedSecret(ourVersion, username, theirVersion, true);
+        if (secret == null) {
+            return false;
         }
-        catch (Exception e) {
-            SurespotLog.w(TAG, e, "symmetricDecrypt");
+
+        SharedSecretKey key = new SharedSecretKey(new VersionMap(cachingService.getLoggedInUser(), ourVersion), new VersionMap(username, theirVersion), true);
+        CipherContext context = mCipherContexts.acquire(key, secret);
+        GCMBlockCipher ccm = context.init(true, iv);
+
+        byte[] buf = new byte[STREAM_BUFFER_SIZE];
+        byte[] cipherBuf = new byte[ccm.getOutputSize(STREAM_BUFFER_SIZE)];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            int len = ccm.processBytes(buf, 0, read, cipherBuf, 0);
+            out.write(cipherBuf, 0, len);
         }
-        return null;
 
+        try {
+            int len = ccm.doFinal(cipherBuf, 0);
+            out.write(cipherBuf, 0, len);
+        }
+        catch (InvalidCipherTextException e) {
+            // can't happen encrypting
+            throw new IOException(e);
+        }
+
+        mCipherContexts.release(key, context);
+        return true;
+    }
+
+    /**
+     * Wrap the encrypted stream in one that decrypts as it's read on the calling thread. Returns null if we don't have the shared secret.
+     */
+    public static InputStream symmetricDecryptStream(String ourVersion, String username, String theirVersion, String ivs, boolean hashed, InputStream in) {
+        CredentialCachingService cachingService = SurespotApplication.getCachingService();
+        byte[] secret = cachingService.getSharedSecret(ourVersion, username, theirVersion, hashed);
+        if (secret == null) {
+            return null;
+        }
+
+        SharedSecretKey key = new SharedSecretKey(new VersionMap(cachingService.getLoggedInUser(), ourVersion), new VersionMap(username, theirVersion), hashed);
+        return new DecryptingInputStream(in, mCipherContexts, key, mCipherContexts.acquire(key, secret), ChatUtils.base64DecodeNowrap(ivs));
+    }
+
+    public static void clearCipherContexts() {
+        mCipherContexts.invalidateAll();
+    }
+
+    public static void clearSessionKeys() {
+        mStateKeys.clear();
+        mIdentityKeys.clear();
     }
 
     public static byte[] getIv() {
@@ -576,58 +615,16 @@ public class EncryptionController {
     }
 
     public static String symmetricEncrypt(final String ourVersion, final String username, final String theirVersion, final String plaintext, byte[] iv) {
-
-        GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
-        // byte[] iv = new byte[IV_LENGTH];
-        // mSecureRandom.nextBytes(iv);
-        ParametersWithIV ivParams;
-        try {
-            ivParams = new ParametersWithIV(new KeyParameter(SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion, true), 0,
-                    AES_KEY_LENGTH), iv);
-
-            ccm.reset();
-            ccm.init(true, ivParams);
-
-            byte[] enc = plaintext.getBytes();
-            byte[] buf = new byte[ccm.getOutputSize(enc.length)];
-
-            int len = ccm.processBytes(enc, 0, enc.length, buf, 0);
-
-            len += ccm.doFinal(buf, len);
-            return new String(ChatUtils.base64EncodeNowrap(buf));
-
-        }
-        catch (InvalidCacheLoadException icle) {
-            // will occur if couldn't load key
-            SurespotLog.v(TAG, icle, "symmetricEncrypt");
-        }
-        catch (Exception e) {
-            SurespotLog.w(TAG, e, "symmetricEncrypt");
+        byte[] buf = symmetricEncrypt(ourVersion, username, theirVersion, plaintext.getBytes(), iv);
+        if (buf == null) {
+            return null;
         }
-        return null;
+        return new String(ChatUtils.base64EncodeNowrap(buf));
     }
 
     public static byte[] symmetricEncrypt(final String ourVersion, final String username, final String theirVersion, final byte[] plainBytes, byte[] iv) {
-
-        GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
-        // byte[] iv = new byte[IV_LENGTH];
-        // mSecureRandom.nextBytes(iv);
-        ParametersWithIV ivParams;
         try {
-            ivParams = new ParametersWithIV(new KeyParameter(SurespotApplication.getCachingService().getSharedSecret(ourVersion, username, theirVersion, true), 0,
-                    AES_KEY_LENGTH), iv);
-
-            ccm.reset();
-            ccm.init(true, ivParams);
-
-            byte[] enc = plainBytes;
-            byte[] buf = new byte[ccm.getOutputSize(enc.length)];
-
-            int len = ccm.processBytes(enc, 0, enc.length, buf, 0);
-
-            len += ccm.doFinal(buf, len);
-            return buf;
-
+            return symmetricProcess(true, ourVersion, username, theirVersion, true, iv, plainBytes);
         }
         catch (InvalidCacheLoadException icle) {
             // will occur if couldn't load key
@@ -648,12 +645,12 @@ public class EncryptionController {
      */
     public static byte[] symmetricEncryptSyncPK(final String password, final String plaintext) {
 
-        GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
+        GCMBlockCipher ccm = new GCMBlockCipher(new AESEngine());
         byte[] iv = new byte[IV_LENGTH];
         mSecureRandom.nextBytes(iv);
         ParametersWithIV ivParams;
         try {
-            byte[][] derived = EncryptionController.derive(password);
+            byte[][] derived = mIdentityKeys.getEncryptionKey(password, SALT_LENGTH);
             ivParams = new ParametersWithIV(new KeyParameter(derived[1], 0, AES_KEY_LENGTH), iv);
 
             ccm.reset();
@@ -696,7 +693,7 @@ public class EncryptionController {
             return null;
         }
 
-        GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
+        GCMBlockCipher ccm = new GCMBlockCipher(new AESEngine());
 
         byte[] cipherBytes = new byte[cipherData.length - IV_LENGTH - SALT_LENGTH];
         byte[] iv = new byte[IV_LENGTH];
@@ -707,7 +704,7 @@ public class EncryptionController {
             System.arraycopy(cipherData, IV_LENGTH, salt, 0, SALT_LENGTH);
             System.arraycopy(cipherData, IV_LENGTH + SALT_LENGTH, cipherBytes, 0, cipherData.length - IV_LENGTH - SALT_LENGTH);
 
-            byte[] derived = derive(password, salt);
+            byte[] derived = mIdentityKeys.getDecryptionKey(password, salt);
             if (derived == null) {
                 return null;
             }
@@ -744,9 +741,8 @@ public class EncryptionController {
 
         byte[][] derived = new byte[2][];
         byte[] keyBytes = null;
-        SecureRandom random = new SurespotSecureRandom();
         byte[] salt = new byte[saltLength];
-        random.nextBytes(salt);
+        mSecureRandom.nextBytes(salt);
 
         PKCS5S2ParametersGenerator gen = new PKCS5S2ParametersGenerator(new SHA256Digest());
         gen.init(password.getBytes(), salt, iterationCount);
@@ -775,12 +771,12 @@ public class EncryptionController {
 
     public static byte[] encryptData(final String password, final byte[] plaindata) {
 
-        GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
+        GCMBlockCipher ccm = new GCMBlockCipher(new AESEngine());
         byte[] iv = new byte[IV_LENGTH];
         mSecureRandom.nextBytes(iv);
         ParametersWithIV ivParams;
         try {
-            byte[][] derived = EncryptionController.derive(password, PBKDF_ROUNDS);
+            byte[][] derived = mStateKeys.getEncryptionKey(password, SALT_LENGTH);
             ivParams = new ParametersWithIV(new KeyParameter(derived[1], 0, AES_KEY_LENGTH), iv);
 
             ccm.reset();
@@ -813,6 +809,16 @@ public class EncryptionController {
 
     }
 
+    /**
+     * @return the salt the key for data from {@link #encryptData} was stretched with, or null if it's too short to have one
+     */
+    public static byte[] getDataSalt(byte[] cipherData) {
+        if (cipherData == null || cipherData.length < IV_LENGTH + SALT_LENGTH) {
+            return null;
+        }
+        return Arrays.copyOfRange(cipherData, IV_LENGTH, IV_LENGTH + SALT_LENGTH);
+    }
+
     /**
      * Derive key from password
      *
@@ -823,7 +829,7 @@ public class EncryptionController {
             return null;
         }
 
-        GCMBlockCipher ccm = new GCMBlockCipher(new AESLightEngine());
+        GCMBlockCipher ccm = new GCMBlockCipher(new AESEngine());
 
         byte[] cipherBytes = new byte[cipherData.length - IV_LENGTH - SALT_LENGTH];
         byte[] iv = new byte[IV_LENGTH];
@@ -834,7 +840,7 @@ public class EncryptionController {
             System.arraycopy(cipherData, IV_LENGTH, salt, 0, SALT_LENGTH);
             System.arraycopy(cipherData, IV_LENGTH + SALT_LENGTH, cipherBytes, 0, cipherData.length - IV_LENGTH - SALT_LENGTH);
 
-            byte[] derived = derive(password, salt, PBKDF_ROUNDS);
+            byte[] derived = mStateKeys.getDecryptionKey(password, salt);
             if (derived == null) {
                 return null;
             }
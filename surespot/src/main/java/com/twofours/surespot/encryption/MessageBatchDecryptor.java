@@ -0,0 +1,124 @@
+package com.twofours.surespot.encryption;
+
+import android.content.Context;
+
+import com.twofours.surespot.R;
+import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.chat.EmojiParser;
+import com.twofours.surespot.chat.SurespotMessage;
+import com.twofours.surespot.common.SurespotConstants;
+import com.twofours.surespot.common.SurespotLog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decrypts the text of pages of messages from the server before they reach the chat adapter, so it can take a whole page in one go
+ * instead of the list spawning a decrypt task per row.
+ * <p/>
+ * Text messages are grouped by the shared secret they were encrypted with and decrypted in chunks on the crypto lane and the calling
+ * thread, which lets each chunk reuse the same pooled cipher context.
+ */
+public class MessageBatchDecryptor {
+    private static final String TAG = "MessageBatchDecryptor";
+    private static final int CHUNK_SIZE = 25;
+
+    /**
+     * Decrypt the text of the messages for each user in place, blocks until they're all done so call it off the main thread.
+     */
+    public static Map<String, List<SurespotMessage>> decryptSync(Context context, Map<String, List<SurespotMessage>> messages) {
+        long start = System.currentTimeMillis();
+        Map<String, List<SurespotMessage>> textMessagesByKey = new LinkedHashMap<String, List<SurespotMessage>>();
+        int textCount = 0;
+
+        for (List<SurespotMessage> userMessages : messages.values()) {
+            for (SurespotMessage message : userMessages) {
+                if (SurespotConstants.MimeTypes.TEXT.equals(message.getMimeType()) && message.getPlainData() == null) {
+                    String key = message.getOurVersion() + ":" + message.getOtherUser() + ":" + message.getTheirVersion() + ":" + message.isHashed();
+                    List<SurespotMessage> keyMessages = textMessagesByKey.get(key);
+                    if (keyMessages == null) {
+                        keyMessages = new ArrayList<SurespotMessage>();
+                        textMessagesByKey.put(key, keyMessages);
+                    }
+                    keyMessages.add(message);
+                    textCount++;
+                }
+            }
+        }
+
+        List<FutureTask<Void>> chunks = new ArrayList<FutureTask<Void>>();
+        final String errorText = context.getString(R.string.message_error_decrypting_message);
+        for (List<SurespotMessage> keyMessages : textMessagesByKey.values()) {
+            for (int i = 0; i < keyMessages.size(); i += CHUNK_SIZE) {
+                final List<SurespotMessage> chunk = keyMessages.subList(i, Math.min(i + CHUNK_SIZE, keyMessages.size()));
+                chunks.add(new FutureTask<Void>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        decryptChunk(chunk, errorText);
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        if (chunks.size() == 1) {
+            // not worth the hand off
+            decryptChunk(textMessagesByKey.values().iterator().next(), errorText);
+        }
+        else if (chunks.size() > 1) {
+            runChunks(chunks);
+        }
+
+        SurespotLog.d(TAG, "decrypted %d text messages in %d chunks for %d users in %d ms", textCount, chunks.size(), messages.size(),
+                System.currentTimeMillis() - start);
+        return messages;
+    }
+
+    /**
+     * Run the chunks on the crypto lane and on this thread. This thread runs any chunk the lane hasn't started yet, so a busy lane, or
+     * being called from the lane, can't stall it.
+     */
+    private static void runChunks(List<FutureTask<Void>> chunks) {
+        for (int i = 1; i < chunks.size(); i++) {
+            SurespotApplication.CRYPTO_EXECUTOR.execute(chunks.get(i));
+        }
+
+        for (FutureTask<Void> chunk : chunks) {
+            // does nothing if the lane has it
+            chunk.run();
+            try {
+                chunk.get();
+            }
+            catch (InterruptedException e) {
+                SurespotLog.i(TAG, e, "decryptSync interrupted");
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                SurespotLog.w(TAG, e, "runChunks");
+            }
+        }
+    }
+
+    private static void decryptChunk(List<SurespotMessage> chunk, String errorText) {
+        EmojiParser parser = EmojiParser.getInstance();
+        for (SurespotMessage message : chunk) {
+            String plainText = EncryptionController.symmetricDecrypt(message.getOurVersion(), message.getOtherUser(), message.getTheirVersion(),
+                    message.getIv(), message.isHashed(), message.getData());
+
+            if (plainText != null) {
+                message.setPlainData(parser.addEmojiSpans(plainText));
+            }
+            else {
+                // error decrypting
+                SurespotLog.d(TAG, "could not decrypt message");
+                message.setPlainData(errorText);
+            }
+        }
+    }
+}
@@ -27,6 +27,8 @@ import com.twofours.surespot.SurespotApplication;
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.chat.ChatAdapter;
 import com.twofours.surespot.chat.EmojiParser;
+import com.twofours.surespot.chat.RowLoadScheduler;
+import com.twofours.surespot.chat.RowPrefetcher;
 import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.ui.UIUtils;
@@ -65,10 +67,23 @@ public class MessageDecryptor {
 		textView.setTag(decryptionTaskWrapper);
 		message.setLoading(true);
 		message.setLoaded(false);
-		SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+		mChatAdapter.getRowLoadScheduler().execute("decrypt", SurespotApplication.CRYPTO_EXECUTOR, task);
 
 	}
 
+	/**
+	 * Decrypt a message whose row is about to be shown so it's ready when bound. Leaves the message's loading state alone as nothing is
+	 * waiting on it.
+	 *
+	 * @param onDone
+	 *            run on the decrypting thread once it's finished or dropped
+	 */
+	public RowPrefetcher.Prefetch prefetch(SurespotMessage message, Runnable onDone) {
+		PrefetchTask task = new PrefetchTask(message, onDone);
+		mChatAdapter.getRowLoadScheduler().execute("prefetch decrypt", SurespotApplication.CRYPTO_EXECUTOR, task);
+		return task;
+	}
+
 	/**
 	 * @param imageView
 	 *            Any imageView
@@ -88,7 +103,7 @@ public class MessageDecryptor {
 	/**
 	 * The actual AsyncTask that will asynchronously download the image.
 	 */
-	class DecryptionTask implements Runnable {
+	class DecryptionTask implements RowLoadScheduler.RowTask {
 		private SurespotMessage mMessage;
 
 		private final WeakReference<TextView> textViewReference;
@@ -98,6 +113,25 @@ public class MessageDecryptor {
 			mMessage = message;
 		}
 
+		@Override
+		public SurespotMessage getMessage() {
+			return mMessage;
+		}
+
+		@Override
+		public boolean isStale() {
+			// the row has been rebound to another message
+			TextView textView = textViewReference.get();
+			return textView == null || getDecryptionTask(textView) != this;
+		}
+
+		@Override
+		public void onDropped() {
+			// it'll be decrypted when it's bound again
+			mMessage.setLoading(false);
+			mChatAdapter.checkLoaded();
+		}
+
 		@Override
 		public void run() {
 			final CharSequence plainText = EncryptionController.symmetricDecrypt(mMessage.getOurVersion(), mMessage.getOtherUser(),
@@ -144,6 +178,50 @@ public class MessageDecryptor {
 		}
 	}
 
+	class PrefetchTask implements RowLoadScheduler.RowTask, RowPrefetcher.Prefetch {
+		private final SurespotMessage mMessage;
+		private final Runnable mOnDone;
+		private volatile boolean mCancelled;
+
+		public PrefetchTask(SurespotMessage message, Runnable onDone) {
+			mMessage = message;
+			mOnDone = onDone;
+		}
+
+		@Override
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		@Override
+		public SurespotMessage getMessage() {
+			return mMessage;
+		}
+
+		@Override
+		public boolean isStale() {
+			// the row was bound first and is decrypting it itself
+			return mCancelled || mMessage.getPlainData() != null || mMessage.isLoading();
+		}
+
+		@Override
+		public void onDropped() {
+			mOnDone.run();
+		}
+
+		@Override
+		public void run() {
+			final CharSequence plainText = EncryptionController.symmetricDecrypt(mMessage.getOurVersion(), mMessage.getOtherUser(),
+					mMessage.getTheirVersion(), mMessage.getIv(), mMessage.isHashed(), mMessage.getData());
+
+			// leave failures for the bind to report
+			if (plainText != null && mMessage.getPlainData() == null) {
+				mMessage.setPlainData(EmojiParser.getInstance().addEmojiSpans(plainText.toString()));
+			}
+			mOnDone.run();
+		}
+	}
+
 	/**
 	 * makes sure that only the last started decrypt process can bind its result, independently of the finish order. </p>
 	 */
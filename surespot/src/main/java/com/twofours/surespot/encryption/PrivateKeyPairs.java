@@ -1,23 +1,50 @@
 package com.twofours.surespot.encryption;
 
+import com.twofours.surespot.chat.ChatUtils;
+
 import java.security.KeyPair;
 
+/**
+ * An identity's keys for one version. When loaded from a saved identity the keys are only recreated from their encodings the first time
+ * they're used, most versions of an identity that has rolled its keys a few times never are.
+ */
 public class PrivateKeyPairs {
 	private String mVersion;
 	private KeyPair mKeyPairDH;
 	private KeyPair mKeyPairDSA;
 
+	private String mEncodedDHPublic;
+	private String mEncodedDHPrivate;
+	private String mEncodedDSAPublic;
+	private String mEncodedDSAPrivate;
+
 	public PrivateKeyPairs(String version, KeyPair keyPairDH, KeyPair keyPairDSA) {
 		mVersion = version;
 		mKeyPairDH = keyPairDH;
 		mKeyPairDSA = keyPairDSA;
 	}
 
-	public KeyPair getKeyPairDH() {
+	public PrivateKeyPairs(String version, String encodedDHPublic, String encodedDHPrivate, String encodedDSAPublic, String encodedDSAPrivate) {
+		mVersion = version;
+		mEncodedDHPublic = encodedDHPublic;
+		mEncodedDHPrivate = encodedDHPrivate;
+		mEncodedDSAPublic = encodedDSAPublic;
+		mEncodedDSAPrivate = encodedDSAPrivate;
+	}
+
+	public synchronized KeyPair getKeyPairDH() {
+		if (mKeyPairDH == null) {
+			mKeyPairDH = new KeyPair(EncryptionController.recreatePublicKey("ECDH", mEncodedDHPublic), EncryptionController.recreatePrivateKey("ECDH",
+					mEncodedDHPrivate));
+		}
 		return mKeyPairDH;
 	}
 
-	public KeyPair getKeyPairDSA() {
+	public synchronized KeyPair getKeyPairDSA() {
+		if (mKeyPairDSA == null) {
+			mKeyPairDSA = new KeyPair(EncryptionController.recreatePublicKey("ECDSA", mEncodedDSAPublic), EncryptionController.recreatePrivateKey("ECDSA",
+					mEncodedDSAPrivate));
+		}
 		return mKeyPairDSA;
 	}
 
@@ -25,4 +52,33 @@ public class PrivateKeyPairs {
 		return mVersion;
 	}
 
+	// the encodings are what the identity is saved as, so saving doesn't need the keys recreated
+
+	public synchronized String getEncodedDHPublic() {
+		if (mEncodedDHPublic == null) {
+			mEncodedDHPublic = EncryptionController.encodePublicKey(mKeyPairDH.getPublic());
+		}
+		return mEncodedDHPublic;
+	}
+
+	public synchronized String getEncodedDHPrivate() {
+		if (mEncodedDHPrivate == null) {
+			mEncodedDHPrivate = new String(ChatUtils.base64EncodeNowrap(mKeyPairDH.getPrivate().getEncoded()));
+		}
+		return mEncodedDHPrivate;
+	}
+
+	public synchronized String getEncodedDSAPublic() {
+		if (mEncodedDSAPublic == null) {
+			mEncodedDSAPublic = EncryptionController.encodePublicKey(mKeyPairDSA.getPublic());
+		}
+		return mEncodedDSAPublic;
+	}
+
+	public synchronized String getEncodedDSAPrivate() {
+		if (mEncodedDSAPrivate == null) {
+			mEncodedDSAPrivate = new String(ChatUtils.base64EncodeNowrap(mKeyPairDSA.getPrivate().getEncoded()));
+		}
+		return mEncodedDSAPrivate;
+	}
 }
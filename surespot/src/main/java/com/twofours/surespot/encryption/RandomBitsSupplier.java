@@ -25,6 +25,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.ProviderException;
+import java.util.Arrays;
 
 /**
  *  The static class providing access on Linux platform
@@ -70,6 +71,15 @@ public class RandomBitsSupplier {
      */
     private static final String DEVICE_NAMES[] = { "/dev/urandom" /*, "/dev/random" */ };
 
+    /**
+     * Small requests are served from one large read of the device so seeding
+     * a generator per thread doesn't mean a read per thread. Bits are zeroed
+     * once handed out and never handed out twice.
+     */
+    private static final int POOL_SIZE = 4096;
+    private static final byte[] pool = new byte[POOL_SIZE];
+    private static int poolPosition = POOL_SIZE;
+
     static {
         for (String deviceName : DEVICE_NAMES) {
             try {
@@ -135,6 +145,24 @@ public class RandomBitsSupplier {
         return bytes;
     }
 
+    /**
+     * Takes numBytes from the pool, refilling it from the device when it runs low.
+     */
+    private static synchronized byte[] getPooledRandomBits(int numBytes) {
+        if (POOL_SIZE - poolPosition < numBytes) {
+            byte[] bytes = getUnixDeviceRandom(POOL_SIZE);
+            System.arraycopy(bytes, 0, pool, 0, POOL_SIZE);
+            Arrays.fill(bytes, (byte) 0);
+            poolPosition = 0;
+        }
+
+        byte[] bytes = new byte[numBytes];
+        System.arraycopy(pool, poolPosition, bytes, 0, numBytes);
+        Arrays.fill(pool, poolPosition, poolPosition + numBytes, (byte) 0);
+        poolPosition += numBytes;
+        return bytes;
+    }
+
     /**
      * The method returns byte array of requested length provided service is available.
      * ProviderException gets thrown otherwise.
@@ -157,6 +185,9 @@ public class RandomBitsSupplier {
             throw new ProviderException("ATTENTION: service is not available : no random devices");
         }
 
-        return getUnixDeviceRandom(numBytes);
+        if (numBytes > POOL_SIZE / 8) {
+            return getUnixDeviceRandom(numBytes);
+        }
+        return getPooledRandomBits(numBytes);
     }
 }
@@ -0,0 +1,99 @@
+package com.twofours.surespot.encryption;
+
+import com.twofours.surespot.chat.ChatUtils;
+import com.twofours.surespot.common.SurespotLog;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps keys derived from passwords for the session so encrypting and decrypting local data doesn't stretch the password every time.
+ * <p/>
+ * Each password gets one random salt for the session which everything it encrypts uses. The salt is still saved with the data so the
+ * password alone can derive the key again, the format doesn't change.
+ */
+public class SessionKeyManager {
+    private static final String TAG = "SessionKeyManager";
+    private static final int MAX_KEYS = 16;
+
+    private final int mIterationCount;
+    private final SecureRandom mSecureRandom;
+    // by password digest and salt, never by the password itself
+    private final LinkedHashMap<String, byte[]> mKeys = new LinkedHashMap<String, byte[]>(MAX_KEYS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+    private final HashMap<String, byte[]> mSessionSalts = new HashMap<String, byte[]>();
+
+    public SessionKeyManager(int iterationCount, SecureRandom secureRandom) {
+        mIterationCount = iterationCount;
+        mSecureRandom = secureRandom;
+    }
+
+    /**
+     * @return the salt and key to encrypt with
+     */
+    public byte[][] getEncryptionKey(String password, int saltLength) {
+        String passwordId = getPasswordId(password);
+        byte[] salt;
+        synchronized (this) {
+            salt = mSessionSalts.get(passwordId);
+            if (salt == null) {
+                salt = new byte[saltLength];
+                mSecureRandom.nextBytes(salt);
+                mSessionSalts.put(passwordId, salt);
+            }
+        }
+
+        byte[][] derived = new byte[2][];
+        derived[0] = salt;
+        derived[1] = getKey(passwordId, password, salt);
+        return derived;
+    }
+
+    public byte[] getDecryptionKey(String password, byte[] salt) {
+        return getKey(getPasswordId(password), password, salt);
+    }
+
+    public synchronized void clear() {
+        mKeys.clear();
+        mSessionSalts.clear();
+    }
+
+    private byte[] getKey(String passwordId, String password, byte[] salt) {
+        String id = passwordId + ":" + new String(ChatUtils.base64EncodeNowrap(salt));
+        synchronized (this) {
+            byte[] key = mKeys.get(id);
+            if (key != null) {
+                return key;
+            }
+        }
+
+        // derive without holding the lock, at worst two threads derive the same key once
+        byte[] key = EncryptionController.derive(password, salt, mIterationCount);
+        synchronized (this) {
+            mKeys.put(id, key);
+        }
+        return key;
+    }
+
+    /**
+     * @return an id for the password that can be held onto and compared without holding the password
+     */
+    public static String getPasswordId(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return new String(ChatUtils.base64EncodeNowrap(digest.digest(password.getBytes())));
+        }
+        catch (NoSuchAlgorithmException e) {
+            SurespotLog.w(TAG, e, "getPasswordId");
+            throw new IllegalStateException(e);
+        }
+    }
+}
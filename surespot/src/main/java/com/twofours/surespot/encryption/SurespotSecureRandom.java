@@ -3,8 +3,21 @@ package com.twofours.surespot.encryption;
 import java.security.SecureRandom;
 
 @SuppressWarnings("serial")
-public class SurespotSecureRandom extends SecureRandom {	
+public class SurespotSecureRandom extends SecureRandom {
+	private final SurespotSecureRandomSpi mSpi;
+
 	public SurespotSecureRandom() {
-		super(new SurespotSecureRandomSpi(),null);
+		this(new SurespotSecureRandomSpi());
+	}
+
+	private SurespotSecureRandom(SurespotSecureRandomSpi spi) {
+		super(spi, null);
+		mSpi = spi;
+	}
+
+	// SecureRandom.nextBytes is synchronized, the spi keeps a generator per thread so it doesn't need to be
+	@Override
+	public void nextBytes(byte[] bytes) {
+		mSpi.engineNextBytes(bytes);
 	}
 }
@@ -6,34 +6,36 @@ import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.prng.DigestRandomGenerator;
 import org.spongycastle.crypto.prng.RandomGenerator;
 
-import com.twofours.surespot.common.SurespotLog;
-
 
 //work around this massive problem by using bouncy castle PRNG and linux random device
 //http://www.scribd.com/doc/131955288/Randomly-Failed-The-State-of-Randomness-in-Current-Java-Implementations
+//each thread gets its own generator seeded from the device so threads encrypting in parallel don't wait on each other for ivs
 @SuppressWarnings("serial")
 public class SurespotSecureRandomSpi extends SecureRandomSpi {
-	private static final String TAG = "SurespotSecureRandomSpi";
-	private RandomGenerator mGenerator;
+	private static final int SEED_LENGTH = 32;
+	// mix fresh device bits into a thread's generator after this many requests or bytes
+	private static final int RESEED_REQUESTS = 4096;
+	private static final long RESEED_BYTES = 1024 * 1024;
 
-	public SurespotSecureRandomSpi() {
-		mGenerator = new DigestRandomGenerator(new SHA256Digest());
-		mGenerator.addSeedMaterial(RandomBitsSupplier.getRandomBits(32));
-	}
+	private final transient ThreadLocal<ThreadGenerator> mGenerators = new ThreadLocal<ThreadGenerator>() {
+		@Override
+		protected ThreadGenerator initialValue() {
+			return new ThreadGenerator();
+		}
+	};
 
 	@Override
 	protected void engineSetSeed(byte[] seed) {
-		mGenerator.addSeedMaterial(seed);
+		mGenerators.get().mGenerator.addSeedMaterial(seed);
 	}
 
 	@Override
 	protected void engineNextBytes(byte[] bytes) {
-		SurespotLog.v(TAG, "engineNextBytes");
-		mGenerator.nextBytes(bytes);
+		mGenerators.get().nextBytes(bytes);
 	}
 
 	@Override
-	protected synchronized byte[] engineGenerateSeed(int numBytes) {
+	protected byte[] engineGenerateSeed(int numBytes) {
 
 		byte[] myBytes; // byte[] for bytes returned by "nextBytes()"
 
@@ -45,9 +47,27 @@ public class SurespotSecureRandomSpi extends SecureRandomSpi {
 		}
 
 		myBytes = new byte[numBytes];
-		mGenerator.nextBytes(myBytes);
+		mGenerators.get().nextBytes(myBytes);
 
 		return myBytes;
 	}
 
+	private static class ThreadGenerator {
+		private final RandomGenerator mGenerator = new DigestRandomGenerator(new SHA256Digest());
+		private int mRequests;
+		private long mBytes;
+
+		ThreadGenerator() {
+			mGenerator.addSeedMaterial(RandomBitsSupplier.getRandomBits(SEED_LENGTH));
+		}
+
+		void nextBytes(byte[] bytes) {
+			if (++mRequests > RESEED_REQUESTS || (mBytes += bytes.length) > RESEED_BYTES) {
+				mGenerator.addSeedMaterial(RandomBitsSupplier.getRandomBits(SEED_LENGTH));
+				mRequests = 0;
+				mBytes = bytes.length;
+			}
+			mGenerator.nextBytes(bytes);
+		}
+	}
 }
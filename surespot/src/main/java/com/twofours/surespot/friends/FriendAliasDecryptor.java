@@ -34,7 +34,7 @@ public class FriendAliasDecryptor {
 			DecryptionTask task = new DecryptionTask(textView, friend);
 			DecryptionTaskWrapper decryptionTaskWrapper = new DecryptionTaskWrapper(task);
 			textView.setTag(decryptionTaskWrapper);
-			SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+			SurespotApplication.CRYPTO_EXECUTOR.execute(task);
 		}
 		else {
 			textView.setText(friend.getAliasPlain());
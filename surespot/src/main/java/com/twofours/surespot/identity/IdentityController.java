@@ -24,6 +24,7 @@ import com.twofours.surespot.encryption.EncryptionController;
 import com.twofours.surespot.encryption.PrivateKeyPairs;
 import com.twofours.surespot.encryption.PublicKeys;
 import com.twofours.surespot.images.FileCacheController;
+import com.twofours.surespot.images.ThumbnailCacheController;
 import com.twofours.surespot.network.IAsyncCallback;
 import com.twofours.surespot.network.IAsyncCallbackTuple;
 import com.twofours.surespot.network.NetworkController;
@@ -55,8 +56,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -67,11 +73,14 @@ public class IdentityController {
     private static final String TAG = "IdentityController";
     public static final String IDENTITY_EXTENSION = ".ssi";
     public static final String PUBLICKEYPAIR_EXTENSION = ".spk";
+    // the latest saved public keys for a user, kept beside their keys without the key extension
+    private static final String KEY_CHECKPOINT_FILENAME = "checkpoint";
     public static final String CACHE_IDENTITY_ID = "_cache_identity";
     public static final String EXPORT_IDENTITY_ID = "_export_identity";
     public static final Object IDENTITY_FILE_LOCK = new Object();
     private static boolean mHasIdentity;
     private static KeyStore mKs;
+    private static final HashMap<String, PublicKeys> mKeyCheckpoints = new HashMap<String, PublicKeys>();
 
     private synchronized static void setLoggedInUser(final Context context, SurespotIdentity identity, Cookie cookie, String password) {
         // load the identity
@@ -170,10 +179,10 @@ public class IdentityController {
                 JSONObject jsonKeyPair = new JSONObject();
 
                 jsonKeyPair.put("version", keyPair.getVersion());
-                jsonKeyPair.put("dhPriv", new String(ChatUtils.base64EncodeNowrap(keyPair.getKeyPairDH().getPrivate().getEncoded())));
-                jsonKeyPair.put("dhPub", EncryptionController.encodePublicKey(keyPair.getKeyPairDH().getPublic()));
-                jsonKeyPair.put("dsaPriv", new String(ChatUtils.base64EncodeNowrap(keyPair.getKeyPairDSA().getPrivate().getEncoded())));
-                jsonKeyPair.put("dsaPub", EncryptionController.encodePublicKey(keyPair.getKeyPairDSA().getPublic()));
+                jsonKeyPair.put("dhPriv", keyPair.getEncodedDHPrivate());
+                jsonKeyPair.put("dhPub", keyPair.getEncodedDHPublic());
+                jsonKeyPair.put("dsaPriv", keyPair.getEncodedDSAPrivate());
+                jsonKeyPair.put("dsaPub", keyPair.getEncodedDSAPublic());
 
                 keys.put(jsonKeyPair);
             }
@@ -243,7 +252,7 @@ public class IdentityController {
                 return null;
             }
 
-        }.execute();
+        }.executeOnExecutor(SurespotApplication.CRYPTO_EXECUTOR);
 
     }
 
@@ -322,6 +331,10 @@ public class IdentityController {
         if (fcc != null) {
             fcc.clearCache();
         }
+        ThumbnailCacheController tcc = SurespotApplication.getThumbnailCacheController();
+        if (tcc != null) {
+            tcc.clearCache();
+        }
 
         StateController.wipeState(context, username);
 
@@ -457,9 +470,7 @@ public class IdentityController {
                 String sprivDH = json.getString("dhPriv");
                 String spubECDSA = json.getString("dsaPub");
                 String sprivECDSA = json.getString("dsaPriv");
-                si.addKeyPairs(version,
-                        new KeyPair(EncryptionController.recreatePublicKey("ECDH", spubDH), EncryptionController.recreatePrivateKey("ECDH", sprivDH)),
-                        new KeyPair(EncryptionController.recreatePublicKey("ECDSA", spubECDSA), EncryptionController.recreatePrivateKey("ECDSA", sprivECDSA)));
+                si.addKeyPairs(version, spubDH, sprivDH, spubECDSA, sprivECDSA);
 
             }
 
@@ -652,6 +663,7 @@ public class IdentityController {
             SurespotLog.v(TAG, "saving public key pair: %s", pkFile);
 
             FileUtils.writeFile(pkFile, keyPair);
+            updateKeyCheckpoint(username, version, dir, keyPair);
 
             return pkFile;
         }
@@ -692,144 +704,309 @@ public class IdentityController {
     }
 
     public static PublicKeys getPublicKeyPair2(String username, String version) {
+        PublicKeys validatedKeys = loadLatestPublicKeyPair(username, version);
 
-        int currentVersion = Integer.parseInt(version, 10);
-        int wantedVersion = currentVersion;
+        //if we have the keys for the version we want return them
+        if (validatedKeys != null && validatedKeys.getVersion().equals(version)) {
+            return validatedKeys;
+        }
 
-        PublicKeys keys = null;
-        String sDownloadedKeys = null;
+        //get keys from server since the last validated version
+        String sDownloadedKeys = SurespotApplication.getNetworkController().getPublicKeysSync(username, getSinceVersion(validatedKeys));
+        return verifyPublicKeyPairs(username, version, validatedKeys, sDownloadedKeys);
+    }
 
-        PublicKeys validatedKeys = null;
-        int validatedKeyVersion = 0;
-        Hashtable<Integer, PublicKey> dsaKeys = new Hashtable<Integer, PublicKey>();
-        Hashtable<Integer, JSONObject> resultKeys = new Hashtable<Integer, JSONObject>();
+    /**
+     * Same as {@link #getPublicKeyPair2(String, String)} for many users at once, fetching whatever isn't on disk in one request. Falls
+     * back to a request per user for users the batch request didn't cover.
+     *
+     * @param versions the version wanted by username
+     * @return the keys by username, users whose keys couldn't be loaded or verified are left out
+     */
+    public static Map<String, PublicKeys> getPublicKeyPairs2(Map<String, String> versions) {
+        HashMap<String, PublicKeys> keys = new HashMap<String, PublicKeys>(versions.size());
+        HashMap<String, PublicKeys> validatedKeys = new HashMap<String, PublicKeys>();
+        HashMap<String, String> sinceVersions = new HashMap<String, String>();
+
+        for (Map.Entry<String, String> entry : versions.entrySet()) {
+            String username = entry.getKey();
+            PublicKeys validated = loadLatestPublicKeyPair(username, entry.getValue());
+            if (validated != null && validated.getVersion().equals(entry.getValue())) {
+                keys.put(username, validated);
+            }
+            else {
+                validatedKeys.put(username, validated);
+                sinceVersions.put(username, getSinceVersion(validated));
+            }
+        }
+
+        if (sinceVersions.isEmpty()) {
+            return keys;
+        }
 
+        Map<String, String> downloadedKeys = SurespotApplication.getNetworkController().getPublicKeysSync(sinceVersions);
+        for (String username : sinceVersions.keySet()) {
+            String sDownloadedKeys = downloadedKeys == null ? null : downloadedKeys.get(username);
+            if (sDownloadedKeys == null) {
+                sDownloadedKeys = SurespotApplication.getNetworkController().getPublicKeysSync(username, sinceVersions.get(username));
+            }
 
-        //attempt to load keys from disk until we have some
-        while (currentVersion > 0) {
-            String sCurrentVersion = Integer.toString(currentVersion, 10);
+            PublicKeys publicKeys = verifyPublicKeyPairs(username, versions.get(username), validatedKeys.get(username), sDownloadedKeys);
+            if (publicKeys != null) {
+                keys.put(username, publicKeys);
+            }
+        }
+        return keys;
+    }
 
+    /**
+     * @return the latest keys up to version we've saved, which have already been verified, or null if there are none
+     */
+    private static PublicKeys loadLatestPublicKeyPair(String username, String version) {
+        PublicKeys checkpoint = getKeyCheckpoint(username);
+        if (checkpoint == null) {
+            return null;
+        }
+
+        // nothing newer than the checkpoint has been saved
+        int wantedVersion = Integer.parseInt(version, 10);
+        if (wantedVersion >= Integer.parseInt(checkpoint.getVersion(), 10)) {
+            return checkpoint;
+        }
+
+        //attempt to load keys from disk until we have some
+        for (int currentVersion = wantedVersion; currentVersion > 0; currentVersion--) {
             //load keys locally
             //if we have them they've been validated and we can validate any new keys we downloaded
-            keys = loadPublicKeyPair(username, sCurrentVersion);
+            PublicKeys keys = loadPublicKeyPair(username, Integer.toString(currentVersion, 10));
             if (keys != null) {
-                validatedKeys = keys;
-                validatedKeyVersion = currentVersion;
-                break;
+                return keys;
             }
-            currentVersion--;
         }
+        return null;
+    }
 
-        //if we have the keys for the version we want return them
-        if (validatedKeys != null && wantedVersion == validatedKeyVersion) {
-            return validatedKeys;
+    private static String getSinceVersion(PublicKeys validatedKeys) {
+        int validatedKeyVersion = validatedKeys == null ? 0 : Integer.parseInt(validatedKeys.getVersion(), 10);
+        return Integer.toString(validatedKeyVersion + 1, 10);
+    }
+
+    /**
+     * Validate downloaded keys from the last validated version to the version we want, saving each one as it's validated.
+     */
+    private static PublicKeys verifyPublicKeyPairs(String username, String version, PublicKeys validatedKeys, String sDownloadedKeys) {
+        if (sDownloadedKeys == null) {
+            return null;
         }
-        else {
-            //get keys from server since the last validated version
-            sDownloadedKeys = SurespotApplication.getNetworkController().getPublicKeysSync(username, Integer.toString(validatedKeyVersion + 1, 10));
 
-            //validate from the last validated version to the version we want
-            if (sDownloadedKeys != null) {
-                try {
-                    JSONArray json = new JSONArray(sDownloadedKeys);
-
-                    for (int i = 0; i < json.length(); i++) {
-                        //build some data structures
-                        JSONObject jsonKeys = json.getJSONObject(i);
-                        int readVersion = jsonKeys.getInt("version");
-                        String spubECDSA = jsonKeys.getString("dsaPub");
-                        PublicKey dsaPub = EncryptionController.recreatePublicKey("ECDSA", spubECDSA);
-                        dsaKeys.put(readVersion, dsaPub);
-                        resultKeys.put(readVersion, jsonKeys);
-                    }
+        int wantedVersion = Integer.parseInt(version, 10);
+        int validatedKeyVersion = validatedKeys == null ? 0 : Integer.parseInt(validatedKeys.getVersion(), 10);
+        Hashtable<Integer, PublicKey> dsaKeys = new Hashtable<Integer, PublicKey>();
+        Hashtable<Integer, JSONObject> resultKeys = new Hashtable<Integer, JSONObject>();
+
+        try {
+            JSONArray json = new JSONArray(sDownloadedKeys);
+
+            for (int i = 0; i < json.length(); i++) {
+                //build some data structures
+                JSONObject jsonKeys = json.getJSONObject(i);
+                int readVersion = jsonKeys.getInt("version");
+                String spubECDSA = jsonKeys.getString("dsaPub");
+                PublicKey dsaPub = EncryptionController.recreatePublicKey("ECDSA", spubECDSA);
+                dsaKeys.put(readVersion, dsaPub);
+                resultKeys.put(readVersion, jsonKeys);
+            }
 
-                    //if we have clientSig, use new validation
-                    //otherwise use old (for now until we cut off old version)
+            //if we have clientSig, use new validation
+            //otherwise use old (for now until we cut off old version)
 
-                    JSONObject wantedKey = resultKeys.get(wantedVersion);
+            JSONObject wantedKey = resultKeys.get(wantedVersion);
 
-                    if (!wantedKey.has("clientSig")) {
-                        SurespotLog.d(TAG, "Validating username: %s, version: %s, keys using v1 code", username, version);
-                        //TODO need to recheck somehow and eventually get all keys validated using v2 code
-                        return getPublicKeyPair(username, version, wantedKey);
+            if (!wantedKey.has("clientSig")) {
+                SurespotLog.d(TAG, "Validating username: %s, version: %s, keys using v1 code", username, version);
+                //TODO need to recheck somehow and eventually get all keys validated using v2 code
+                return getPublicKeyPair(username, version, wantedKey);
 
-                    }
-                    else {
-                        SurespotLog.d(TAG, "Validating username: %s, version: %s, keys using v2 code", username, version);
+            }
+            else {
+                SurespotLog.d(TAG, "Validating username: %s, version: %s, keys using v2 code", username, version);
 
-                        PublicKey previousDsaKey = null;
-                        if (validatedKeys != null) {
-                            //if we have a key validated start with that
-                            previousDsaKey = validatedKeys.getDSAKey();
-                        }
-                        else {
-                            //otherwise start from ground zero
-                            previousDsaKey = dsaKeys.get(1);
-                        }
-                        //validate in order
-                        String sDhPub = null;
-                        String sDsaPub = null;
+                PublicKey previousDsaKey = null;
+                if (validatedKeys != null) {
+                    //if we have a key validated start with that
+                    previousDsaKey = validatedKeys.getDSAKey();
+                }
+                else {
+                    //otherwise start from ground zero
+                    previousDsaKey = dsaKeys.get(1);
+                }
+                // every version is signed by the server and by the version before it, and we have all the keys, so check them all at once
+                ArrayList<FutureTask<Boolean>> checks = new ArrayList<FutureTask<Boolean>>(wantedVersion - validatedKeyVersion);
+                for (int validatingVersion = validatedKeyVersion + 1; validatingVersion <= wantedVersion; validatingVersion++) {
+                    JSONObject jsonKey = resultKeys.get(validatingVersion);
+                    PublicKey signingKey = validatingVersion == validatedKeyVersion + 1 ? previousDsaKey : dsaKeys.get(validatingVersion - 1);
+                    checks.add(newSignatureCheck(username, validatingVersion, jsonKey.getString("dhPub"), jsonKey.getString("dsaPub"),
+                            jsonKey.getString("serverSig"), jsonKey.getString("clientSig"), signingKey));
+                }
 
-                        for (int validatingVersion = validatedKeyVersion + 1; validatingVersion <= wantedVersion; validatingVersion++) {
+                if (!runChecks(checks)) {
+                    return null;
+                }
 
-                            JSONObject jsonKey = resultKeys.get(validatingVersion);
-                            sDhPub = jsonKey.getString("dhPub");
-                            sDsaPub = jsonKey.getString("dsaPub");
+                //save some keys in order
+                for (int validatingVersion = validatedKeyVersion + 1; validatingVersion <= wantedVersion; validatingVersion++) {
+                    savePublicKeyPair(username, String.valueOf(validatingVersion), resultKeys.get(validatingVersion).toString());
+                }
 
+                String sDhPub = resultKeys.get(wantedVersion).getString("dhPub");
+                PublicKey dhPub = EncryptionController.recreatePublicKey("ECDH", sDhPub);
+                PublicKey dsaPub = dsaKeys.get(wantedVersion);
 
-                            //validate dh and dsa against server sig
-                            boolean verified = EncryptionController.verifySig(
-                                    EncryptionController.ServerPublicKey,
-                                    resultKeys.get(validatingVersion).getString("serverSig"),
-                                    username,
-                                    validatingVersion,
-                                    sDhPub,
-                                    sDsaPub
-                            );
 
-                            if (!verified) {
-                                return null;
-                            }
+                //savePublicKeyPair(username, version, json.toString());
+                SurespotLog.i(TAG, "loaded and verified public keys from server for username %s", username);
+                return new PublicKeys(version, dhPub, dsaPub, new Date().getTime());
+            }
+        }
+        catch (JSONException e) {
+            SurespotLog.w(TAG, e, "recreatePublicKeyPair");
+        }
+        return null;
+    }
 
-                            //client sig
-                            verified = EncryptionController.verifySig(
 
-                                    previousDsaKey,
-                                    resultKeys.get(validatingVersion).getString("clientSig"),
-                                    username,
-                                    validatingVersion,
-                                    sDhPub,
-                                    sDsaPub);
+    private static FutureTask<Boolean> newSignatureCheck(final String username, final int version, final String sDhPub, final String sDsaPub,
+                                                         final String serverSig, final String clientSig, final PublicKey signingKey) {
+        return new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                //validate dh and dsa against server sig then client sig
+                return EncryptionController.verifySig(EncryptionController.ServerPublicKey, serverSig, username, version, sDhPub, sDsaPub) &&
+                        EncryptionController.verifySig(signingKey, clientSig, username, version, sDhPub, sDsaPub);
+            }
+        });
+    }
 
-                            if (!verified) {
-                                return null;
-                            }
+    /**
+     * Run the checks on the crypto lane and on this thread. This thread runs any check the lane hasn't started yet, so a busy lane, or
+     * being called from the lane, can't stall it.
+     */
+    private static boolean runChecks(List<FutureTask<Boolean>> checks) {
+        for (int i = 1; i < checks.size(); i++) {
+            SurespotApplication.CRYPTO_EXECUTOR.execute(checks.get(i));
+        }
 
-                            //save some keys
-                            savePublicKeyPair(username, String.valueOf(validatingVersion), jsonKey.toString());
+        for (FutureTask<Boolean> check : checks) {
+            // does nothing if the lane has it
+            check.run();
+            boolean verified = false;
+            try {
+                verified = check.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e) {
+                SurespotLog.w(TAG, e, "runChecks");
+            }
 
-                            //get next previous signing key
-                            previousDsaKey = dsaKeys.get(validatingVersion);
+            if (!verified) {
+                for (FutureTask<Boolean> remaining : checks) {
+                    remaining.cancel(false);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
 
+    /**
+     * @return the latest public keys we've saved for the user, or null if we haven't saved any
+     */
+    private static synchronized PublicKeys getKeyCheckpoint(String username) {
+        PublicKeys checkpoint = mKeyCheckpoints.get(username);
+        if (checkpoint != null) {
+            return checkpoint;
+        }
+
+        String dir = FileUtils.getPublicKeyDir(MainActivity.getContext()) + File.separator + username;
+        File checkpointFile = new File(dir, KEY_CHECKPOINT_FILENAME);
+        if (checkpointFile.canRead()) {
+            checkpoint = readPublicKeyPair(checkpointFile);
+        }
+
+        // keys saved before there were checkpoints, find the latest from the file names
+        if (checkpoint == null) {
+            int latestVersion = 0;
+            File[] files = new File(dir).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String filename = file.getName();
+                    if (filename.endsWith(PUBLICKEYPAIR_EXTENSION)) {
+                        try {
+                            latestVersion = Math.max(latestVersion, Integer.parseInt(filename.substring(0, filename.length() - PUBLICKEYPAIR_EXTENSION.length()), 10));
                         }
+                        catch (NumberFormatException e) {
+                            SurespotLog.w(TAG, e, "getKeyCheckpoint, unexpected file: %s", filename);
+                        }
+                    }
+                }
+            }
 
-                        PublicKey dhPub = EncryptionController.recreatePublicKey("ECDH", sDhPub);
-                        PublicKey dsaPub = dsaKeys.get(wantedVersion);
-
+            if (latestVersion == 0) {
+                return null;
+            }
 
-                        //savePublicKeyPair(username, version, json.toString());
-                        SurespotLog.i(TAG, "loaded and verified public keys from server for username %s", username);
-                        return new PublicKeys(version, dhPub, dsaPub, new Date().getTime());
-                    }
+            File pkFile = new File(dir, latestVersion + PUBLICKEYPAIR_EXTENSION);
+            checkpoint = readPublicKeyPair(pkFile);
+            if (checkpoint != null) {
+                try {
+                    FileUtils.writeFile(checkpointFile.getPath(), FileUtils.readFile(pkFile.getPath()));
                 }
-                catch (JSONException e) {
-                    SurespotLog.w(TAG, e, "recreatePublicKeyPair");
+                catch (IOException e) {
+                    SurespotLog.w(TAG, e, "getKeyCheckpoint");
                 }
             }
         }
-        return null;
+
+        if (checkpoint != null) {
+            mKeyCheckpoints.put(username, checkpoint);
+        }
+        return checkpoint;
+    }
+
+    private static synchronized void updateKeyCheckpoint(String username, String version, String dir, String keyPair) {
+        PublicKeys checkpoint = getKeyCheckpoint(username);
+        if (checkpoint != null && Integer.parseInt(checkpoint.getVersion(), 10) > Integer.parseInt(version, 10)) {
+            return;
+        }
+
+        File checkpointFile = new File(dir, KEY_CHECKPOINT_FILENAME);
+        try {
+            FileUtils.writeFile(checkpointFile.getPath(), keyPair);
+            mKeyCheckpoints.put(username, parsePublicKeyPair(new JSONObject(keyPair), checkpointFile.lastModified()));
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "updateKeyCheckpoint");
+            mKeyCheckpoints.remove(username);
+        }
+        catch (JSONException e) {
+            SurespotLog.w(TAG, e, "updateKeyCheckpoint");
+            mKeyCheckpoints.remove(username);
+        }
     }
 
+    /**
+     * Forget the checkpoints for a user's keys, or everyone's if username is null, when their keys are deleted.
+     */
+    public static synchronized void clearKeyCheckpoints(String username) {
+        if (username == null) {
+            mKeyCheckpoints.clear();
+        }
+        else {
+            mKeyCheckpoints.remove(username);
+        }
+    }
 
     private static JSONObject verifyPublicKeyPair(JSONObject jsonKeypair) {
         try {
@@ -954,16 +1131,19 @@ public class IdentityController {
             return null;
         }
 
+        return readPublicKeyPair(pkFile);
+    }
+
+    private static PublicKeys readPublicKeyPair(File pkFile) {
         long lastModified = pkFile.lastModified();
 
         try {
 
-            byte[] pkBytes = FileUtils.readFile(pkFilename);
+            byte[] pkBytes = FileUtils.readFile(pkFile.getPath());
 
             JSONObject pkpJSON = new JSONObject(new String(pkBytes));
 
-            return new PublicKeys(pkpJSON.getString("version"), EncryptionController.recreatePublicKey("ECDH", pkpJSON.getString("dhPub")),
-                    EncryptionController.recreatePublicKey("ECDSA", pkpJSON.getString("dsaPub")), lastModified);
+            return parsePublicKeyPair(pkpJSON, lastModified);
 
         }
         catch (Exception e) {
@@ -973,6 +1153,11 @@ public class IdentityController {
 
     }
 
+    private static PublicKeys parsePublicKeyPair(JSONObject pkpJSON, long lastModified) throws JSONException {
+        return new PublicKeys(pkpJSON.getString("version"), EncryptionController.recreatePublicKey("ECDH", pkpJSON.getString("dhPub")),
+                EncryptionController.recreatePublicKey("ECDSA", pkpJSON.getString("dsaPub")), lastModified);
+    }
+
     public static boolean hasIdentity() {
         if (!mHasIdentity) {
             mHasIdentity = getIdentityNames(MainActivity.getContext()).size() > 0;
@@ -1189,7 +1374,7 @@ public class IdentityController {
                     return null;
 
                 }
-            }.execute();
+            }.executeOnExecutor(SurespotApplication.DISK_EXECUTOR);
         }
     }
 
@@ -21,11 +21,23 @@ public class SurespotIdentity {
 	}
 
 	public void addKeyPairs(String version, KeyPair keyPairDH, KeyPair keyPairDSA) {
+		addKeyPairs(new PrivateKeyPairs(version, keyPairDH, keyPairDSA));
+	}
+
+	/**
+	 * Add a version's keys as they're saved, the keys are recreated when first used.
+	 */
+	public void addKeyPairs(String version, String encodedDHPublic, String encodedDHPrivate, String encodedDSAPublic, String encodedDSAPrivate) {
+		addKeyPairs(new PrivateKeyPairs(version, encodedDHPublic, encodedDHPrivate, encodedDSAPublic, encodedDSAPrivate));
+	}
+
+	private void addKeyPairs(PrivateKeyPairs keyPairs) {
+		String version = keyPairs.getVersion();
 		if (mLatestVersion == null || (Integer.parseInt(version) >  Integer.parseInt(mLatestVersion))) {
 			mLatestVersion = version;
 		}
 
-		mKeyPairs.put(version, new PrivateKeyPairs(version, keyPairDH, keyPairDSA));
+		mKeyPairs.put(version, keyPairs);
 
 	}
 	
@@ -57,6 +69,10 @@ public class SurespotIdentity {
 		return mKeyPairs.get(version).getKeyPairDSA();
 	}
 
+	public boolean hasKeyPairs(String version) {
+		return mKeyPairs.containsKey(version);
+	}
+
 	public Collection<PrivateKeyPairs> getKeyPairs() {
 		return mKeyPairs.values();
 	}
@@ -1,45 +1,39 @@
 package com.twofours.surespot.images;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.Build;
 
 import com.twofours.surespot.common.SurespotLog;
-import com.twofours.surespot.common.Utils;
 
+/**
+ * Bitmaps decoded for messages and friends, shared by the downloaders and sized in bytes from the device's memory class.
+ * <p/>
+ * Bitmaps the cache lets go of aren't reused for new decodes: being pushed out by the size limit doesn't mean an ImageView has stopped
+ * drawing them.
+ */
 public class BitmapCache {
-	private BitmapLruCache mMemoryCache;
 	private final static String TAG = "BitMapCache";
+	// fraction of the app's memory class to spend on bitmaps
+	private final static int MEMORY_CLASS_DIVISOR = 8;
 
-	public BitmapCache() {
-
-		// Get max available VM memory, exceeding this amount will throw an
-		// OutOfMemory exception. Stored in kilobytes as LruCache takes an
-		// int in its constructor.
-		// final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-
-		// Use 1/8th of the available memory for this memory cache.
-		// final int cacheSize = maxMemory / 2;
-
-		mMemoryCache = new BitmapLruCache(30);
-		// {
-		//
-		// @Override
-		// protected int sizeOf(String key, Bitmap bitmap) {
-		// // The cache size will be measured in kilobytes rather than
-		// // number of items.
-		// return (bitmap.getRowBytes() * bitmap.getHeight()) / 1024;
-		// }
-		// };
+	private BitmapLruCache mMemoryCache;
 
+	public BitmapCache(Context context) {
+		int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+		int cacheSize = memoryClass * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+		SurespotLog.d(TAG, "memory class: %d MB, bitmap cache size: %d bytes", memoryClass, cacheSize);
+		mMemoryCache = new BitmapLruCache(cacheSize);
 	}
 
 	public void addBitmapToMemoryCache(String key, Bitmap bitmap) {
-		String md5Key = Utils.md5(key);
-		mMemoryCache.put(md5Key, bitmap);
+		mMemoryCache.put(key, bitmap);
 	}
 
 	public Bitmap getBitmapFromMemCache(String key) {
-		String md5Key = Utils.md5(key);
-		return mMemoryCache.get(md5Key);
+		return mMemoryCache.get(key);
 	}
 
 	public void evictAll() {
@@ -48,7 +42,18 @@ public class BitmapCache {
 	}
 
 	public void remove(String key) {
-		String md5Key = Utils.md5(key);
-		mMemoryCache.remove(md5Key);
+		mMemoryCache.remove(key);
+	}
+
+	@TargetApi(Build.VERSION_CODES.KITKAT)
+	private static int getAllocationByteCount(Bitmap bitmap) {
+		return bitmap.getAllocationByteCount();
+	}
+
+	static int getByteCount(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return getAllocationByteCount(bitmap);
+		}
+		return bitmap.getRowBytes() * bitmap.getHeight();
 	}
 }
@@ -4,7 +4,15 @@ import android.graphics.Bitmap;
 import android.util.LruCache;
 
 public class BitmapLruCache extends LruCache<String, Bitmap> {
+	/**
+	 * @param maxSize the cache size in bytes
+	 */
 	public BitmapLruCache(int maxSize) {
 		super(maxSize);
 	}
+
+	@Override
+	protected int sizeOf(String key, Bitmap bitmap) {
+		return BitmapCache.getByteCount(bitmap);
+	}
 }
@@ -9,9 +9,11 @@ import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
 
 /**
  * Created by adam on 4/28/16.
@@ -40,6 +42,14 @@ public class FileCacheController {
             snapshot = mCache.get(gkey);
 
             if (snapshot == null) {
+                // files we're sending are encrypted straight to the upload dir, read them from there rather than keeping a copy
+                if (key.startsWith("file:")) {
+                    File file = new File(URI.create(key).getPath());
+                    if (file.exists()) {
+                        SurespotLog.v(TAG, "file cache entry is local file: %s", key);
+                        return new FileInputStream(file);
+                    }
+                }
                 return null;
             }
             InputStream is = snapshot.getInputStream(0);
@@ -55,8 +55,8 @@ import com.twofours.surespot.identity.IdentityController;
  */
 public class FriendImageDownloader {
 	private static final String TAG = "FriendImageDownloader";
-	private static BitmapCache mBitmapCache = new BitmapCache();
 	private static Handler mHandler = new Handler(MainActivity.getContext().getMainLooper());
+	private static SingleFlightLoader<Bitmap> mLoader = new SingleFlightLoader<Bitmap>(TAG, SurespotApplication.NETWORK_EXECUTOR);
 
 	/**
 	 * Download the specified image from the Internet and binds it to the provided ImageView. The binding is immediate if the image is found in the cache and
@@ -99,7 +99,7 @@ public class FriendImageDownloader {
 			BitmapDownloaderTask task = new BitmapDownloaderTask(imageView, friend);
 			DownloadedDrawable downloadedDrawable = new DownloadedDrawable(task);
 			imageView.setImageDrawable(downloadedDrawable);
-			SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+			task.start();
 		}
 	}
 
@@ -140,35 +140,23 @@ public class FriendImageDownloader {
 	}
 
 	/**
-	 * The actual AsyncTask that will asynchronously download the image.
+	 * Loads and decodes a friend's image for every task that asks for it while it's loading.
 	 */
-	public static class BitmapDownloaderTask implements Runnable {
+	private static class BitmapLoader implements SingleFlightLoader.Loader<Bitmap> {
 		private Friend mFriend;
-		private boolean mCancelled;
-
-		public Friend getFriend() {
-			return mFriend;
-		}
-
-		private final WeakReference<ImageView> imageViewReference;
 
-		public BitmapDownloaderTask(ImageView imageView, Friend friend) {
+		public BitmapLoader(Friend friend) {
 			mFriend = friend;
-			imageViewReference = new WeakReference<ImageView>(imageView);
-		}
-
-		public void cancel() {
-			mCancelled = true;
 		}
 
 		@Override
-		public void run() {
+		public Bitmap load(SingleFlightLoader.Flight flight) {
 			Bitmap bitmap = null;
 			InputStream imageStream = null;
 
 			imageStream = SurespotApplication.getNetworkController().getFileStream(MainActivity.getContext(), mFriend.getImageUrl());
 
-			if (mCancelled) {
+			if (flight.isCancelled()) {
 				try {
 					if (imageStream != null) {
 						imageStream.close();
@@ -177,10 +165,10 @@ public class FriendImageDownloader {
 				catch (IOException e) {
 					SurespotLog.w(TAG, e, "FriendImage DownloaderTask ioe");
 				}
-				return;
+				return null;
 			}
 
-			if (!mCancelled && imageStream != null) {
+			if (imageStream != null) {
 				PipedOutputStream out = new PipedOutputStream();
 				PipedInputStream inputStream = null;
 				try {
@@ -189,13 +177,13 @@ public class FriendImageDownloader {
 					EncryptionController.runDecryptTask(mFriend.getImageVersion(), IdentityController.getLoggedInUser(), mFriend.getImageVersion(),
 							mFriend.getImageIv(), mFriend.isImageHashed(), new BufferedInputStream(imageStream), out);
 
-					if (mCancelled) {
-						return;
+					if (flight.isCancelled()) {
+						return null;
 					}
 
 					byte[] bytes = Utils.inputStreamToBytes(inputStream);
-					if (mCancelled) {
-						return;
+					if (flight.isCancelled()) {
+						return null;
 					}
 
 					bitmap = ChatUtils.getSampledImage(bytes);
@@ -230,6 +218,50 @@ public class FriendImageDownloader {
 				}
 			}
 
+			if (bitmap != null) {
+				addBitmapToCache(mFriend.getImageUrl(), bitmap);
+			}
+			return bitmap;
+		}
+	}
+
+	/**
+	 * Binds the loaded image to the view it was started for.
+	 */
+	public static class BitmapDownloaderTask implements SingleFlightLoader.Listener<Bitmap> {
+		private Friend mFriend;
+		private boolean mCancelled;
+		private SingleFlightLoader<Bitmap>.Request mRequest;
+
+		public Friend getFriend() {
+			return mFriend;
+		}
+
+		private final WeakReference<ImageView> imageViewReference;
+
+		public BitmapDownloaderTask(ImageView imageView, Friend friend) {
+			mFriend = friend;
+			imageViewReference = new WeakReference<ImageView>(imageView);
+		}
+
+		public void start() {
+			mRequest = mLoader.load(mFriend.getImageUrl(), new BitmapLoader(mFriend), this);
+		}
+
+		public void cancel() {
+			mCancelled = true;
+			// other rows may still want the image so just stop listening
+			if (mRequest != null) {
+				mRequest.cancel();
+			}
+		}
+
+		@Override
+		public void onLoaded(Bitmap bitmap) {
+			if (mCancelled) {
+				return;
+			}
+
 			final Bitmap finalBitmap = bitmap;
 			if (imageViewReference != null) {
 				final ImageView imageView = imageViewReference.get();
@@ -243,9 +275,6 @@ public class FriendImageDownloader {
 						@Override
 						public void run() {
 							if (finalBitmap != null) {
-
-								FriendImageDownloader.addBitmapToCache(mFriend.getImageUrl(), finalBitmap);
-
 								Drawable drawable = imageView.getDrawable();
 								if (drawable instanceof DownloadedDrawable) {
 
@@ -343,7 +372,7 @@ public class FriendImageDownloader {
 	 */
 	public static void addBitmapToCache(String key, Bitmap bitmap) {
 		if (bitmap != null) {
-			mBitmapCache.addBitmapToMemoryCache(key, bitmap);
+			SurespotApplication.getBitmapCache().addBitmapToMemoryCache(key, bitmap);
 		}
 	}
 
@@ -353,19 +382,19 @@ public class FriendImageDownloader {
 	 * @return The cached bitmap or null if it was not found.
 	 */
 	public static Bitmap getBitmapFromCache(String key) {
-		return mBitmapCache.getBitmapFromMemCache(key);
+		return SurespotApplication.getBitmapCache().getBitmapFromMemCache(key);
 	}
 
 	public static void evictCache() {
-		mBitmapCache.evictAll();
+		SurespotApplication.getBitmapCache().evictAll();
 
 	}
 
 	public static void copyAndRemoveCacheEntry(String sourceKey, String destKey) {
-		Bitmap bitmap = mBitmapCache.getBitmapFromMemCache(sourceKey);
+		Bitmap bitmap = SurespotApplication.getBitmapCache().getBitmapFromMemCache(sourceKey);
 		if (bitmap != null) {
-			mBitmapCache.remove(sourceKey);
-			mBitmapCache.addBitmapToMemoryCache(destKey, bitmap);
+			SurespotApplication.getBitmapCache().remove(sourceKey);
+			SurespotApplication.getBitmapCache().addBitmapToMemoryCache(destKey, bitmap);
 		}
 	}
 }
@@ -17,6 +17,7 @@
 package com.twofours.surespot.images;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
@@ -31,6 +32,7 @@ import com.twofours.surespot.SurespotApplication;
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.chat.ChatAdapter;
 import com.twofours.surespot.chat.ChatUtils;
+import com.twofours.surespot.chat.RowPrefetcher;
 import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.SurespotConfiguration;
 import com.twofours.surespot.common.SurespotLog;
@@ -43,8 +45,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.lang.ref.WeakReference;
 
 /**
@@ -58,8 +58,8 @@ import java.lang.ref.WeakReference;
  */
 public class MessageImageDownloader {
     private static final String TAG = "MessageImageDownloader";
-    private static BitmapCache mBitmapCache = new BitmapCache();
     private static Handler mHandler = new Handler(MainActivity.getContext().getMainLooper());
+    private static SingleFlightLoader<Bitmap> mLoader = new SingleFlightLoader<Bitmap>(TAG, SurespotApplication.NETWORK_EXECUTOR);
     private ChatAdapter mChatAdapter;
 
 
@@ -68,7 +68,7 @@ public class MessageImageDownloader {
     }
 
     public void download(ImageView imageView, SurespotMessage message) {
-        String uri = TextUtils.isEmpty(message.getData()) ? message.getPlainData().toString() : message.getData();
+        String uri = getKey(message);
 
         if (uri == null) {
             return;
@@ -93,6 +93,33 @@ public class MessageImageDownloader {
         }
     }
 
+    /**
+     * Load a message's image into the caches ahead of its row being bound. A row bound while it's loading joins the same load.
+     *
+     * @param onDone run on the loading thread once it's finished
+     * @return null if there's nothing to load
+     */
+    public RowPrefetcher.Prefetch prefetch(SurespotMessage message, final Runnable onDone) {
+        String key = getKey(message);
+        if (key == null || getBitmapFromCache(key) != null) {
+            return null;
+        }
+
+        final SingleFlightLoader<Bitmap>.Request request = mLoader.load(key, new BitmapLoader(message), new SingleFlightLoader.Listener<Bitmap>() {
+            @Override
+            public void onLoaded(Bitmap bitmap) {
+                onDone.run();
+            }
+        }, mChatAdapter.getRowLoadScheduler().executorFor("prefetch image", SurespotApplication.NETWORK_EXECUTOR, message));
+
+        return new RowPrefetcher.Prefetch() {
+            @Override
+            public void cancel() {
+                request.cancel();
+            }
+        };
+    }
+
 	/*
      * Same as download but the image is always downloaded and the cache is not used. Kept private at the moment as its interest is not clear. private void
 	 * forceDownload(String url, ImageView view) { forceDownload(url, view, null); }
@@ -108,7 +135,7 @@ public class MessageImageDownloader {
             imageView.setImageDrawable(downloadedDrawable);
             message.setLoaded(false);
             message.setLoading(true);
-            SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+            task.start();
         }
     }
 
@@ -147,138 +174,169 @@ public class MessageImageDownloader {
         return null;
     }
 
+    private static String getKey(SurespotMessage message) {
+        return TextUtils.isEmpty(message.getData()) ? message.getPlainData().toString() : message.getData();
+    }
+
     /**
-     * The actual AsyncTask that will asynchronously download the image.
+     * Loads and decodes a message's image for every task that asks for it while it's loading.
      */
-    class BitmapDownloaderTask implements Runnable {
+    private static class BitmapLoader implements SingleFlightLoader.Loader<Bitmap> {
         private SurespotMessage mMessage;
-        private boolean mCancelled;
-
-        public SurespotMessage getMessage() {
-            return mMessage;
-        }
-
-        private final WeakReference<ImageView> imageViewReference;
 
-        public BitmapDownloaderTask(ImageView imageView, SurespotMessage message) {
+        public BitmapLoader(SurespotMessage message) {
             mMessage = message;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-        }
-
-        public void cancel() {
-            mCancelled = true;
         }
 
         @Override
-        public void run() {
-            if (mCancelled) {
-                return;
-            }
-
+        public Bitmap load(SingleFlightLoader.Flight flight) {
             Bitmap bitmap = null;
 
             //if we have encrypted url (local or not)
-            if (!TextUtils.isEmpty(getMessage().getData())) {
-
-
-                InputStream encryptedImageStream = null;
-
-                //check disk cache before going to network
-                try {
-
-                    encryptedImageStream = SurespotApplication.getFileCacheController().getEntry(mMessage.getData());
-                    if (encryptedImageStream != null) {
-                        SurespotLog.d(TAG, "got cached file entry for: %s,", mMessage.getData());
+            if (!TextUtils.isEmpty(mMessage.getData())) {
+                //a display sized copy is much cheaper than the whole image
+                ThumbnailCacheController thumbnailCache = SurespotApplication.getThumbnailCacheController();
+                if (thumbnailCache != null) {
+                    bitmap = thumbnailCache.getThumbnail(mMessage);
+                    if (bitmap != null) {
+                        addBitmapToCache(getKey(mMessage), bitmap);
+                        return bitmap;
                     }
                 }
-                catch (IOException e) {
-                    SurespotLog.w(TAG, e, "error getting cached file entry for: %s,", mMessage.getData());
-                }
 
-                if (encryptedImageStream == null) {
-                    SurespotLog.d(TAG, "no cached file entry, making http call for: %s,", mMessage.getData());
-                    encryptedImageStream = SurespotApplication.getNetworkController().getFileStream(MainActivity.getContext(), mMessage.getData());
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                bitmap = decryptImage(flight, options);
+                //the header was too big to keep while finding the bounds, decrypt it again to decode the pixels
+                if (bitmap == null && options.inJustDecodeBounds && options.outHeight > 0 && !flight.isCancelled()) {
+                    bitmap = decryptImage(flight, options);
+                }
+                if (bitmap != null && thumbnailCache != null) {
+                    thumbnailCache.putThumbnail(mMessage, bitmap);
+                }
+            }
+            else if (!TextUtils.isEmpty(mMessage.getPlainData())) {
+                //load unencrypted image from disk
+                try {
+                    bitmap = ChatUtils.getSampledImage(Utils.inputStreamToBytes(new FileInputStream(Uri.parse(mMessage.getPlainData().toString()).getPath())));
+                    SurespotLog.d(TAG, "loaded unencrypted bitmap from: %s, null: %b", mMessage.getPlainData().toString(), bitmap == null);
                 }
 
-                if (mCancelled) {
-                    try {
-                        if (encryptedImageStream != null) {
-                            encryptedImageStream.close();
-                        }
-                    }
-                    catch (IOException e) {
-                        SurespotLog.w(TAG, e, "MessageImage DownloaderTask");
-                    }
-                    return;
+                catch (IOException e) {
+                    SurespotLog.w(TAG, e, "MessageImageDownloaderTask loading unencrypted image from disk");
                 }
+            }
 
-                if (!mCancelled && encryptedImageStream != null) {
-                    PipedOutputStream out = new PipedOutputStream();
-                    PipedInputStream inputStream = null;
-                    try {
-                        inputStream = new PipedInputStream(out);
+            if (bitmap != null) {
+                addBitmapToCache(getKey(mMessage), bitmap);
+            }
+            return bitmap;
+        }
 
-                        EncryptionController.runDecryptTask(mMessage.getOurVersion(), mMessage.getOtherUser(), mMessage.getTheirVersion(), mMessage.getIv(), mMessage.isHashed(),
-                                new BufferedInputStream(encryptedImageStream), out);
+        private Bitmap decryptImage(SingleFlightLoader.Flight flight, BitmapFactory.Options options) {
+            InputStream encryptedImageStream = null;
 
-                        if (mCancelled) {
-                            mMessage.setLoaded(true);
-                            mMessage.setLoading(false);
-                            mChatAdapter.checkLoaded();
-                            return;
-                        }
+            //check disk cache before going to network
+            try {
 
-                        byte[] bytes = Utils.inputStreamToBytes(inputStream);
-                        if (mCancelled) {
-                            mMessage.setLoaded(true);
-                            mMessage.setLoading(false);
-                            mChatAdapter.checkLoaded();
-                            return;
-                        }
+                encryptedImageStream = SurespotApplication.getFileCacheController().getEntry(mMessage.getData());
+                if (encryptedImageStream != null) {
+                    SurespotLog.d(TAG, "got cached file entry for: %s,", mMessage.getData());
+                }
+            }
+            catch (IOException e) {
+                SurespotLog.w(TAG, e, "error getting cached file entry for: %s,", mMessage.getData());
+            }
 
-                        bitmap = ChatUtils.getSampledImage(bytes);
-                    }
-                    catch (InterruptedIOException ioe) {
+            if (encryptedImageStream == null) {
+                SurespotLog.d(TAG, "no cached file entry, making http call for: %s,", mMessage.getData());
+                encryptedImageStream = SurespotApplication.getNetworkController().getFileStream(MainActivity.getContext(), mMessage.getData());
+            }
 
-                        SurespotLog.w(TAG, ioe, "MessageImage ioe");
+            if (encryptedImageStream == null) {
+                return null;
+            }
 
-                    }
-                    catch (IOException e) {
-                        SurespotLog.w(TAG, e, "MessageImage e");
-                    }
-                    finally {
+            try {
+                if (flight.isCancelled()) {
+                    return null;
+                }
 
-                        try {
-                            if (encryptedImageStream != null) {
-                                encryptedImageStream.close();
-                            }
-                        }
-                        catch (IOException e) {
-                            SurespotLog.w(TAG, e, "MessageImage DownloaderTask");
-                        }
+                //decrypt and decode on this thread as the data comes in
+                InputStream inputStream = EncryptionController.symmetricDecryptStream(mMessage.getOurVersion(), mMessage.getOtherUser(),
+                        mMessage.getTheirVersion(), mMessage.getIv(), mMessage.isHashed(), new BufferedInputStream(encryptedImageStream));
 
-                        try {
-                            if (inputStream != null) {
-                                inputStream.close();
-                            }
-                        }
-                        catch (IOException e) {
-                            SurespotLog.w(TAG, e, "MessageImage DownloaderTask");
-                        }
-                    }
+                if (flight.isCancelled()) {
+                    return null;
+                }
+
+                if (inputStream != null) {
+                    return ChatUtils.getSampledImage(inputStream, options);
+                }
+                else {
+                    SurespotLog.w(TAG, "MessageImage no shared secret for: %s", mMessage.getIv());
                 }
             }
-            else if (!TextUtils.isEmpty(mMessage.getPlainData())) {
-                //load unencrypted image from disk
+            catch (InterruptedIOException ioe) {
+
+                SurespotLog.w(TAG, ioe, "MessageImage ioe");
+
+            }
+            catch (IOException e) {
+                SurespotLog.w(TAG, e, "MessageImage e");
+            }
+            finally {
+
                 try {
-                    bitmap = ChatUtils.getSampledImage(Utils.inputStreamToBytes(new FileInputStream(Uri.parse(mMessage.getPlainData().toString()).getPath())));
-                    SurespotLog.d(TAG, "loaded unencrypted bitmap from: %s, null: %b", mMessage.getPlainData().toString(), bitmap == null);
+                    encryptedImageStream.close();
                 }
-
                 catch (IOException e) {
-                    SurespotLog.w(TAG, e, "MessageImageDownloaderTask loading unencrypted image from disk");
+                    SurespotLog.w(TAG, e, "MessageImage DownloaderTask");
                 }
             }
+            return null;
+        }
+    }
+
+    /**
+     * Binds the loaded image to the view it was started for.
+     */
+    class BitmapDownloaderTask implements SingleFlightLoader.Listener<Bitmap> {
+        private SurespotMessage mMessage;
+        private boolean mCancelled;
+        private SingleFlightLoader<Bitmap>.Request mRequest;
+
+        public SurespotMessage getMessage() {
+            return mMessage;
+        }
+
+        private final WeakReference<ImageView> imageViewReference;
+
+        public BitmapDownloaderTask(ImageView imageView, SurespotMessage message) {
+            mMessage = message;
+            imageViewReference = new WeakReference<ImageView>(imageView);
+        }
+
+        public void start() {
+            mRequest = mLoader.load(getKey(mMessage), new BitmapLoader(mMessage), this,
+                    mChatAdapter.getRowLoadScheduler().executorFor("image", SurespotApplication.NETWORK_EXECUTOR, mMessage));
+        }
+
+        public void cancel() {
+            mCancelled = true;
+            // other rows may still want the image so just stop listening
+            if (mRequest != null) {
+                mRequest.cancel();
+            }
+            mMessage.setLoaded(true);
+            mMessage.setLoading(false);
+            mChatAdapter.checkLoaded();
+        }
+
+        @Override
+        public void onLoaded(Bitmap bitmap) {
+            if (mCancelled) {
+                return;
+            }
 
             mMessage.setLoaded(true);
             mMessage.setLoading(false);
@@ -297,9 +355,6 @@ public class MessageImageDownloader {
                         public void run() {
 
                             if (finalBitmap != null) {
-
-                                MessageImageDownloader.addBitmapToCache(mMessage.getData(), finalBitmap);
-
                                 Drawable drawable = imageView.getDrawable();
                                 if (drawable instanceof DownloadedDrawable) {
 
@@ -366,19 +421,19 @@ public class MessageImageDownloader {
      */
     public static void addBitmapToCache(String key, Bitmap bitmap) {
         if (bitmap != null) {
-            mBitmapCache.addBitmapToMemoryCache(key, bitmap);
+            SurespotApplication.getBitmapCache().addBitmapToMemoryCache(key, bitmap);
         }
     }
 
     private static Bitmap getBitmapFromCache(String key) {
-        return mBitmapCache.getBitmapFromMemCache(key);
+        return SurespotApplication.getBitmapCache().getBitmapFromMemCache(key);
     }
 
     public static void moveCacheEntry(String sourceKey, String destKey) {
-        Bitmap bitmap = mBitmapCache.getBitmapFromMemCache(sourceKey);
+        Bitmap bitmap = SurespotApplication.getBitmapCache().getBitmapFromMemCache(sourceKey);
         if (bitmap != null) {
-            mBitmapCache.remove(sourceKey);
-            mBitmapCache.addBitmapToMemoryCache(destKey, bitmap);
+            SurespotApplication.getBitmapCache().remove(sourceKey);
+            SurespotApplication.getBitmapCache().addBitmapToMemoryCache(destKey, bitmap);
         }
     }
 }
@@ -0,0 +1,154 @@
+package com.twofours.surespot.images;
+
+import com.twofours.surespot.common.SurespotLog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Makes sure only one load runs at a time for a resource: a request for a key that's already loading attaches to the running load
+ * instead of starting another, and every request gets the same result. Cancelling a request only detaches its listener, the load
+ * itself is only cancelled once nobody is waiting on it.
+ */
+public class SingleFlightLoader<T> {
+    private final String mTag;
+    private final Executor mExecutor;
+    private final HashMap<String, Job> mJobs = new HashMap<String, Job>();
+
+    public SingleFlightLoader(String tag, Executor executor) {
+        mTag = tag;
+        mExecutor = executor;
+    }
+
+    /**
+     * Start loading key with loader, or join the load already running for it.
+     *
+     * @param listener gets the result (or null) on the loading thread
+     */
+    public Request load(String key, Loader<T> loader, Listener<T> listener) {
+        return load(key, loader, listener, mExecutor);
+    }
+
+    /**
+     * Like {@link #load(String, Loader, Listener)} but a load this starts runs on executor rather than the default.
+     */
+    public Request load(String key, Loader<T> loader, Listener<T> listener, Executor executor) {
+        Job job;
+        Request request;
+        boolean start = false;
+        synchronized (mJobs) {
+            job = mJobs.get(key);
+            if (job == null) {
+                job = new Job(key, loader);
+                mJobs.put(key, job);
+                start = true;
+            }
+            else {
+                SurespotLog.v(mTag, "joining load in flight: %s", key);
+            }
+
+            request = new Request(job, listener);
+            job.mRequests.add(request);
+        }
+
+        if (start) {
+            executor.execute(job);
+        }
+        return request;
+    }
+
+    public interface Loader<T> {
+        /**
+         * Runs on the executor, should check {@link Flight#isCancelled()} between expensive steps.
+         */
+        T load(Flight flight);
+    }
+
+    public interface Listener<T> {
+        void onLoaded(T result);
+    }
+
+    public static class Flight {
+        volatile boolean mCancelled;
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Cancel the load whoever is waiting on it, running it afterwards finishes it with a null result without loading.
+         */
+        public void abandon() {
+            mCancelled = true;
+        }
+    }
+
+    public class Request {
+        private final Job mJob;
+        private final Listener<T> mListener;
+
+        private Request(Job job, Listener<T> listener) {
+            mJob = job;
+            mListener = listener;
+        }
+
+        /**
+         * Stop listening, cancelling the load if nobody else is.
+         */
+        public void cancel() {
+            synchronized (mJobs) {
+                if (!mJob.mRequests.remove(this) || !mJob.mRequests.isEmpty() || mJob.mDone) {
+                    return;
+                }
+
+                SurespotLog.v(mTag, "cancelling load nobody is waiting on: %s", mJob.mKey);
+                mJob.mCancelled = true;
+                // later requests for the key start a new load rather than joining a cancelled one
+                if (mJobs.get(mJob.mKey) == mJob) {
+                    mJobs.remove(mJob.mKey);
+                }
+            }
+        }
+    }
+
+    private class Job extends Flight implements Runnable {
+        private final String mKey;
+        private final Loader<T> mLoader;
+        private final List<Request> mRequests = new ArrayList<Request>();
+        private boolean mDone;
+
+        private Job(String key, Loader<T> loader) {
+            mKey = key;
+            mLoader = loader;
+        }
+
+        @Override
+        public void run() {
+            T result = null;
+            if (!isCancelled()) {
+                try {
+                    result = mLoader.load(this);
+                }
+                catch (RuntimeException e) {
+                    SurespotLog.w(mTag, e, "load failed: %s", mKey);
+                }
+            }
+
+            List<Request> requests;
+            synchronized (mJobs) {
+                mDone = true;
+                if (mJobs.get(mKey) == this) {
+                    mJobs.remove(mKey);
+                }
+                requests = new ArrayList<Request>(mRequests);
+                mRequests.clear();
+            }
+
+            for (Request request : requests) {
+                request.mListener.onLoaded(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.twofours.surespot.images;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+import com.twofours.surespot.SurespotApplication;
+import com.twofours.surespot.chat.ChatUtils;
+import com.twofours.surespot.chat.SurespotMessage;
+import com.twofours.surespot.common.FileUtils;
+import com.twofours.surespot.common.SurespotLog;
+import com.twofours.surespot.common.Utils;
+import com.twofours.surespot.encryption.EncryptionController;
+import com.twofours.surespot.identity.SurespotIdentity;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.crypto.params.ParametersWithIV;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.util.HashMap;
+
+/**
+ * Caches image messages on disk already scaled for display so scrolling back through a chat doesn't mean downloading, decrypting and
+ * sampling the whole image again.
+ * <p/>
+ * Thumbnails are keyed by user and message iv, and encrypted under a key derived from the logged in identity's private key for the
+ * message's version, so they're only readable while that identity is logged in on this device and nothing new has to be stored.
+ */
+public class ThumbnailCacheController {
+    private static final String TAG = "ThumbnailCacheController";
+    private static final int CACHE_SIZE = 20 * 1024 * 1024;
+    private static final int JPEG_QUALITY = 85;
+    private static final int IV_LENGTH = 16;
+    private static final byte[] KEY_LABEL = "surespot thumbnail cache".getBytes();
+
+    private DiskLruCache mCache;
+    private File mCacheDir;
+    private final HashMap<String, KeyParameter> mKeys = new HashMap<String, KeyParameter>();
+
+    public ThumbnailCacheController(Context context) throws IOException {
+        mCacheDir = FileUtils.getThumbnailCacheDir(context);
+        SurespotLog.v(TAG, "thumbnail cache dir: %s", mCacheDir);
+        mCache = DiskLruCache.open(mCacheDir, 100, 1, CACHE_SIZE);
+    }
+
+    /**
+     * @return the display sized image for the message or null if we don't have one
+     */
+    public Bitmap getThumbnail(SurespotMessage message) {
+        KeyParameter key = getKey(message.getOurVersion());
+        if (key == null) {
+            return null;
+        }
+
+        String gKey = generateKey(message);
+        byte[] cipherData;
+        try {
+            DiskLruCache.Snapshot snapshot = mCache.get(gKey);
+            if (snapshot == null) {
+                return null;
+            }
+
+            InputStream is = snapshot.getInputStream(0);
+            try {
+                cipherData = Utils.inputStreamToBytes(is);
+            }
+            finally {
+                snapshot.close();
+            }
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "error reading thumbnail for: %s", message.getIv());
+            return null;
+        }
+
+        byte[] data = process(false, key, cipherData);
+        if (data == null) {
+            SurespotLog.w(TAG, "could not decrypt thumbnail for: %s", message.getIv());
+            removeThumbnail(message);
+            return null;
+        }
+
+        SurespotLog.v(TAG, "got thumbnail for: %s", message.getIv());
+        return ChatUtils.getSampledImage(data);
+    }
+
+    public void putThumbnail(SurespotMessage message, Bitmap bitmap) {
+        KeyParameter key = getKey(message.getOurVersion());
+        if (key == null) {
+            return;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, bos)) {
+            return;
+        }
+
+        byte[] cipherData = process(true, key, bos.toByteArray());
+        if (cipherData == null) {
+            return;
+        }
+
+        try {
+            DiskLruCache.Editor edit = mCache.edit(generateKey(message));
+            if (edit != null) {
+                OutputStream outputStream = edit.newOutputStream(0);
+                try {
+                    outputStream.write(cipherData);
+                }
+                finally {
+                    outputStream.close();
+                }
+                edit.commit();
+                SurespotLog.v(TAG, "put thumbnail for: %s, size: %d", message.getIv(), cipherData.length);
+            }
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "error putting thumbnail for: %s", message.getIv());
+        }
+    }
+
+    public void removeThumbnail(SurespotMessage message) {
+        try {
+            mCache.remove(generateKey(message));
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "error removing thumbnail for: %s", message.getIv());
+        }
+    }
+
+    public void clearCache() {
+        synchronized (mKeys) {
+            mKeys.clear();
+        }
+
+        final File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            mCache.flush();
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "close");
+        }
+    }
+
+    private static String generateKey(SurespotMessage message) {
+        return Utils.md5(SurespotApplication.getCachingService().getLoggedInUser() + ":" + message.getIv());
+    }
+
+    private KeyParameter getKey(String ourVersion) {
+        if (ourVersion == null || SurespotApplication.getCachingService() == null) {
+            return null;
+        }
+
+        // only use an identity that's already loaded, never go to disk for it
+        SurespotIdentity identity = SurespotApplication.getCachingService().getIdentity(null);
+        if (identity == null) {
+            return null;
+        }
+
+        String keyName = identity.getUsername() + ":" + ourVersion;
+        synchronized (mKeys) {
+            KeyParameter key = mKeys.get(keyName);
+            if (key == null) {
+                KeyPair keyPair = identity.getKeyPairDH(ourVersion);
+                if (keyPair == null) {
+                    return null;
+                }
+
+                byte[] privateKey = keyPair.getPrivate().getEncoded();
+                SHA256Digest digest = new SHA256Digest();
+                digest.update(KEY_LABEL, 0, KEY_LABEL.length);
+                digest.update(privateKey, 0, privateKey.length);
+                byte[] keyBytes = new byte[digest.getDigestSize()];
+                digest.doFinal(keyBytes, 0);
+
+                key = new KeyParameter(keyBytes);
+                mKeys.put(keyName, key);
+            }
+            return key;
+        }
+    }
+
+    // aes-gcm with the iv prepended to the cipher text
+    private static byte[] process(boolean forEncryption, KeyParameter key, byte[] input) {
+        GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        try {
+            if (forEncryption) {
+                byte[] iv = EncryptionController.getIv();
+                cipher.init(true, new ParametersWithIV(key, iv));
+                byte[] output = new byte[IV_LENGTH + cipher.getOutputSize(input.length)];
+                System.arraycopy(iv, 0, output, 0, IV_LENGTH);
+                int len = cipher.processBytes(input, 0, input.length, output, IV_LENGTH);
+                cipher.doFinal(output, IV_LENGTH + len);
+                return output;
+            }
+
+            if (input.length < IV_LENGTH) {
+                return null;
+            }
+            cipher.init(false, new ParametersWithIV(key, input, 0, IV_LENGTH));
+            byte[] output = new byte[cipher.getOutputSize(input.length - IV_LENGTH)];
+            int len = cipher.processBytes(input, IV_LENGTH, input.length - IV_LENGTH, output, 0);
+            cipher.doFinal(output, len);
+            return output;
+        }
+        catch (InvalidCipherTextException e) {
+            return null;
+        }
+    }
+}
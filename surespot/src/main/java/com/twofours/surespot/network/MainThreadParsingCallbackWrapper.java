@@ -0,0 +1,93 @@
+package com.twofours.surespot.network;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * Like {@link MainThreadCallbackWrapper} but parses a successful response body as it streams in on the network thread, so large
+ * responses never exist as a String or a JSON tree. The callback gets the parsed result on the main thread, or null if the response
+ * wasn't successful.
+ */
+public class MainThreadParsingCallbackWrapper<T> implements Callback {
+    private static final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private ResponseParser<T> mParser;
+    private MainThreadParsingCallback<T> mCallback;
+
+    public MainThreadParsingCallbackWrapper(ResponseParser<T> parser, MainThreadParsingCallback<T> callback) {
+        mParser = parser;
+        mCallback = callback;
+    }
+
+    @Override
+    public void onFailure(final Call call, final IOException e) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onFailure(call, e);
+            }
+        });
+    }
+
+    @Override
+    public void onResponse(final Call call, final Response response) throws IOException {
+        T result = null;
+        try {
+            if (response.isSuccessful()) {
+                JsonReader reader = new JsonReader(response.body().charStream());
+                result = mParser.parse(reader);
+            }
+        }
+        catch (IOException e) {
+            onFailure(call, e);
+            return;
+        }
+        catch (RuntimeException e) {
+            // JsonReader throws IllegalStateException and NumberFormatException on unexpected content
+            onFailure(call, new IOException(e));
+            return;
+        }
+        finally {
+            response.body().close();
+        }
+
+        final T parsed = result;
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mCallback.onResponse(call, response, parsed);
+                }
+                catch (IOException e) {
+                    mCallback.onFailure(call, e);
+                }
+            }
+        });
+    }
+
+    private void runOnUiThread(Runnable task) {
+        mHandler.post(task);
+    }
+
+    public interface ResponseParser<T> {
+        /**
+         * Called on the network thread with the body of a successful response.
+         */
+        T parse(JsonReader reader) throws IOException;
+    }
+
+    public interface MainThreadParsingCallback<T> {
+
+        void onFailure(Call call, IOException e);
+
+        void onResponse(Call call, Response response, T result) throws IOException;
+    }
+}
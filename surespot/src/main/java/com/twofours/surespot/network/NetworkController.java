@@ -20,12 +20,16 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -699,6 +703,87 @@ public class NetworkController {
 
     }
 
+    /**
+     * Latest key versions for many users in one request.
+     *
+     * @return version by username, users the server doesn't know are left out. null if the request failed.
+     */
+    public Map<String, String> getKeyVersionsSync(Collection<String> usernames) {
+        SurespotLog.i(TAG, "getKeyVersionsSync, usernames: %d", usernames.size());
+        JSONObject params = new JSONObject();
+        try {
+            params.put("usernames", new JSONArray(usernames));
+
+            Response response = postJSONSync("/keyversions", params);
+            try {
+                if (!response.isSuccessful()) {
+                    SurespotLog.i(TAG, "getKeyVersionsSync failed, code: %d", response.code());
+                    return null;
+                }
+
+                JSONObject json = new JSONObject(response.body().string());
+                HashMap<String, String> versions = new HashMap<String, String>(json.length());
+                Iterator<String> keys = json.keys();
+                while (keys.hasNext()) {
+                    String username = keys.next();
+                    versions.put(username, json.getString(username));
+                }
+                return versions;
+            }
+            finally {
+                response.body().close();
+            }
+        }
+        catch (JSONException e) {
+            SurespotLog.w(TAG, e, "getKeyVersionsSync");
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "getKeyVersionsSync");
+        }
+        return null;
+    }
+
+    /**
+     * Public keys for many users in one request, each user's keys the same as {@link #getPublicKeysSync(String, String)} returns them.
+     *
+     * @param sinceVersions the first version wanted by username
+     * @return the keys json array by username, users the server doesn't know are left out. null if the request failed.
+     */
+    public Map<String, String> getPublicKeysSync(Map<String, String> sinceVersions) {
+        SurespotLog.i(TAG, "getPublicKeysSync, usernames: %d", sinceVersions.size());
+        JSONObject params = new JSONObject();
+        try {
+            params.put("since", new JSONObject(sinceVersions));
+
+            Response response = postJSONSync("/publickeys", params);
+            try {
+                if (!response.isSuccessful()) {
+                    SurespotLog.i(TAG, "getPublicKeysSync failed, code: %d", response.code());
+                    return null;
+                }
+
+                JSONObject json = new JSONObject(response.body().string());
+                HashMap<String, String> keys = new HashMap<String, String>(json.length());
+                Iterator<String> usernames = json.keys();
+                while (usernames.hasNext()) {
+                    String username = usernames.next();
+                    keys.put(username, json.getJSONArray(username).toString());
+                }
+                return keys;
+            }
+            finally {
+                response.body().close();
+            }
+        }
+        catch (JSONException e) {
+            SurespotLog.w(TAG, e, "getPublicKeysSync");
+        }
+        catch (IOException e) {
+            SurespotLog.w(TAG, e, "getPublicKeysSync");
+        }
+        return null;
+    }
+
     public void invite(String friendname, Callback responseHandler) {
         post("/invite/" + friendname, responseHandler);
     }
@@ -800,10 +885,10 @@ public class NetworkController {
     }
 
 
-    public Tuple<Integer, JSONObject> postFileStreamSync(final String ourVersion, final String user, final String theirVersion, final String id,
-                                                         final InputStream fileInputStream, final String mimeType) throws JSONException {
-        if (fileInputStream == null) {
-            SurespotLog.d(TAG, "not uploading anything because the file upload stream is null");
+    public Tuple<Integer, JSONObject> postFileSync(final String ourVersion, final String user, final String theirVersion, final String id,
+                                                   final File file, final String mimeType) throws JSONException {
+        if (!file.exists()) {
+            SurespotLog.d(TAG, "not uploading anything because the file to upload does not exist: %s", file);
             return new Tuple<>(500, null);
         }
 
@@ -820,10 +905,11 @@ public class NetworkController {
                 .addPathSegment((mimeType.equals(SurespotConstants.MimeTypes.M4A) ? "mp4" : "image"))
                 .build();
 
-        SurespotLog.d(TAG, "posting file stream to %s", url);
+        SurespotLog.d(TAG, "posting file to %s", url);
         Request request = new Request.Builder()
                 .url(url)
-                .post(RequestBodyUtil.create(MediaType.parse("application/octet-stream"), fileInputStream))
+                // streams from the file with a content length rather than reading it into memory
+                .post(RequestBody.create(MediaType.parse("application/octet-stream"), file))
                 .build();
 
         Response response;
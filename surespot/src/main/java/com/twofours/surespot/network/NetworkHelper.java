@@ -3,6 +3,7 @@ package com.twofours.surespot.network;
 import android.content.Context;
 import android.os.AsyncTask;
 
+import com.twofours.surespot.SurespotApplication;
 import com.twofours.surespot.chat.ChatUtils;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.encryption.EncryptionController;
@@ -57,7 +58,7 @@ public class NetworkHelper {
                     }
                     return null;
                 }
-            }.execute();
+            }.executeOnExecutor(SurespotApplication.NETWORK_EXECUTOR);
 
         }
         else {
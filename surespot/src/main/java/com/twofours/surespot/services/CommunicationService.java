@@ -40,7 +40,6 @@ import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
 import com.twofours.surespot.encryption.EncryptionController;
 import com.twofours.surespot.identity.IdentityController;
-import com.twofours.surespot.images.FileCacheController;
 import com.twofours.surespot.images.MessageImageDownloader;
 import com.twofours.surespot.network.CookieResponseHandler;
 import com.twofours.surespot.network.MainThreadCallbackWrapper;
@@ -51,23 +50,22 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -104,6 +102,18 @@ public class CommunicationService extends Service {
     public static final int STATE_DISCONNECTED = 0;
     private static final int MAX_RETRIES = 60;
 
+    // send window states
+    private static final int SEND_PREPARING = 1;
+    private static final int SEND_PREPARED = 2;
+    // sent over the socket, waiting for the echo; later messages to the same user wait for it, it's sent again if the socket goes away
+    private static final int SEND_SOCKET = 3;
+    // posting over http, later messages to the same user wait for it to complete
+    private static final int SEND_HTTP = 4;
+
+    // limits on one http post of queued text messages
+    private static final int MAX_HTTP_BATCH_MESSAGES = 50;
+    private static final int MAX_HTTP_BATCH_BYTES = 64 * 1024;
+
     // maximum time before reconnecting in seconds
     private static final int MAX_RETRY_DELAY = 10;
 
@@ -115,7 +125,8 @@ public class CommunicationService extends Service {
     private int mConnectionState;
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mBuilder;
-    private String mCurrentSendIv;
+    // messages being encrypted or sent by iv, and how far along they are
+    private final LinkedHashMap<String, Integer> mSendWindow = new LinkedHashMap<String, Integer>();
     private ProcessNextMessageTask mResendTask;
     private boolean mErrored;
 
@@ -291,6 +302,11 @@ public class CommunicationService extends Service {
         }
     }
 
+    /**
+     * Start as many queued messages as the send window allows. Messages are encrypted ahead, but to any one user they go out in queue
+     * order: a message is only sent once the ones before it to that user are done, so a big upload to one friend
+     * doesn't hold up messages to anyone else.
+     */
     public synchronized void processNextMessage() {
 
         //if we're ERRORED do nothing
@@ -299,213 +315,270 @@ public class CommunicationService extends Service {
             return;
         }
 
-        SurespotLog.d(TAG, "processNextMessage, messages in queue: %d", mSendQueue.size());
-        SurespotMessage nextMessage = mSendQueue.peek();
-        //if the message is errored don't resend it, remove from queue
-        while (nextMessage != null && nextMessage.getErrorStatus() > 0) {
-            SurespotLog.d(TAG, "processNextMessage, removing errored message: %s", nextMessage.getIv());
-            removeQueuedMessage(nextMessage);
-            nextMessage = mSendQueue.peek();
-        }
+        SurespotLog.d(TAG, "processNextMessage, messages in queue: %d, in flight: %d", mSendQueue.size(), mSendWindow.size());
 
-        if (nextMessage != null) {
-            SurespotLog.d(TAG, "processNextMessage, currentIv: %s, next message iv: %s", mCurrentSendIv, nextMessage.getIv());
-            if (mCurrentSendIv == nextMessage.getIv()) {
-                SurespotLog.i(TAG, "processNextMessage() still sending message, iv: %s", nextMessage.getIv());
+        Set<String> queuedIvs = new HashSet<String>();
+        for (SurespotMessage message : mSendQueue) {
+            //if the message is errored don't resend it, remove from queue
+            if (message.getErrorStatus() > 0) {
+                SurespotLog.d(TAG, "processNextMessage, removing errored message: %s", message.getIv());
+                removeQueuedMessage(message);
             }
             else {
-                mCurrentSendIv = nextMessage.getIv();
-
-                //message processed successfully, onto the next
-                SurespotLog.i(TAG, "processNextMessage() sending message, iv: %s", nextMessage.getIv());
-
-                switch (nextMessage.getMimeType()) {
-                    case SurespotConstants.MimeTypes.TEXT:
-                        prepAndSendTextMessage(nextMessage);
-                        break;
-                    case SurespotConstants.MimeTypes.IMAGE:
-                    case SurespotConstants.MimeTypes.M4A:
-                        prepAndSendFileMessage(nextMessage);
-                        break;
-                }
+                queuedIvs.add(message.getIv());
             }
         }
-    }
-
-    private boolean isMessageReadyToSend(SurespotMessage message) {
-        return !TextUtils.isEmpty(message.getData()) && !TextUtils.isEmpty(message.getFromVersion()) && !TextUtils.isEmpty(message.getToVersion());
-    }
 
+        // forget messages that left the queue while in flight
+        mSendWindow.keySet().retainAll(queuedIvs);
 
-    private synchronized void prepAndSendTextMessage(final SurespotMessage message) {
-        SurespotLog.d(TAG, "prepAndSendTextMessage, iv: %s", message.getIv());
+        int windowSize = SurespotConfiguration.getSendWindowSize();
+        boolean useSocket = getConnectionState() == STATE_CONNECTED && mSocket != null;
+        // without the socket ready text messages to different users go out together in one post
+        List<SurespotMessage> httpBatch = new ArrayList<SurespotMessage>();
+        int httpBatchBytes = 0;
+        // users with an earlier message that has to go out before the next one can
+        Set<String> blocked = new HashSet<String>();
+        for (SurespotMessage message : mSendQueue) {
+            if (message.getErrorStatus() > 0) {
+                continue;
+            }
 
-        //make sure message is encrypted
-        if (!isMessageReadyToSend(message)) {
-            // do encryption in background
-            new AsyncTask<Void, Void, Boolean>() {
+            String to = message.getTo();
+            boolean text = SurespotConstants.MimeTypes.TEXT.equals(message.getMimeType());
+            Integer state = mSendWindow.get(message.getIv());
+            if (state == null) {
+                boolean ready = isMessageReadyToSend(message);
+                // ready text messages can ride along in the http batch without taking up the window
+                if (!(ready && text && !useSocket) && mSendWindow.size() >= windowSize) {
+                    blocked.add(to);
+                    continue;
+                }
 
-                @Override
-                protected Boolean doInBackground(Void... arg0) {
-                    String ourLatestVersion = IdentityController.getOurLatestVersion(message.getFrom());
-                    String theirLatestVersion = IdentityController.getTheirLatestVersion(message.getTo());
+                if (ready) {
+                    state = SEND_PREPARED;
+                    mSendWindow.put(message.getIv(), state);
+                }
+                else {
+                    SurespotLog.i(TAG, "processNextMessage() preparing message, iv: %s", message.getIv());
+                    mSendWindow.put(message.getIv(), SEND_PREPARING);
+                    prepareMessage(message);
+                    blocked.add(to);
+                    continue;
+                }
+            }
 
-                    if (theirLatestVersion == null) {
-                        SurespotLog.d(TAG, "could not encrypt message - could not get latest version, iv: %s", message.getIv());
-                        //retry
-                        message.setErrorStatus(0);
-                        return false;
+            switch (state) {
+                case SEND_PREPARED:
+                    if (blocked.contains(to)) {
+                        break;
                     }
 
-                    byte[] iv = ChatUtils.base64DecodeNowrap(message.getIv());
-                    String result = EncryptionController.symmetricEncrypt(ourLatestVersion, message.getTo(), theirLatestVersion, message.getPlainData().toString(), iv);
+                    if (text) {
+                        if (useSocket) {
+                            SurespotLog.i(TAG, "processNextMessage() sending message, iv: %s", message.getIv());
+                            mSendWindow.put(message.getIv(), SEND_SOCKET);
+                            sendTextMessage(message);
+                            break;
+                        }
 
-                    if (result != null) {
-                        //update unsent message
-                        message.setData(result);
-                        message.setFromVersion(ourLatestVersion);
-                        message.setToVersion(theirLatestVersion);
-                        return true;
+                        int bytes = message.getData().length();
+                        if (httpBatch.size() < MAX_HTTP_BATCH_MESSAGES && (httpBatch.isEmpty() || httpBatchBytes + bytes <= MAX_HTTP_BATCH_BYTES)) {
+                            // the server can accept some of a post and reject the rest, so a post carries one message per user and the
+                            // next one to that user waits for it
+                            mSendWindow.put(message.getIv(), SEND_HTTP);
+                            httpBatch.add(message);
+                            httpBatchBytes += bytes;
+                        }
                     }
                     else {
-                        SurespotLog.d(TAG, "could not encrypt message, iv: %s", message.getIv());
-                        message.setErrorStatus(500);
-                        return false;
+                        SurespotLog.i(TAG, "processNextMessage() sending file message, iv: %s", message.getIv());
+                        mSendWindow.put(message.getIv(), SEND_HTTP);
+                        sendFileMessage(message);
                     }
-                }
+                    break;
+            }
 
-                protected void onPostExecute(Boolean success) {
-                    SurespotApplication.getChatController().addMessage(message);
-                    if (success) {
-                        sendTextMessage(message);
-                    }
-                    else {
-                        messageSendCompleted(message);
-                        if (!scheduleResendTimer()) {
-                            errorMessageQueue();
-                        }
-                    }
-                }
-            }.execute();
+            blocked.add(to);
         }
-        else {
-            sendTextMessage(message);
+
+        if (!httpBatch.isEmpty()) {
+            sendMessagesUsingHttp(httpBatch);
         }
     }
 
-    private void sendTextMessage(SurespotMessage message) {
-        if (getConnectionState() == STATE_CONNECTED) {
-            SurespotLog.d(TAG, "sendTextMessage, mSocket: %s", mSocket);
-            JSONObject json = message.toJSONObjectSocket();
-            SurespotLog.d(TAG, "sendTextMessage, json: %s", json);
-            //String s = json.toString();
-            //SurespotLog.d(TAG, "sendmessage, message string: %s", s);
-
-            if (mSocket != null) {
-                mSocket.send(json);
+    private boolean isMessageReadyToSend(SurespotMessage message) {
+        return !TextUtils.isEmpty(message.getData()) && !TextUtils.isEmpty(message.getFromVersion()) && !TextUtils.isEmpty(message.getToVersion());
+    }
+
+
+    private void prepareMessage(SurespotMessage message) {
+        switch (message.getMimeType()) {
+            case SurespotConstants.MimeTypes.TEXT:
+                prepareTextMessage(message);
+                break;
+            case SurespotConstants.MimeTypes.IMAGE:
+            case SurespotConstants.MimeTypes.M4A:
+                prepareFileMessage(message);
+                break;
+        }
+    }
+
+    // called on the main thread once a message is encrypted, or couldn't be
+    private void messagePrepared(SurespotMessage message, boolean success) {
+        SurespotApplication.getChatController().addMessage(message);
+        if (success) {
+            synchronized (this) {
+                if (mSendWindow.containsKey(message.getIv())) {
+                    mSendWindow.put(message.getIv(), SEND_PREPARED);
+                }
             }
+            processNextMessage();
         }
         else {
-            sendMessageUsingHttp(message);
+            messageSendCompleted(message);
+            if (!scheduleResendTimer()) {
+                errorMessageQueue();
+            }
         }
     }
 
-    private void prepAndSendFileMessage(final SurespotMessage message) {
-        if (!isMessageReadyToSend(message)) {
-
+    private void prepareTextMessage(final SurespotMessage message) {
+        SurespotLog.d(TAG, "prepareTextMessage, iv: %s", message.getIv());
 
-            new AsyncTask<Void, Void, Boolean>() {
+        // do encryption in background
+        new AsyncTask<Void, Void, Boolean>() {
 
-                @Override
-                protected Boolean doInBackground(Void... arg0) {
-                    //make sure it's pointing to a local file
-                    if (message.getPlainData() == null || !message.getPlainData().toString().startsWith("file")) {
-                        message.setErrorStatus(500);
-                        return false;
-                    }
-
-                    try {
+            @Override
+            protected Boolean doInBackground(Void... arg0) {
+                String ourLatestVersion = IdentityController.getOurLatestVersion(message.getFrom());
+                String theirLatestVersion = IdentityController.getTheirLatestVersion(message.getTo());
+
+                if (theirLatestVersion == null) {
+                    SurespotLog.d(TAG, "could not encrypt message - could not get latest version, iv: %s", message.getIv());
+                    //retry
+                    message.setErrorStatus(0);
+                    return false;
+                }
 
-                        final String ourVersion = IdentityController.getOurLatestVersion(message.getFrom());
-                        final String theirVersion = IdentityController.getTheirLatestVersion(message.getTo());
-                        if (theirVersion == null) {
-                            SurespotLog.d(TAG, "could not encrypt file  message - could not get latest version, iv: %s", message.getIv());
-                            //retry
-                            message.setErrorStatus(0);
-                            return false;
-                        }
-                        final String iv = message.getIv();
+                byte[] iv = ChatUtils.base64DecodeNowrap(message.getIv());
+                String result = EncryptionController.symmetricEncrypt(ourLatestVersion, message.getTo(), theirLatestVersion, message.getPlainData().toString(), iv);
 
+                if (result != null) {
+                    //update unsent message
+                    message.setData(result);
+                    message.setFromVersion(ourLatestVersion);
+                    message.setToVersion(theirLatestVersion);
+                    return true;
+                }
+                else {
+                    SurespotLog.d(TAG, "could not encrypt message, iv: %s", message.getIv());
+                    message.setErrorStatus(500);
+                    return false;
+                }
+            }
 
-                        // save encrypted image to disk
-                        InputStream fileInputStream = CommunicationService.this.getContentResolver().openInputStream(Uri.parse(message.getPlainData().toString()));
-                        File localImageFile = ChatUtils.getTempImageUploadFile(CommunicationService.this);
-                        OutputStream fileSaveStream = new FileOutputStream(localImageFile);
-                        String localImageUri = Uri.fromFile(localImageFile).toString();
-                        SurespotLog.d(TAG, "encrypting file iv: %s, from %s to encrypted file %s", iv, message.getPlainData().toString(), localImageUri);
+            protected void onPostExecute(Boolean success) {
+                messagePrepared(message, success);
+            }
+        }.executeOnExecutor(SurespotApplication.CRYPTO_EXECUTOR);
+    }
 
-                        //encrypt
-                        PipedOutputStream encryptionOutputStream = new PipedOutputStream();
-                        final PipedInputStream encryptionInputStream = new PipedInputStream(encryptionOutputStream);
-                        EncryptionController.runEncryptTask(ourVersion, message.getTo(), theirVersion, iv, new BufferedInputStream(fileInputStream), encryptionOutputStream);
+    private void sendTextMessage(SurespotMessage message) {
+        SurespotLog.d(TAG, "sendTextMessage, mSocket: %s", mSocket);
+        JSONObject json = message.toJSONObjectSocket();
+        SurespotLog.d(TAG, "sendTextMessage, json: %s", json);
+        //String s = json.toString();
+        //SurespotLog.d(TAG, "sendmessage, message string: %s", s);
+        mSocket.send(json);
+    }
 
-                        int bufferSize = 1024;
-                        byte[] buffer = new byte[bufferSize];
+    private void prepareFileMessage(final SurespotMessage message) {
+        SurespotLog.d(TAG, "prepareFileMessage, iv: %s", message.getIv());
 
-                        int len = 0;
-                        while ((len = encryptionInputStream.read(buffer)) != -1) {
-                            fileSaveStream.write(buffer, 0, len);
-                        }
-                        fileSaveStream.close();
-                        encryptionInputStream.close();
+        new AsyncTask<Void, Void, Boolean>() {
 
-                        //move bitmap cache
-                        if (message.getMimeType().equals(SurespotConstants.MimeTypes.IMAGE)) {
-                            MessageImageDownloader.moveCacheEntry(message.getPlainData().toString(), localImageUri);
-                        }
+            @Override
+            protected Boolean doInBackground(Void... arg0) {
+                //make sure it's pointing to a local file
+                if (message.getPlainData() == null || !message.getPlainData().toString().startsWith("file")) {
+                    message.setErrorStatus(500);
+                    return false;
+                }
 
-                        //add encrypted local file to file cache
-                        FileCacheController fcc = SurespotApplication.getFileCacheController();
-                        if (fcc != null) {
-                            fcc.putEntry(localImageUri, new FileInputStream(localImageFile));
-                        }
+                File localImageFile = null;
+                boolean prepared = false;
+                try {
 
+                    final String ourVersion = IdentityController.getOurLatestVersion(message.getFrom());
+                    final String theirVersion = IdentityController.getTheirLatestVersion(message.getTo());
+                    if (theirVersion == null) {
+                        SurespotLog.d(TAG, "could not encrypt file  message - could not get latest version, iv: %s", message.getIv());
+                        //retry
+                        message.setErrorStatus(0);
+                        return false;
+                    }
+                    final String iv = message.getIv();
 
-                        boolean deleted = new File(Uri.parse(message.getPlainData().toString()).getPath()).delete();
-                        SurespotLog.d(TAG, "deleting unencrypted file %s, iv: %s, success: %b", message.getPlainData().toString(), iv, deleted);
 
-                        message.setPlainData(null);
-                        message.setData(localImageUri);
-                        message.setFromVersion(ourVersion);
-                        message.setToVersion(theirVersion);
+                    // encrypt straight to the file we upload from, it also serves as the file cache entry until it's sent
+                    localImageFile = ChatUtils.getTempImageUploadFile(CommunicationService.this);
+                    String localImageUri = Uri.fromFile(localImageFile).toString();
+                    SurespotLog.d(TAG, "encrypting file iv: %s, from %s to encrypted file %s", iv, message.getPlainData().toString(), localImageUri);
 
-                        return true;
+                    InputStream fileInputStream = CommunicationService.this.getContentResolver().openInputStream(Uri.parse(message.getPlainData().toString()));
+                    OutputStream fileSaveStream = new BufferedOutputStream(new FileOutputStream(localImageFile));
+                    boolean encrypted;
+                    try {
+                        encrypted = EncryptionController.symmetricEncryptStream(ourVersion, message.getTo(), theirVersion, ChatUtils.base64DecodeNowrap(iv),
+                                fileInputStream, fileSaveStream);
                     }
-                    catch (IOException e) {
-                        SurespotLog.w(TAG, e, "prepAndSendFileMessage");
-                        message.setErrorStatus(500);
-                        return false;
+                    finally {
+                        fileInputStream.close();
+                        fileSaveStream.close();
                     }
 
-                }
+                    if (!encrypted) {
+                        SurespotLog.d(TAG, "could not encrypt file message - no shared secret, iv: %s", iv);
+                        //retry
+                        message.setErrorStatus(0);
+                        return false;
+                    }
 
-                protected void onPostExecute(Boolean success) {
-                    SurespotApplication.getChatController().addMessage(message);
-                    if (success) {
-                        sendFileMessage(message);
+                    //move bitmap cache
+                    if (message.getMimeType().equals(SurespotConstants.MimeTypes.IMAGE)) {
+                        MessageImageDownloader.moveCacheEntry(message.getPlainData().toString(), localImageUri);
                     }
-                    else {
-                        messageSendCompleted(message);
-                        if (!scheduleResendTimer()) {
-                            errorMessageQueue();
-                        }
+
+                    boolean deleted = new File(Uri.parse(message.getPlainData().toString()).getPath()).delete();
+                    SurespotLog.d(TAG, "deleting unencrypted file %s, iv: %s, success: %b", message.getPlainData().toString(), iv, deleted);
+
+                    message.setPlainData(null);
+                    message.setData(localImageUri);
+                    message.setFromVersion(ourVersion);
+                    message.setToVersion(theirVersion);
+
+                    prepared = true;
+                    return true;
+                }
+                catch (IOException e) {
+                    SurespotLog.w(TAG, e, "prepareFileMessage");
+                    message.setErrorStatus(500);
+                    return false;
+                }
+                finally {
+                    // don't leave a partly written upload file behind
+                    if (!prepared && localImageFile != null) {
+                        localImageFile.delete();
                     }
                 }
-            }.execute();
-        }
-        else {
-            sendFileMessage(message);
-        }
+
+            }
+
+            protected void onPostExecute(Boolean success) {
+                messagePrepared(message, success);
+            }
+        }.executeOnExecutor(SurespotApplication.CRYPTO_EXECUTOR);
     }
 
 
@@ -518,22 +591,16 @@ public class CommunicationService extends Service {
                 NetworkController networkController = SurespotApplication.getNetworkController();
                 if (networkController != null && message.getFrom().equals(networkController.getUsername())) {
 
-                    FileInputStream uploadStream;
                     try {
-                        uploadStream = new FileInputStream(URI.create(message.getData()).getPath());
-                        return networkController.postFileStreamSync(
+                        return networkController.postFileSync(
                                 message.getOurVersion(),
                                 message.getTo(),
                                 message.getTheirVersion(),
                                 message.getIv(),
-                                uploadStream,
+                                new File(URI.create(message.getData()).getPath()),
                                 message.getMimeType());
 
                     }
-                    catch (FileNotFoundException e) {
-                        SurespotLog.w(TAG, e, "sendFileMessage");
-                        return new Tuple<>(500, null);
-                    }
                     catch (JSONException e) {
                         SurespotLog.w(TAG, e, "sendFileMessage");
                         return new Tuple<>(500, null);
@@ -563,24 +630,23 @@ public class CommunicationService extends Service {
                         //success
                         mErrored = false;
                         SurespotLog.d(TAG, "sendFileMessage received response: %s", result.second);
-                        //need to remove the message from the queue before setting the current send iv to null
                         removeQueuedMessage(message);
                         processNextMessage();
                     }
                 }
             }
-        }.execute();
+        }.executeOnExecutor(SurespotApplication.NETWORK_EXECUTOR);
     }
 
-    private void sendMessageUsingHttp(final SurespotMessage message) {
-        SurespotLog.d(TAG, "sendMessagesUsingHttp, iv: %s", message.getIv());
-        ArrayList<SurespotMessage> toSend = new ArrayList<SurespotMessage>();
-        toSend.add(message);
-        SurespotApplication.getNetworkController().postMessages(toSend, new MainThreadCallbackWrapper(new MainThreadCallbackWrapper.MainThreadCallback() {
+    private void sendMessagesUsingHttp(final List<SurespotMessage> messages) {
+        SurespotLog.d(TAG, "sendMessagesUsingHttp, messages: %d", messages.size());
+        SurespotApplication.getNetworkController().postMessages(messages, new MainThreadCallbackWrapper(new MainThreadCallbackWrapper.MainThreadCallback() {
 
             @Override
             public void onFailure(Call call, IOException e) {
-                messageSendCompleted(message);
+                for (SurespotMessage message : messages) {
+                    messageSendCompleted(message);
+                }
 
                 SurespotLog.w(TAG, e, "sendMessagesUsingHttp onFailure");
                 //try and send next message again
@@ -591,62 +657,56 @@ public class CommunicationService extends Service {
 
             @Override
             public void onResponse(Call call, Response response, String responseString) throws IOException {
-                messageSendCompleted(message);
-
+                for (SurespotMessage message : messages) {
+                    messageSendCompleted(message);
+                }
 
                 if (response.isSuccessful()) {
                     mErrored = false;
+
+                    // the status of each message we sent, matched by iv
+                    Set<String> sentIvs = new HashSet<String>();
                     try {
                         JSONObject json = new JSONObject(responseString);
-                        JSONArray messages = json.getJSONArray("messageStatus");
-                        JSONObject messageAndStatus = messages.getJSONObject(0);
-                        JSONObject jsonMessage = messageAndStatus.getJSONObject("message");
-                        int status = messageAndStatus.getInt("status");
-
-                        if (status == 204) {
-                            SurespotMessage messageReceived = SurespotMessage.toSurespotMessage(jsonMessage);
-                            //need to remove the message from the queue before setting the current send iv to null
-                            removeQueuedMessage(messageReceived);
-                            processNextMessage();
-                        }
-                        else {
-                            //try and send next message again
-                            if (!scheduleResendTimer()) {
-                                errorMessageQueue();
+                        JSONArray messageStatuses = json.getJSONArray("messageStatus");
+                        for (int i = 0; i < messageStatuses.length(); i++) {
+                            JSONObject messageAndStatus = messageStatuses.getJSONObject(i);
+                            int status = messageAndStatus.getInt("status");
+                            String iv = messageAndStatus.getJSONObject("message").getString("iv");
+                            if (status == 204) {
+                                sentIvs.add(iv);
+                            }
+                            else {
+                                SurespotLog.i(TAG, "sendMessagesUsingHttp, iv: %s, status: %d", iv, status);
                             }
                         }
                     }
                     catch (JSONException e) {
                         SurespotLog.w(TAG, e, "JSON received from server");
-                        //try and send next message again
-                        if (!scheduleResendTimer()) {
-                            errorMessageQueue();
-                        }
                     }
 
+                    removeQueuedMessages(sentIvs);
+                    if (sentIvs.size() == messages.size()) {
+                        processNextMessage();
+                        return;
+                    }
                 }
                 else {
                     SurespotLog.w(TAG, "sendMessagesUsingHttp response error code: %d", response.code());
-                    //try and send next message again
-                    if (!scheduleResendTimer()) {
-                        errorMessageQueue();
-                    }
+                }
+
+                //try and send the rest again
+                if (!scheduleResendTimer()) {
+                    errorMessageQueue();
                 }
             }
         }));
     }
 
     public synchronized void messageSendCompleted(SurespotMessage message) {
-        //if we're not onto a different message, set the current message pointer to null
-
-        if (message.getIv().equals(mCurrentSendIv)) {
-            SurespotLog.d(TAG, "messageSendCompleted iv's the same, setting to null, mCurrentSendIv: %s, messageIv: %s", mCurrentSendIv, message.getIv());
-            mCurrentSendIv = null;
-        }
-        else {
-            SurespotLog.d(TAG, "messageSendCompleted iv's not the same, doing nothing, mCurrentSendIv: %s, messageIv: %s", mCurrentSendIv, message.getIv());
-        }
-
+        // matched by iv, completes whichever message in the window it was
+        Integer state = mSendWindow.remove(message.getIv());
+        SurespotLog.d(TAG, "messageSendCompleted, iv: %s, was in flight: %b, in flight: %d", message.getIv(), state != null, mSendWindow.size());
     }
 
     public int getConnectionState() {
@@ -710,8 +770,10 @@ public class CommunicationService extends Service {
         stopReconnectionAttempts();
         stopResendTimer();
 
-        mErrored = true;
-        mCurrentSendIv = null;
+        synchronized (this) {
+            mErrored = true;
+            mSendWindow.clear();
+        }
     }
 
     public void clearMessageQueue(String friendname) {
@@ -725,22 +787,32 @@ public class CommunicationService extends Service {
     }
 
     public void removeQueuedMessage(SurespotMessage message) {
-        boolean removed = false;
+        Set<String> ivs = new HashSet<String>();
+        ivs.add(message.getIv());
+        removeQueuedMessages(ivs);
+    }
+
+    private void removeQueuedMessages(Set<String> ivs) {
+        if (ivs.isEmpty()) {
+            return;
+        }
+
+        int removed = 0;
 
         Iterator<SurespotMessage> iterator = mSendQueue.iterator();
         while (iterator.hasNext()) {
             SurespotMessage m = iterator.next();
-            if (m.getIv().equals(message.getIv())) {
+            if (ivs.contains(m.getIv())) {
                 iterator.remove();
-                removed = true;
+                removed++;
             }
         }
 
-        if (removed) {
+        if (removed > 0) {
             saveMessageQueue();
         }
 
-        SurespotLog.d(TAG, "removedQueuedMessage, iv: %s, removed: %b", message.getIv(), removed);
+        SurespotLog.d(TAG, "removedQueuedMessages, ivs: %s, removed: %d", ivs, removed);
     }
 
 
@@ -1007,9 +1079,22 @@ public class CommunicationService extends Service {
     }
 
     private synchronized void setState(int state) {
+        if (state != mConnectionState) {
+            resendSocketMessages();
+        }
         mConnectionState = state;
     }
 
+    // messages sent on a socket that went away may never have arrived, send them again in order once we can
+    private synchronized void resendSocketMessages() {
+        for (Map.Entry<String, Integer> entry : mSendWindow.entrySet()) {
+            if (entry.getValue() == SEND_SOCKET) {
+                SurespotLog.d(TAG, "resendSocketMessages, iv: %s", entry.getKey());
+                entry.setValue(SEND_PREPARED);
+            }
+        }
+    }
+
     private class ReconnectTask extends TimerTask {
 
         @Override
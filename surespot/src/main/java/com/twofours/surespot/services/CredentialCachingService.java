@@ -9,11 +9,13 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat.Builder;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.twofours.surespot.R;
 import com.twofours.surespot.SurespotApplication;
@@ -22,23 +24,28 @@ import com.twofours.surespot.common.SurespotConstants;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
 import com.twofours.surespot.encryption.EncryptionController;
-import com.twofours.surespot.encryption.PrivateKeyPairs;
 import com.twofours.surespot.encryption.PublicKeys;
 import com.twofours.surespot.identity.IdentityController;
 import com.twofours.surespot.identity.SurespotIdentity;
 import com.twofours.surespot.ui.UIUtils;
 
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.Cookie;
 
 @SuppressLint("NewApi")
 public class CredentialCachingService extends Service {
 	private static final String TAG = "CredentialCachingService";
+	// each secret is a key fetch and an ecdh so only warm a few at once and leave the rest of the network lane for downloads
+	private static final int WARM_UP_PARALLELISM = 2;
 
 	private final IBinder mBinder = new CredentialCachingBinder();
 
@@ -48,6 +55,7 @@ public class CredentialCachingService extends Service {
 	private LoadingCache<PublicKeyPairKey, PublicKeys> mPublicIdentities;
 	private LoadingCache<SharedSecretKey, byte[]> mSharedSecrets;
 	private LoadingCache<String, String> mLatestVersions;
+	private final AtomicInteger mWarmUpGeneration = new AtomicInteger();
 
 	@Override
 	public void onCreate() {
@@ -57,6 +65,13 @@ public class CredentialCachingService extends Service {
 
 			@Override
 			public PublicKeys load(PublicKeyPairKey key) throws Exception {
+				// our own keys come from the identity
+				SurespotIdentity identity = mIdentities.get(key.getUsername());
+				if (identity != null && identity.hasKeyPairs(key.getVersion())) {
+					return new PublicKeys(key.getVersion(), identity.getKeyPairDH(key.getVersion()).getPublic(), identity.getKeyPairDSA(key.getVersion())
+							.getPublic(), 0);
+				}
+
 				PublicKeys keys = IdentityController.getPublicKeyPair2(key.getUsername(), key.getVersion());
 				String version = keys.getVersion();
 
@@ -70,6 +85,39 @@ public class CredentialCachingService extends Service {
 
 				return keys;
 			}
+
+			@Override
+			public Map<PublicKeyPairKey, PublicKeys> loadAll(Iterable<? extends PublicKeyPairKey> keys) throws Exception {
+				// the batch request takes one version per user, any other versions are loaded on their own
+				HashMap<String, String> versions = new HashMap<String, String>();
+				HashMap<PublicKeyPairKey, PublicKeys> loaded = new HashMap<PublicKeyPairKey, PublicKeys>();
+				ArrayList<PublicKeyPairKey> others = new ArrayList<PublicKeyPairKey>();
+				for (PublicKeyPairKey key : keys) {
+					if (versions.containsKey(key.getUsername())) {
+						others.add(key);
+					}
+					else {
+						versions.put(key.getUsername(), key.getVersion());
+					}
+				}
+
+				Map<String, PublicKeys> publicKeys = IdentityController.getPublicKeyPairs2(versions);
+				for (Map.Entry<String, PublicKeys> entry : publicKeys.entrySet()) {
+					PublicKeys keyPair = entry.getValue();
+					updateLatestVersion(entry.getKey(), keyPair.getVersion());
+					loaded.put(new PublicKeyPairKey(new VersionMap(entry.getKey(), keyPair.getVersion())), keyPair);
+				}
+
+				for (PublicKeyPairKey key : others) {
+					try {
+						loaded.put(key, load(key));
+					}
+					catch (Exception e) {
+						SurespotLog.w(TAG, e, "keyPairCacheLoader loadAll");
+					}
+				}
+				return loaded;
+			}
 		};
 
 		CacheLoader<SharedSecretKey, byte[]> secretCacheLoader = new CacheLoader<SharedSecretKey, byte[]>() {
@@ -102,11 +150,35 @@ public class CredentialCachingService extends Service {
 				SurespotLog.d(TAG, "versionCacheLoader: retrieved keyversion from server for username: %s, version: %s", key, version);
 				return version;
 			}
+
+			@Override
+			public Map<String, String> loadAll(Iterable<? extends String> keys) throws Exception {
+				ArrayList<String> usernames = new ArrayList<String>();
+				for (String username : keys) {
+					usernames.add(username);
+				}
+
+				Map<String, String> versions = SurespotApplication.getNetworkController().getKeyVersionsSync(usernames);
+				if (versions != null) {
+					SurespotLog.d(TAG, "versionCacheLoader: retrieved %d keyversions from server for %d usernames", versions.size(), usernames.size());
+					return versions;
+				}
+
+				// the batch request failed so one at a time
+				HashMap<String, String> loaded = new HashMap<String, String>(usernames.size());
+				for (String username : usernames) {
+					String version = load(username);
+					if (version != null) {
+						loaded.put(username, version);
+					}
+				}
+				return loaded;
+			}
 		};
 
-		mPublicIdentities = CacheBuilder.newBuilder().build(keyPairCacheLoader);
-		mSharedSecrets = CacheBuilder.newBuilder().build(secretCacheLoader);
-		mLatestVersions = CacheBuilder.newBuilder().build(versionCacheLoader);
+		mPublicIdentities = CacheBuilder.newBuilder().recordStats().build(keyPairCacheLoader);
+		mSharedSecrets = CacheBuilder.newBuilder().recordStats().build(secretCacheLoader);
+		mLatestVersions = CacheBuilder.newBuilder().recordStats().build(versionCacheLoader);
 		mIdentities = new HashMap<String, SurespotIdentity>(5);
 
 		Notification notification = null;
@@ -221,14 +293,13 @@ public class CredentialCachingService extends Service {
 		if (update) {
 			SurespotLog.d(TAG, "updating identity: %s", identity.getUsername());
 			this.mIdentities.put(identity.getUsername(), identity);
-			// add all my identity's public keys to the cache
-
-			Iterator<PrivateKeyPairs> iterator = identity.getKeyPairs().iterator();
-			while (iterator.hasNext()) {
-				PrivateKeyPairs pkp = iterator.next();
-				String version = pkp.getVersion();
-				this.mPublicIdentities.put(new PublicKeyPairKey(new VersionMap(identity.getUsername(), version)), new PublicKeys(version, identity
-						.getKeyPairDH(version).getPublic(), identity.getKeyPairDSA(version).getPublic(), 0));
+
+			// my identity's public keys are loaded from it when they're first asked for, rather than recreating every version's keys
+			// now, so drop any loaded from a previous copy of it
+			for (PublicKeyPairKey key : mPublicIdentities.asMap().keySet()) {
+				if (key.getUsername().equals(identity.getUsername())) {
+					mPublicIdentities.invalidate(key);
+				}
 			}
 		}
 	}
@@ -269,6 +340,138 @@ public class CredentialCachingService extends Service {
 
 	}
 
+	/**
+	 * Work out the shared secrets between our latest keys and the latest keys of each user in the background, in the order given, so the
+	 * first message from a friend doesn't wait on a key fetch and ECDH. Secrets we already have are skipped and a newer warm up replaces
+	 * this one.
+	 */
+	public void warmSharedSecrets(final List<String> usernames) {
+		final String ourUsername = getLoggedInUser();
+		if (ourUsername == null || usernames.isEmpty()) {
+			return;
+		}
+
+		final int generation = mWarmUpGeneration.incrementAndGet();
+		final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>(usernames);
+		final int workers = Math.min(WARM_UP_PARALLELISM, usernames.size());
+		final AtomicInteger running = new AtomicInteger(workers);
+		final long start = SystemClock.elapsedRealtime();
+
+		SurespotLog.d(TAG, "warming shared secrets for %d users", usernames.size());
+		SurespotApplication.NETWORK_EXECUTOR.execute(new Runnable() {
+			@Override
+			public void run() {
+				// fetch everyone's versions and keys up front so the workers only have the ecdh to do
+				loadLatestKeys(usernames);
+
+				for (int i = 0; i < workers; i++) {
+					SurespotApplication.NETWORK_EXECUTOR.execute(new Runnable() {
+						@Override
+						public void run() {
+							String username;
+							while ((username = queue.poll()) != null) {
+								if (generation != mWarmUpGeneration.get() || !ourUsername.equals(getLoggedInUser())) {
+									break;
+								}
+								warmSharedSecret(ourUsername, username);
+							}
+
+							if (running.decrementAndGet() == 0) {
+								SurespotLog.d(TAG, "warmed shared secrets in %dms", SystemClock.elapsedRealtime() - start);
+								logCacheStats();
+							}
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the latest key versions and public keys for many users into the caches in a request or two rather than a couple per user.
+	 * Needs to be called on a thread.
+	 */
+	public void loadLatestKeys(Collection<String> usernames) {
+		if (getLoggedInUser() == null || usernames.isEmpty()) {
+			return;
+		}
+
+		try {
+			mLatestVersions.getAll(usernames);
+		}
+		catch (InvalidCacheLoadException e) {
+			// the versions we did get are cached
+			SurespotLog.i(TAG, "loadLatestKeys, no key version for some users");
+		}
+		catch (ExecutionException e) {
+			SurespotLog.w(TAG, e, "loadLatestKeys");
+		}
+
+		ArrayList<PublicKeyPairKey> keys = new ArrayList<PublicKeyPairKey>(usernames.size());
+		for (String username : usernames) {
+			// through the map so this doesn't count towards the cache stats
+			String version = mLatestVersions.asMap().get(username);
+			if (version != null) {
+				keys.add(new PublicKeyPairKey(new VersionMap(username, version)));
+			}
+		}
+
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		try {
+			mPublicIdentities.getAll(keys);
+		}
+		catch (InvalidCacheLoadException e) {
+			SurespotLog.i(TAG, "loadLatestKeys, no public keys for some users");
+		}
+		catch (ExecutionException e) {
+			SurespotLog.w(TAG, e, "loadLatestKeys");
+		}
+	}
+
+	private void warmSharedSecret(String ourUsername, String theirUsername) {
+		SurespotIdentity identity = getIdentity(null, ourUsername, null);
+		if (identity == null) {
+			return;
+		}
+
+		// loadLatestKeys already fetched the versions outside the lock, users it couldn't get one for are skipped rather than blocking
+		// everyone else on getLatestVersion's monitor
+		String theirVersion = mLatestVersions.asMap().get(theirUsername);
+		if (theirVersion == null) {
+			return;
+		}
+
+		SharedSecretKey key = new SharedSecretKey(new VersionMap(ourUsername, identity.getLatestVersion()), new VersionMap(theirUsername, theirVersion), true);
+		// check through the map so warming doesn't count towards the cache stats
+		if (mSharedSecrets.asMap().containsKey(key)) {
+			return;
+		}
+
+		try {
+			mSharedSecrets.get(key);
+		}
+		catch (InvalidCacheLoadException e) {
+			SurespotLog.w(TAG, e, "warmSharedSecret");
+		}
+		catch (ExecutionException e) {
+			SurespotLog.w(TAG, e, "warmSharedSecret");
+		}
+	}
+
+	public void logCacheStats() {
+		logCacheStats("public keys", mPublicIdentities.stats());
+		logCacheStats("shared secrets", mSharedSecrets.stats());
+		logCacheStats("latest versions", mLatestVersions.stats());
+	}
+
+	private static void logCacheStats(String name, CacheStats stats) {
+		SurespotLog.d(TAG, "%s cache: hits %d, misses %d, loads %d, load failures %d, average load %dms", name, stats.hitCount(), stats.missCount(),
+				stats.loadSuccessCount(), stats.loadExceptionCount(), (long) stats.averageLoadPenalty() / 1000000);
+	}
+
 	public SurespotIdentity getIdentity(Context context) {
 		return getIdentity(context, mLoggedInUser, null);
 	}
@@ -309,11 +512,14 @@ public class CredentialCachingService extends Service {
 	}
 
 	public synchronized void clear() {
+		mWarmUpGeneration.incrementAndGet();
 		mPublicIdentities.invalidateAll();
 		mSharedSecrets.invalidateAll();
 		mLatestVersions.invalidateAll();
 		mCookies.clear();
 		mIdentities.clear();
+		EncryptionController.clearCipherContexts();
+		EncryptionController.clearSessionKeys();
 	}
 
 	public synchronized void clearIdentityData(String username, boolean fully) {
@@ -338,6 +544,8 @@ public class CredentialCachingService extends Service {
 			}
 
 			clearIdentityData(mLoggedInUser, true);
+			EncryptionController.clearCipherContexts();
+			EncryptionController.clearSessionKeys();
 			mLoggedInUser = null;
 		}
 	}
@@ -26,10 +26,12 @@ import com.twofours.surespot.R;
 import com.twofours.surespot.SurespotApplication;
 import com.twofours.surespot.activities.MainActivity;
 import com.twofours.surespot.chat.ChatAdapter;
+import com.twofours.surespot.chat.RowPrefetcher;
 import com.twofours.surespot.chat.SurespotMessage;
 import com.twofours.surespot.common.SurespotLog;
 import com.twofours.surespot.common.Utils;
 import com.twofours.surespot.encryption.EncryptionController;
+import com.twofours.surespot.images.SingleFlightLoader;
 import com.twofours.surespot.services.CommunicationService;
 import com.twofours.surespot.ui.UIUtils;
 
@@ -54,6 +56,7 @@ import java.lang.ref.WeakReference;
 public class VoiceMessageDownloader {
 	private static final String TAG = "VoiceMessageDownloader";
 	private static Handler mHandler = new Handler(MainActivity.getContext().getMainLooper());
+	private static SingleFlightLoader<byte[]> mLoader = new SingleFlightLoader<byte[]>(TAG, SurespotApplication.NETWORK_EXECUTOR);
 	private ChatAdapter mChatAdapter;
 
 	public VoiceMessageDownloader(ChatAdapter chatAdapter) {
@@ -88,6 +91,31 @@ public class VoiceMessageDownloader {
 		}
 	}
 
+	/**
+	 * Load a message's voice data onto the message ahead of its row being bound. A row bound while it's loading joins the same load.
+	 *
+	 * @param onDone
+	 *            run on the loading thread once it's finished
+	 */
+	public RowPrefetcher.Prefetch prefetch(final SurespotMessage message, final Runnable onDone) {
+		final SingleFlightLoader<byte[]>.Request request = mLoader.load(getKey(message), new VoiceLoader(message), new SingleFlightLoader.Listener<byte[]>() {
+			@Override
+			public void onLoaded(byte[] soundbytes) {
+				if (soundbytes != null) {
+					message.setPlainBinaryData(soundbytes);
+				}
+				onDone.run();
+			}
+		}, mChatAdapter.getRowLoadScheduler().executorFor("prefetch voice", SurespotApplication.NETWORK_EXECUTOR, message));
+
+		return new RowPrefetcher.Prefetch() {
+			@Override
+			public void cancel() {
+				request.cancel();
+			}
+		};
+	}
+
 	/*
 	 * Same as download but the image is always downloaded and the cache is not used. Kept private at the moment as its interest is not clear. private void
 	 * forceDownload(String url, ImageView view) { forceDownload(url, view, null); }
@@ -104,7 +132,7 @@ public class VoiceMessageDownloader {
 			seekBar.setTag(R.id.tagDownloader, decryptionTaskWrapper);
 			message.setLoaded(false);
 			message.setLoading(true);
-			SurespotApplication.THREAD_POOL_EXECUTOR.execute(task);
+			task.start();
 		}
 	}
 
@@ -145,142 +173,144 @@ public class VoiceMessageDownloader {
 		return null;
 	}
 
+	private static String getKey(SurespotMessage message) {
+		return TextUtils.isEmpty(message.getData()) ? message.getPlainData().toString() : message.getData();
+	}
+
 	/**
-	 * The actual AsyncTask that will asynchronously download the image.
+	 * Loads and decrypts a voice message for every task that asks for it while it's loading.
 	 */
-	class VoiceMessageDownloaderTask implements Runnable {
+	private static class VoiceLoader implements SingleFlightLoader.Loader<byte[]> {
 		private SurespotMessage mMessage;
-		private boolean mCancelled;
-
-		public SurespotMessage getMessage() {
-			return mMessage;
-		}
 
-		private final WeakReference<View> viewReference;
-
-		public VoiceMessageDownloaderTask(View parentView, SurespotMessage message) {
+		public VoiceLoader(SurespotMessage message) {
 			mMessage = message;
-			viewReference = new WeakReference<View>(parentView);
-		}
-
-		public void cancel() {
-			mCancelled = true;
 		}
 
 		@Override
-		public void run() {
-			if (mCancelled) {
-				return;
+		public byte[] load(SingleFlightLoader.Flight flight) {
+			byte[] soundbytes = mMessage.getPlainBinaryData();
+			if (soundbytes != null) {
+				SurespotLog.v(TAG, "getting voice stream from cache");
+				return soundbytes;
 			}
 
-			byte[] soundbytes = mMessage.getPlainBinaryData();
-			if (soundbytes == null) {
-				// see if the data has been sent to us inline
+			//see if we have unencrypted local file
+			if (!TextUtils.isEmpty(mMessage.getData())) {
 				InputStream voiceStream = null;
 
-				//see if we have unencrypted local file
-				if (!TextUtils.isEmpty(mMessage.getData())) {
-
-
-					//check disk cache before going to network
-					try {
-
-						voiceStream = SurespotApplication.getFileCacheController().getEntry(mMessage.getData());
-						if (voiceStream != null) {
-							SurespotLog.d(TAG, "got cached file entry for voice: %s,", mMessage.getData());
-						}
-					}
-					catch (IOException e) {
-						SurespotLog.w(TAG, e, "error getting cached file entry for voice: %s,", mMessage.getData());
-					}
-
-					if (voiceStream == null) {
-						SurespotLog.d(TAG, "no cached file entry, making http call for voice: %s,", mMessage.getData());
-						voiceStream = SurespotApplication.getNetworkController().getFileStream(MainActivity.getContext(), mMessage.getData());
-					}
+				//check disk cache before going to network
+				try {
 
-					if (mCancelled) {
-						try {
-							if (voiceStream != null) {
-								voiceStream.close();
-							}
-						}
-						catch (IOException e) {
-							SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-						}
-						return;
+					voiceStream = SurespotApplication.getFileCacheController().getEntry(mMessage.getData());
+					if (voiceStream != null) {
+						SurespotLog.d(TAG, "got cached file entry for voice: %s,", mMessage.getData());
 					}
+				}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "error getting cached file entry for voice: %s,", mMessage.getData());
+				}
 
-					if (!mCancelled && voiceStream != null) {
-						PipedOutputStream out = new PipedOutputStream();
-						PipedInputStream inputStream = null;
-						try {
-							inputStream = new PipedInputStream(out);
-
-							if (mCancelled) {
-								mMessage.setLoaded(true);
-								mMessage.setLoading(false);
-								mChatAdapter.checkLoaded();
-								return;
-							}
+				if (voiceStream == null) {
+					SurespotLog.d(TAG, "no cached file entry, making http call for voice: %s,", mMessage.getData());
+					voiceStream = SurespotApplication.getNetworkController().getFileStream(MainActivity.getContext(), mMessage.getData());
+				}
 
-							EncryptionController.runDecryptTask(mMessage.getOurVersion(), mMessage.getOtherUser(), mMessage.getTheirVersion(), mMessage.getIv(), mMessage.isHashed(),
-									voiceStream, out);
+				if (voiceStream == null) {
+					return null;
+				}
 
-							soundbytes = Utils.inputStreamToBytes(inputStream);
+				PipedOutputStream out = new PipedOutputStream();
+				PipedInputStream inputStream = null;
+				try {
+					if (flight.isCancelled()) {
+						return null;
+					}
 
-							if (mCancelled) {
-								mMessage.setPlainBinaryData(soundbytes);
-								mMessage.setLoaded(true);
-								mMessage.setLoading(false);
-								mChatAdapter.checkLoaded();
-								return;
-							}
-						}
-						catch (InterruptedIOException ioe) {
+					inputStream = new PipedInputStream(out);
+					EncryptionController.runDecryptTask(mMessage.getOurVersion(), mMessage.getOtherUser(), mMessage.getTheirVersion(), mMessage.getIv(), mMessage.isHashed(),
+							voiceStream, out);
 
-							SurespotLog.w(TAG, ioe, "VoiceMessageDownloaderTask");
+					soundbytes = Utils.inputStreamToBytes(inputStream);
+				}
+				catch (InterruptedIOException ioe) {
 
-						}
-						catch (IOException e) {
-							SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-						}
-						finally {
+					SurespotLog.w(TAG, ioe, "VoiceMessageDownloaderTask");
 
-							try {
-								if (voiceStream != null) {
-									voiceStream.close();
-								}
-							}
-							catch (IOException e) {
-								SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-							}
+				}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
+				}
+				finally {
 
-							try {
-								if (inputStream != null) {
-									inputStream.close();
-								}
-							}
-							catch (IOException e) {
-								SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
-							}
-						}
+					try {
+						voiceStream.close();
 					}
-				}
-				else if (!TextUtils.isEmpty(mMessage.getPlainData())) {
+					catch (IOException e) {
+						SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
+					}
+
 					try {
-						soundbytes = Utils.inputStreamToBytes(new FileInputStream(Uri.parse(mMessage.getPlainData().toString()).getPath()));
-						SurespotLog.d(TAG, "loaded unencrypted voice from: %s, null: %b", mMessage.getPlainData().toString(), soundbytes == null);
+						if (inputStream != null) {
+							inputStream.close();
+						}
 					}
 					catch (IOException e) {
-						SurespotLog.w(TAG, e, "error loading unencrypted voice from disk");
+						SurespotLog.w(TAG, e, "VoiceMessageDownloaderTask");
 					}
 				}
 			}
-			else {
-				SurespotLog.v(TAG, "getting voice stream from cache");
+			else if (!TextUtils.isEmpty(mMessage.getPlainData())) {
+				try {
+					soundbytes = Utils.inputStreamToBytes(new FileInputStream(Uri.parse(mMessage.getPlainData().toString()).getPath()));
+					SurespotLog.d(TAG, "loaded unencrypted voice from: %s, null: %b", mMessage.getPlainData().toString(), soundbytes == null);
+				}
+				catch (IOException e) {
+					SurespotLog.w(TAG, e, "error loading unencrypted voice from disk");
+				}
 			}
 
+			return soundbytes;
+		}
+	}
+
+	/**
+	 * Hands the loaded voice data to the message and updates the view it was started for.
+	 */
+	class VoiceMessageDownloaderTask implements SingleFlightLoader.Listener<byte[]> {
+		private SurespotMessage mMessage;
+		private boolean mCancelled;
+		private SingleFlightLoader<byte[]>.Request mRequest;
+
+		public SurespotMessage getMessage() {
+			return mMessage;
+		}
+
+		private final WeakReference<View> viewReference;
+
+		public VoiceMessageDownloaderTask(View parentView, SurespotMessage message) {
+			mMessage = message;
+			viewReference = new WeakReference<View>(parentView);
+		}
+
+		public void start() {
+			mRequest = mLoader.load(getKey(mMessage), new VoiceLoader(mMessage), this,
+					mChatAdapter.getRowLoadScheduler().executorFor("voice", SurespotApplication.NETWORK_EXECUTOR, mMessage));
+		}
+
+		public void cancel() {
+			mCancelled = true;
+			// other rows may still want the voice data so just stop listening
+			if (mRequest != null) {
+				mRequest.cancel();
+			}
+			mMessage.setLoaded(true);
+			mMessage.setLoading(false);
+			mChatAdapter.checkLoaded();
+		}
+
+		@Override
+		public void onLoaded(byte[] soundbytes) {
 			if (soundbytes != null) {
 
 				mMessage.setPlainBinaryData(soundbytes);
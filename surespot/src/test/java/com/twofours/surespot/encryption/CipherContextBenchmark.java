@@ -0,0 +1,99 @@
+package com.twofours.surespot.encryption;
+
+import com.twofours.surespot.encryption.CipherContextPool.CipherContext;
+import com.twofours.surespot.services.CredentialCachingService.SharedSecretKey;
+import com.twofours.surespot.services.CredentialCachingService.VersionMap;
+
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+import org.spongycastle.crypto.params.ParametersWithIV;
+
+import java.util.Random;
+
+/**
+ * Times encrypting a message the way EncryptionController.symmetricProcess does with a pooled {@link CipherContext} against building
+ * and keying a new GCMBlockCipher for every message, as it did before the pool. Run it as a plain java program on a jvm:
+ * <p/>
+ * CipherContextBenchmark [message bytes] [messages]
+ */
+public class CipherContextBenchmark {
+    private static final int AES_KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 16;
+    private static final int WARM_UP_MESSAGES = 20000;
+
+    // keeps the jit from throwing the output away
+    private static volatile int mSink;
+
+    private interface Encryptor {
+        byte[] encrypt(byte[] iv, byte[] input) throws InvalidCipherTextException;
+    }
+
+    public static void main(String[] args) throws InvalidCipherTextException {
+        int messageLength = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        Random random = new Random(42);
+        final byte[] secret = new byte[AES_KEY_LENGTH];
+        random.nextBytes(secret);
+        byte[] input = new byte[messageLength];
+        random.nextBytes(input);
+
+        Encryptor fresh = new Encryptor() {
+            @Override
+            public byte[] encrypt(byte[] iv, byte[] input) throws InvalidCipherTextException {
+                GCMBlockCipher ccm = new GCMBlockCipher(new AESEngine());
+                ccm.init(true, new ParametersWithIV(new KeyParameter(secret, 0, AES_KEY_LENGTH), iv));
+                return process(ccm, input);
+            }
+        };
+
+        final CipherContextPool pool = new CipherContextPool(AES_KEY_LENGTH);
+        final SharedSecretKey key = new SharedSecretKey(new VersionMap("us", "1"), new VersionMap("them", "1"), true);
+        Encryptor pooled = new Encryptor() {
+            @Override
+            public byte[] encrypt(byte[] iv, byte[] input) throws InvalidCipherTextException {
+                CipherContext context = pool.acquire(key, secret);
+                byte[] output = process(context.init(true, iv), input);
+                pool.release(key, context);
+                return output;
+            }
+        };
+
+        run(fresh, input, WARM_UP_MESSAGES);
+        run(pooled, input, WARM_UP_MESSAGES);
+
+        double freshRate = run(fresh, input, messages);
+        double pooledRate = run(pooled, input, messages);
+        System.out.println(String.format("%d byte messages, fresh cipher: %.1f/ms, pooled context: %.1f/ms", messageLength, freshRate,
+                pooledRate));
+    }
+
+    /**
+     * @return messages per millisecond
+     */
+    private static double run(Encryptor encryptor, byte[] input, int messages) throws InvalidCipherTextException {
+        // a keyed gcm cipher refuses the iv it was last used with, count through them like real ivs would
+        byte[] iv = new byte[IV_LENGTH];
+        int sink = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            iv[0] = (byte) i;
+            iv[1] = (byte) (i >> 8);
+            iv[2] = (byte) (i >> 16);
+            iv[3] = (byte) (i >> 24);
+            sink += encryptor.encrypt(iv, input)[0];
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        mSink += sink;
+        return messages / (elapsedNanos / 1000000.0);
+    }
+
+    private static byte[] process(GCMBlockCipher ccm, byte[] input) throws InvalidCipherTextException {
+        byte[] buf = new byte[ccm.getOutputSize(input.length)];
+        int len = ccm.processBytes(input, 0, input.length, buf, 0);
+        ccm.doFinal(buf, len);
+        return buf;
+    }
+}
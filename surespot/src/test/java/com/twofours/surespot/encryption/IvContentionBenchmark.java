@@ -0,0 +1,130 @@
+package com.twofours.surespot.encryption;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.prng.DigestRandomGenerator;
+import org.spongycastle.crypto.prng.RandomGenerator;
+
+import java.security.SecureRandom;
+import java.security.SecureRandomSpi;
+import java.security.Security;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Times N threads generating ivs at once, through {@link EncryptionController#getIv()} with the per thread generators and through
+ * the single generator behind SecureRandom's lock that it replaced. Run it as a plain java program on a jvm:
+ * <p/>
+ * IvContentionBenchmark [max threads] [ivs per thread]
+ */
+public class IvContentionBenchmark {
+    private static final int IV_LENGTH = 16;
+    private static final int WARM_UP_IVS = 50000;
+
+    // keeps the jit from throwing the ivs away
+    private static volatile int mSink;
+
+    private interface IvSource {
+        byte[] getIv();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        int ivsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        // EncryptionController needs the provider for its server key
+        Security.addProvider(new org.spongycastle.jce.provider.BouncyCastleProvider());
+
+        final SecureRandom legacyRandom = new LegacySecureRandom();
+        IvSource legacy = new IvSource() {
+            @Override
+            public byte[] getIv() {
+                byte[] iv = new byte[IV_LENGTH];
+                legacyRandom.nextBytes(iv);
+                return iv;
+            }
+        };
+        IvSource current = new IvSource() {
+            @Override
+            public byte[] getIv() {
+                return EncryptionController.getIv();
+            }
+        };
+
+        run(legacy, 1, WARM_UP_IVS);
+        run(current, 1, WARM_UP_IVS);
+
+        System.out.println("threads\tlegacy ivs/ms\tper thread ivs/ms");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double legacyRate = run(legacy, threads, ivsPerThread);
+            double currentRate = run(current, threads, ivsPerThread);
+            System.out.println(String.format("%d\t%.1f\t%.1f", threads, legacyRate, currentRate));
+        }
+    }
+
+    /**
+     * @return ivs per millisecond across all the threads
+     */
+    private static double run(final IvSource source, int threads, final int ivsPerThread) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+
+                    int sink = 0;
+                    for (int j = 0; j < ivsPerThread; j++) {
+                        sink += source.getIv()[0];
+                    }
+                    mSink += sink;
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return (double) threads * ivsPerThread / (elapsedNanos / 1000000.0);
+    }
+
+    // SurespotSecureRandomSpi as it was, one generator for every thread behind SecureRandom's synchronized nextBytes
+    @SuppressWarnings("serial")
+    private static class LegacySecureRandomSpi extends SecureRandomSpi {
+        private final RandomGenerator mGenerator = new DigestRandomGenerator(new SHA256Digest());
+
+        LegacySecureRandomSpi() {
+            mGenerator.addSeedMaterial(RandomBitsSupplier.getRandomBits(32));
+        }
+
+        @Override
+        protected void engineSetSeed(byte[] seed) {
+            mGenerator.addSeedMaterial(seed);
+        }
+
+        @Override
+        protected void engineNextBytes(byte[] bytes) {
+            mGenerator.nextBytes(bytes);
+        }
+
+        @Override
+        protected synchronized byte[] engineGenerateSeed(int numBytes) {
+            byte[] bytes = new byte[numBytes];
+            mGenerator.nextBytes(bytes);
+            return bytes;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class LegacySecureRandom extends SecureRandom {
+        LegacySecureRandom() {
+            super(new LegacySecureRandomSpi(), null);
+        }
+    }
+}
@@ -21,6 +21,7 @@ public class FileUtils {
     private static final String STATE_DIR = "state";
     private final static String HTTP = "http";
     private final static String FILE = "file";
+    private final static String THUMBNAIL = "thumbnail";
     public final static String IDENTITIES_DIR = "identities";
     private final static String PUBLICKEYS_DIR = "publicKeys";
     private static final String TAG = "FileUtils";
@@ -35,6 +36,11 @@ public class FileUtils {
         return getCacheDir(context, FILE);
     }
 
+    public static File getThumbnailCacheDir(Context context) {
+
+        return getCacheDir(context, THUMBNAIL);
+    }
+
     private static File getCacheDir(Context context, String unique) {
 
         // Check if media is mounted or storage is built-in, if so, try and use external cache dir
@@ -23,6 +23,7 @@ public class SurespotConfiguration {
 
 	private static int mImageDisplayHeight;
 	private static int mQRDisplaySize;
+	private static int mSendWindowSize = SurespotConstants.SEND_WINDOW_SIZE;
 	
 	private static boolean mBackgroundImageSet;
 
@@ -38,6 +39,11 @@ public class SurespotConfiguration {
 			mGoogleApiLicenseKey = (String) properties.get("googleApiLicenseKey");
 			mGoogleApiKey = (String) properties.get("googleApiKey");
 
+			String sendWindowSize = (String) properties.get("send_window_size");
+			if (sendWindowSize != null) {
+				mSendWindowSize = Math.max(1, Integer.parseInt(sendWindowSize));
+			}
+
 			// figure out image and QR display size based on screen size
 			Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
 			DisplayMetrics metrics = new DisplayMetrics();
@@ -77,6 +83,10 @@ public class SurespotConfiguration {
 	public static int getQRDisplaySize() {
 		return mQRDisplaySize;
 	}
+
+	public static int getSendWindowSize() {
+		return mSendWindowSize;
+	}
 	
 	public static void setBackgroundImageSet(boolean set) {
 		mBackgroundImageSet = set;
@@ -51,6 +51,9 @@ public class SurespotConstants {
 	public final static int MAX_PASSWORD_LENGTH = 256;
 	public final static int SAVE_MESSAGE_BUFFER = 25;
 	public final static int SAVE_MESSAGE_MINIMUM = 50;
+	public final static int LOAD_MESSAGE_PAGE_SIZE = 50;
+	// how many messages can be encrypting or waiting on the server at once
+	public final static int SEND_WINDOW_SIZE = 8;
 	public final static int MAX_MESSAGE_LENGTH = 1024;
 	
 	public final static String DRIVE_IDENTITY_FOLDER = "surespot identity backups";